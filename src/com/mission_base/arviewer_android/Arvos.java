@@ -23,10 +23,7 @@
 
 package com.mission_base.arviewer_android;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -35,8 +32,11 @@ import android.hardware.SensorManager;
 import android.view.OrientationEventListener;
 
 import com.mission_base.arviewer_android.viewer.ArvosAugment;
+import com.mission_base.arviewer_android.viewer.ArvosPosePredictor;
+import com.mission_base.arviewer_android.viewer.ArvosPoseTrace;
 import com.mission_base.arviewer_android.viewer.WebViewer;
-import com.mission_base.arviewer_android.viewer.opengl.ArvosObject;
+import com.mission_base.arviewer_android.viewer.opengl.ArvosFrame;
+import com.mission_base.arviewer_android.viewer.opengl.ArvosRenderScheduler;
 
 /**
  * Static Arvos instance, used to keep static values during the lifetime of the
@@ -50,20 +50,73 @@ public class Arvos
 {
 	public boolean mSimulateWeb = false;
 
+	/**
+	 * The transport files are downloaded with, if null the web is used, or the
+	 * raw resources if the web is simulated.
+	 */
+	public volatile IArvosTransport mTransport;
+
+	/**
+	 * If true the session and location data travel in request headers and the
+	 * urls of augments stay canonical, so they can be cached. Author and
+	 * developer keys stay in the url of the augments list.
+	 */
+	public boolean mCanonicalUrls = false;
+
 	public boolean mIsAuthor = false;
 	public String mAuthorKey;
 	public String mDeveloperKey;
 	public String mSessionId;
-	public float mLongitude = -1000f;
-	public float mLatitude = -1000f;
 	public int mVersion = 1;
-	
-	public float mAzimuth = 0;
-	public float mCorrectedAzimuth = 0;
-	public float mPitch = 0;
-	public float mRoll = 0;
-	
+
+	/**
+	 * The current location and orientation of the device.
+	 */
+	private final AtomicReference<ArvosPose> mPose = new AtomicReference<ArvosPose>(new ArvosPose());
+
 	public boolean mUseCache = true;
+
+	/**
+	 * The time in milliseconds the orientation is predicted ahead when
+	 * drawing, 0 disables the prediction.
+	 */
+	public long mPredictionMillis = 30;
+
+	/**
+	 * If set, the filtered orientation samples are recorded to a trace file.
+	 */
+	public boolean mRecordPoseTrace = false;
+
+	/**
+	 * If true the camera preview is drawn by the opengl renderer instead of a
+	 * separate camera view.
+	 */
+	public boolean mSingleSurface = false;
+
+	/**
+	 * If true opaque textures are compressed to ETC1 if supported.
+	 */
+	public boolean mCompressTextures = false;
+
+	/**
+	 * If set, the cache accesses are recorded to a binary trace file.
+	 */
+	public boolean mRecordCacheTrace = false;
+
+	/**
+	 * Predicts the orientation at display time from the filtered samples.
+	 */
+	public final ArvosPosePredictor mPosePredictor = new ArvosPosePredictor();
+
+	/**
+	 * The trace of filtered orientation samples recorded.
+	 */
+	public final ArvosPoseTrace mPoseTrace = new ArvosPoseTrace();
+
+	/**
+	 * Prefetches augments and textures near the current location, may be null.
+	 */
+	public ArvosPrefetcher mPrefetcher;
 	
 	public int mWidth;
 	public int mHeight;
@@ -80,26 +133,19 @@ public class Arvos
 	private Activity mActivity;
 	private OrientationEventListener mListener;
 
-	public volatile boolean mHandleTouch = false;
-	public volatile boolean mModelViewMatrixesRequested = false;
-
 	/**
-	 * The model view matrixes created by the renderer for the touch handler.
+	 * Schedules the frames of the opengl view while it is resumed, may be
+	 * null.
 	 */
-	public float[] mProjectionMatrix = null;
+	public volatile ArvosRenderScheduler mRenderScheduler;
 
-	/**
-	 * The model view matrixes created by the renderer for the touch handler.
-	 */
-	public final HashMap<Integer, float[]> mModelViewMatrixes = new HashMap<Integer, float[]>();
+	public volatile boolean mHandleTouch = false;
+	public volatile boolean mModelViewMatrixesRequested = false;
 
 	/**
-	 * The objects drawn.
-	 * <p>
-	 * Created and used by the renderer. Stored in the static instance so the
-	 * radar view can also use it.
+	 * The last frame drawn by the renderer.
 	 */
-	public final List<ArvosObject> mArvosObjects = Collections.synchronizedList(new LinkedList<ArvosObject>());
+	private final AtomicReference<ArvosFrame> mFrame = new AtomicReference<ArvosFrame>(ArvosFrame.EMPTY);
 
 	private Arvos()
 	{
@@ -174,6 +220,145 @@ public class Arvos
 		}
 	}
 
+	/**
+	 * Returns the current pose of the device.
+	 * <p>
+	 * Callers should get the pose once per frame or request and use that
+	 * snapshot throughout.
+	 * 
+	 * @return The current pose.
+	 */
+	public ArvosPose getPose()
+	{
+		return mPose.get();
+	}
+
+	/**
+	 * Returns the last frame drawn by the renderer.
+	 * 
+	 * @return The last frame drawn.
+	 */
+	public ArvosFrame getFrame()
+	{
+		return mFrame.get();
+	}
+
+	/**
+	 * Publishes a frame drawn by the renderer, only called by the renderer.
+	 * 
+	 * @param frame
+	 *            The frame drawn.
+	 */
+	public void setFrame(ArvosFrame frame)
+	{
+		mFrame.set(frame);
+	}
+
+	private void onPoseChanged(ArvosPose pose)
+	{
+		ArvosRenderScheduler renderScheduler = mRenderScheduler;
+		if (renderScheduler != null)
+		{
+			renderScheduler.onPoseChanged(pose);
+		}
+	}
+
+	/**
+	 * Requests a frame of the opengl view, if it is resumed.
+	 */
+	public void requestRender()
+	{
+		ArvosRenderScheduler renderScheduler = mRenderScheduler;
+		if (renderScheduler != null)
+		{
+			renderScheduler.requestRender();
+		}
+	}
+
+	/**
+	 * Requests a frame of the opengl view after a delay, if it is resumed.
+	 * 
+	 * @param delayMillis
+	 *            The delay in milliseconds.
+	 */
+	public void requestRender(long delayMillis)
+	{
+		ArvosRenderScheduler renderScheduler = mRenderScheduler;
+		if (renderScheduler != null)
+		{
+			renderScheduler.requestRender(delayMillis);
+		}
+	}
+
+	/**
+	 * Publishes a new location of the device.
+	 * 
+	 * @param latitude
+	 *            The latitude.
+	 * @param longitude
+	 *            The longitude.
+	 * @return The pose published.
+	 */
+	public ArvosPose setLocation(float latitude, float longitude)
+	{
+		while (true)
+		{
+			ArvosPose pose = mPose.get();
+			ArvosPose newPose = pose.withLocation(latitude, longitude);
+			if (mPose.compareAndSet(pose, newPose))
+			{
+				onPoseChanged(newPose);
+				return newPose;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a new orientation of the device.
+	 * 
+	 * @param azimuth
+	 *            The azimuth in degrees.
+	 * @param pitch
+	 *            The pitch in degrees.
+	 * @param roll
+	 *            The roll in degrees.
+	 * @return The pose published.
+	 */
+	public ArvosPose setOrientation(float azimuth, float pitch, float roll)
+	{
+		while (true)
+		{
+			ArvosPose pose = mPose.get();
+			ArvosPose newPose = pose.withOrientation(azimuth, pitch, roll);
+			if (mPose.compareAndSet(pose, newPose))
+			{
+				onPoseChanged(newPose);
+				return newPose;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a new corrected azimuth, the azimuth the camera looks at.
+	 * 
+	 * @param correctedAzimuth
+	 *            The corrected azimuth in degrees.
+	 * @return The pose published.
+	 */
+	public ArvosPose setCorrectedAzimuth(float correctedAzimuth)
+	{
+		while (true)
+		{
+			ArvosPose pose = mPose.get();
+			ArvosPose newPose = pose.withCorrectedAzimuth(correctedAzimuth);
+			if (mPose.compareAndSet(pose, newPose))
+			{
+				onPoseChanged(newPose);
+				return newPose;
+			}
+		}
+	}
+
 	/**
 	 * Gets the device orientation as reported by the SensorManager.
 	 * 
@@ -0,0 +1,280 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.widget.BaseAdapter;
+
+import com.mission_base.arviewer_android.viewer.ArvosAugment;
+
+/**
+ * The list of augments shown by the main activity.
+ * <p>
+ * A downloaded augment list is applied incrementally. The augments are
+ * matched to the entries shown by url, unchanged entries keep their instance
+ * and their stable id, so the adapter only has to rebind the rows that changed.
+ * An augment list equal to the one applied last is not parsed again. The list
+ * is sorted by the distance of the augments from the current location, and the
+ * adapter is only notified if the entries or their order changed.
+ * <p>
+ * Augment lists can be paged by the server, the url of the next page is given
+ * as "nextPage" in the list. The pages are appended when requested, e.g. when
+ * the list is scrolled to its end. Applying the first page again replaces all
+ * pages.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosAugmentList
+{
+	private final ArrayList<ArvosAugment> mAugments;
+	private final BaseAdapter mAdapter;
+
+	private String mFirstPageText = null;
+	private String mNextPageUrl = null;
+	private long mNextListId = 1;
+
+	private long mChangeCount = 0;
+
+	/**
+	 * Creates an augment list.
+	 * 
+	 * @param augments
+	 *            The augments shown by the adapter.
+	 * @param adapter
+	 *            The adapter to notify about changes.
+	 */
+	public ArvosAugmentList(ArrayList<ArvosAugment> augments, BaseAdapter adapter)
+	{
+		mAugments = augments;
+		mAdapter = adapter;
+	}
+
+	/**
+	 * Applies the first page of a downloaded augment list.
+	 * 
+	 * @param text
+	 *            The augment list in JSON format.
+	 * @param pose
+	 *            The pose of the device the list is sorted for.
+	 * @return "OK", "RD" followed by the url to redirect to, or "ER" followed
+	 *         by the error message.
+	 */
+	public String update(String text, ArvosPose pose)
+	{
+		if (text.equals(mFirstPageText))
+		{
+			return "OK";
+		}
+
+		List<ArvosAugment> page = new ArrayList<ArvosAugment>();
+		String result = ArvosAugment.parse(text, page);
+		if (!result.startsWith("OK"))
+		{
+			return result;
+		}
+		mFirstPageText = text;
+		setNextPageUrl(result.substring(2));
+
+		apply(page, true, pose);
+		return "OK";
+	}
+
+	/**
+	 * Appends the next page of a downloaded augment list.
+	 * 
+	 * @param text
+	 *            The page of the augment list in JSON format.
+	 * @param pose
+	 *            The pose of the device the list is sorted for.
+	 * @return "OK" or "ER" followed by the error message.
+	 */
+	public String addPage(String text, ArvosPose pose)
+	{
+		List<ArvosAugment> page = new ArrayList<ArvosAugment>();
+		String result = ArvosAugment.parse(text, page);
+		if (result.startsWith("RD"))
+		{
+			return "ERRedirect not allowed for a page of the augment list";
+		}
+		if (!result.startsWith("OK"))
+		{
+			return result;
+		}
+		setNextPageUrl(result.substring(2));
+
+		apply(page, false, pose);
+		return "OK";
+	}
+
+	/**
+	 * Sorts the list for a new location of the device.
+	 * 
+	 * @param pose
+	 *            The pose of the device.
+	 */
+	public void sort(ArvosPose pose)
+	{
+		List<ArvosAugment> augments = new ArrayList<ArvosAugment>(mAugments);
+		sort(augments, pose);
+		if (!isSameOrder(augments, mAugments))
+		{
+			show(augments);
+		}
+	}
+
+	/**
+	 * Forgets the list applied last, so the next list is applied even if it is
+	 * unchanged.
+	 */
+	public void invalidate()
+	{
+		mFirstPageText = null;
+	}
+
+	/**
+	 * Returns the url of the next page of the list.
+	 * 
+	 * @return The url or null if there are no more pages.
+	 */
+	public String getNextPageUrl()
+	{
+		return mNextPageUrl;
+	}
+
+	/**
+	 * Returns the number of changes applied to the list shown.
+	 * 
+	 * @return The number of augments added, changed or removed.
+	 */
+	public long getChangeCount()
+	{
+		return mChangeCount;
+	}
+
+	private void setNextPageUrl(String url)
+	{
+		mNextPageUrl = url.length() > 0 ? url : null;
+	}
+
+	private void apply(List<ArvosAugment> page, boolean isFirstPage, ArvosPose pose)
+	{
+		Map<String, ArvosAugment> shown = new HashMap<String, ArvosAugment>();
+		for (ArvosAugment augment : mAugments)
+		{
+			shown.put(augment.mUrl, augment);
+		}
+
+		LinkedHashMap<String, ArvosAugment> merged = new LinkedHashMap<String, ArvosAugment>();
+		if (!isFirstPage)
+		{
+			merged.putAll(shown);
+		}
+
+		int changes = 0;
+		for (ArvosAugment augment : page)
+		{
+			ArvosAugment shownAugment = shown.get(augment.mUrl);
+			if (shownAugment != null && shownAugment.isSameListEntry(augment))
+			{
+				augment = shownAugment;
+			}
+			else
+			{
+				augment.mListId = shownAugment != null ? shownAugment.mListId : mNextListId++;
+				changes++;
+			}
+			merged.put(augment.mUrl, augment);
+		}
+		if (isFirstPage)
+		{
+			for (String url : shown.keySet())
+			{
+				if (!merged.containsKey(url))
+				{
+					changes++;
+				}
+			}
+		}
+
+		List<ArvosAugment> augments = new ArrayList<ArvosAugment>(merged.values());
+		sort(augments, pose);
+		if (changes > 0 || !isSameOrder(augments, mAugments))
+		{
+			mChangeCount += changes;
+			show(augments);
+		}
+	}
+
+	private void show(List<ArvosAugment> augments)
+	{
+		mAugments.clear();
+		mAugments.addAll(augments);
+		mAdapter.notifyDataSetChanged();
+	}
+
+	private static void sort(List<ArvosAugment> augments, ArvosPose pose)
+	{
+		if (!pose.hasLocation())
+		{
+			return;
+		}
+		final Map<ArvosAugment, Float> distances = new IdentityHashMap<ArvosAugment, Float>();
+		for (ArvosAugment augment : augments)
+		{
+			distances.put(augment, Float.valueOf(augment.getDistance(pose)));
+		}
+		Collections.sort(augments, new Comparator<ArvosAugment>()
+		{
+			public int compare(ArvosAugment a, ArvosAugment b)
+			{
+				return distances.get(a).compareTo(distances.get(b));
+			}
+		});
+	}
+
+	private static boolean isSameOrder(List<ArvosAugment> a, List<ArvosAugment> b)
+	{
+		if (a.size() != b.size())
+		{
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++)
+		{
+			if (a.get(i) != b.get(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
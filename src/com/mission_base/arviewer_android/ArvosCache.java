@@ -23,67 +23,92 @@
 
 package com.mission_base.arviewer_android;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Caches web files in a folder below the external cache directory or, if it is
  * not available, below the cache directory.
  * <p>
- * Implements an LRU cache where the maximum age of files, maximum number of
- * files and maximum number of bytes used can be specified during
- * initialization.
+ * Implements a cache where the maximum age of files, maximum number of files
+ * and maximum number of bytes used can be specified during initialization.
+ * Items not accessed for longer than the maximum age are removed, the items
+ * evicted when the cache exceeds its other limits are chosen by a pluggable
+ * eviction policy, LRU by default.
  * <p>
- * Each cached item is stored in a file, the last access time stamp of the item
- * is used as file name. Each file's first line contains the url of the cached
- * item, the cached item itself follows after that line. The static cache
- * instance keeps the list of cached urls and file names in memory for fast
- * access.
+ * The files, the index and the eviction are handled by an ArvosCacheStore,
+ * which keeps items as bytes. Texts are stored in UTF-8. Bitmaps are stored as
+ * PNG shared by all urls with the same content, they are decoded from the
+ * bytes read at the size needed. The modification time of a file is the time
+ * the item was added and is used to decide whether a cached text is still
+ * fresh. The static cache instance keeps the list of cached urls and file
+ * names in memory for fast access.
+ * <p>
+ * The index is loaded from the cache directory on the background thread as
+ * soon as the cache is initialized, the eviction runs on the same thread.
+ * Cache operations wait for the index with a timeout, an operation timing out
+ * is treated as a cache miss.
+ * <p>
+ * Hits, misses, additions, evictions by reason, errors and the latencies of
+ * the operations are counted in an ArvosCacheStats.
  * 
  * @author peter
  * 
  */
 public class ArvosCache
 {
+	private static String mTag = "ArvosCache";
 	private static String mLock = "lock";
-	private static ArvosCache instance;
+	private static volatile ArvosCache instance;
+
+	private final ArvosCacheStats mStats = new ArvosCacheStats();
+	private final ArvosCacheStore mStore;
+
+	// loads the index and evicts entries
+	private final Handler mHandler;
 
 	/**
-	 * File name extension used for files in the cache.
+	 * The maximum time in milliseconds a cache operation waits for the index
+	 * to be loaded, if it is not loaded in time the operation misses.
 	 */
-	public static final String mExtension = ".arvos";
+	public static final long INDEX_TIMEOUT_MILLIS = 2000L;
 
-	private TreeSet<ArvosCacheEntry> mEntrySet = new TreeSet<ArvosCacheEntry>();
-	private HashMap<String, ArvosCacheEntry> mEntryMap = new HashMap<String, ArvosCacheEntry>();
-	private long mSize = 0;
-	private File mCacheDir = null;
+	private final CountDownLatch mIndexLoaded = new CountDownLatch(1);
+	private volatile long mIndexLoadMillis = -1L;
 
-	private long mMaxAge;
-	private long mMaxSize;
-	private long mMaxFiles;
-
-	private ArvosCache(long maxAge, long maxFiles, long maxSize)
+	private ArvosCache(long maxAge, long maxFiles, long maxSize, IArvosCachePolicy policy)
 	{
-		mMaxAge = maxAge;
-		mMaxFiles = maxFiles;
-		mMaxSize = maxSize;
+		HandlerThread thread = new HandlerThread("ArvosCache", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+		mStore = new ArvosCacheStore(maxAge, maxFiles, maxSize, policy, mStats, new Executor()
+		{
+			public void execute(Runnable runnable)
+			{
+				mHandler.post(runnable);
+			}
+		});
 	}
 
 	private Activity mActivity;
 
 	/**
-	 * Initializes the static cache instance.
+	 * Initializes the static cache instance and starts loading its index on a
+	 * background thread.
 	 * 
 	 * @param activity
 	 *            The activity using the cache.
@@ -95,6 +120,26 @@ public class ArvosCache
 	 *            Maximum total size of cache in bytes.
 	 */
 	public static void initialize(Activity activity, long maxAge, long maxFiles, long maxSize)
+	{
+		initialize(activity, maxAge, maxFiles, maxSize, new ArvosLruCachePolicy());
+	}
+
+	/**
+	 * Initializes the static cache instance with an eviction policy and starts
+	 * loading its index on a background thread.
+	 * 
+	 * @param activity
+	 *            The activity using the cache.
+	 * @param maxAge
+	 *            Maximum age of cached files in milliseconds.
+	 * @param maxFiles
+	 *            Maximum number of files in cache.
+	 * @param maxSize
+	 *            Maximum total size of cache in bytes.
+	 * @param policy
+	 *            The policy choosing the files evicted.
+	 */
+	public static void initialize(Activity activity, long maxAge, long maxFiles, long maxSize, IArvosCachePolicy policy)
 	{
 		if (instance == null)
 		{
@@ -102,249 +147,326 @@ public class ArvosCache
 			{
 				if (instance == null)
 				{
-					instance = new ArvosCache(maxAge, maxFiles, maxSize);
-					instance.mActivity = activity;
+					final ArvosCache cache = new ArvosCache(maxAge, maxFiles, maxSize, policy);
+					cache.mActivity = activity;
+					instance = cache;
+
+					// Load the index in the background, the first lookup
+					// only waits for the rest of the scan if any
+					cache.mHandler.post(new Runnable()
+					{
+						public void run()
+						{
+							cache.loadIndex();
+						}
+					});
 				}
 			}
 		}
 	}
 
+	/**
+	 * Returns the cache instance once its index is loaded.
+	 * 
+	 * @return The instance or null if the cache is not initialized or its
+	 *         index could not be loaded in time.
+	 */
 	private static ArvosCache getInstance()
 	{
-		if (instance.mCacheDir == null)
+		ArvosCache cache = instance;
+		if (cache == null || !cache.awaitIndex(INDEX_TIMEOUT_MILLIS))
 		{
-			synchronized (mLock)
-			{
-				if (instance.mCacheDir == null)
-				{
-					instance.init();
-				}
-			}
+			return null;
 		}
-		return instance;
+		return cache.mStore.getDirectory() == null ? null : cache;
 	}
 
-	private void init()
+	private boolean awaitIndex(long timeoutMillis)
 	{
-		if (instance.IsExternalStorageAvailableAndWriteable())
-		{
-			mCacheDir = mActivity.getExternalCacheDir();
-		}
-		if (mCacheDir == null)
+		try
 		{
-			mCacheDir = mActivity.getCacheDir();
+			if (mIndexLoaded.await(timeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				return true;
+			}
+			Log.d(mTag, "Cache index not loaded after " + timeoutMillis + " ms");
 		}
-		mCacheDir = new File(mCacheDir, "webcachedir");
-		if (!mCacheDir.exists())
+		catch (InterruptedException e)
 		{
-			mCacheDir.mkdirs();
 		}
+		return false;
+	}
 
-		File[] mFiles = mCacheDir.listFiles();
-		if (mFiles == null)
-		{
-			return;
-		}
+	/**
+	 * Waits until the index of the cache is loaded.
+	 * 
+	 * @param timeoutMillis
+	 *            The maximum time to wait in milliseconds.
+	 * @return True if the index is loaded.
+	 */
+	public static boolean awaitReady(long timeoutMillis)
+	{
+		ArvosCache cache = instance;
+		return cache != null && cache.awaitIndex(timeoutMillis);
+	}
 
-		char[] inputBuffer = new char[1];
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Returns the time it took to load the index of the cache.
+	 * 
+	 * @return The time in milliseconds or -1 if the index is not loaded yet.
+	 */
+	public static long getIndexLoadMillis()
+	{
+		ArvosCache cache = instance;
+		return cache == null ? -1L : cache.mIndexLoadMillis;
+	}
 
-		for (File file : mFiles)
+	/**
+	 * Returns the statistics of the cache, without waiting for the index.
+	 * 
+	 * @return The statistics or null if the cache is not initialized.
+	 */
+	public static ArvosCacheStats getStats()
+	{
+		ArvosCache cache = instance;
+		return cache == null ? null : cache.mStats;
+	}
+
+	/**
+	 * Returns a readable summary of the cache and its statistics.
+	 * 
+	 * @return The summary.
+	 */
+	public static String getStatistics()
+	{
+		ArvosCache cache = instance;
+		if (cache == null)
 		{
-			Long lastAccessTime = getLastAccessTime(file);
-			if (lastAccessTime == null)
-			{
-				continue;
-			}
+			return "Cache not initialized";
+		}
+		return String.format("Entries %d, %d bytes, policy %s, index loaded in %d ms\n", cache.mStore.size(), cache.mStore.getByteCount(),
+				cache.mStore.getPolicyName(), cache.mIndexLoadMillis)
+				+ cache.mStats;
+	}
 
-			try
+	/**
+	 * Loads the index of the cache from the cache directory, called on the
+	 * background thread of the cache.
+	 */
+	private void loadIndex()
+	{
+		long start = SystemClock.uptimeMillis();
+		try
+		{
+			File cacheDir = null;
+			if (IsExternalStorageAvailableAndWriteable())
 			{
-				FileInputStream fIn = new FileInputStream(file);
-				InputStreamReader isr = new InputStreamReader(fIn);
-
-				try
-				{
-					sb.setLength(0);
-					int length = 0;
-					while (isr.read(inputBuffer) == 1)
-					{
-						length++;
-
-						if ('\n' == inputBuffer[0])
-						{
-							ArvosCacheEntry entry = new ArvosCacheEntry();
-							entry.url = sb.toString();
-							entry.urlLength = length;
-							entry.lastAccessTime = lastAccessTime;
-							entry.fileLength = file.length();
-							mEntrySet.add(entry);
-							break;
-						}
-
-						sb.append(inputBuffer[0]);
-					}
-				}
-				finally
-				{
-					isr.close();
-				}
+				cacheDir = mActivity.getExternalCacheDir();
 			}
-			catch (Exception e)
+			if (cacheDir == null)
 			{
-				continue;
+				cacheDir = mActivity.getCacheDir();
 			}
+			mStore.load(new File(cacheDir, "webcachedir"));
 		}
-		for (Iterator<ArvosCacheEntry> iterator = mEntrySet.iterator(); iterator.hasNext();)
+		finally
 		{
-			ArvosCacheEntry entry = iterator.next();
-			if (mEntryMap.containsKey(entry.url))
-			{
-				iterator.remove();
-				delete(entry);
-			}
-
-			mEntryMap.put(entry.url, entry);
-			mSize += entry.fileLength;
+			mIndexLoadMillis = SystemClock.uptimeMillis() - start;
+			mIndexLoaded.countDown();
 		}
-		cleanup();
+		Log.d(mTag, "Cache index of " + mStore.size() + " entries loaded in " + mIndexLoadMillis + " ms");
 	}
 
-	private Long getLastAccessTime(File file)
+	/**
+	 * Clears the cache, deletes all cached items.
+	 */
+	public static void clear()
 	{
-		if (!file.isFile())
+		ArvosCache cache = getInstance();
+		if (cache != null)
 		{
-			return null;
+			cache.mStore.clear();
 		}
-		String name = file.getName();
-		if (!name.endsWith(mExtension))
+	}
+
+	/**
+	 * Returns a cached bitmap or null if the bitmap is not in the cache.
+	 * 
+	 * @param url
+	 *            The url to of the bitmap to search in the cache.
+	 * @return The bitmap or null.
+	 */
+	public static Bitmap getBitmap(String url)
+	{
+		if (!Arvos.getInstance().mUseCache)
 		{
 			return null;
 		}
-		try
-		{
-			return Long.valueOf(name.replace(mExtension, ""));
-		}
-		catch (Exception e)
+		ArvosCache cache = getInstance();
+		return cache == null ? null : cache.getCachedBitmap(ArvosHttpRequest.urlEncode(url), 0, 0);
+	}
+
+	/**
+	 * Returns a cached bitmap decoded at a reduced size or null if the bitmap
+	 * is not in the cache.
+	 * <p>
+	 * The bitmap is subsampled by the largest power of two that keeps it at
+	 * least as large as the size requested, so it is never decoded at full
+	 * resolution if that is not needed.
+	 * 
+	 * @param url
+	 *            The url to of the bitmap to search in the cache.
+	 * @param width
+	 *            The width needed.
+	 * @param height
+	 *            The height needed.
+	 * @return The bitmap or null.
+	 */
+	public static Bitmap getBitmap(String url, int width, int height)
+	{
+		if (!Arvos.getInstance().mUseCache)
 		{
+			return null;
 		}
-		return null;
+		ArvosCache cache = getInstance();
+		return cache == null ? null : cache.getCachedBitmap(ArvosHttpRequest.urlEncode(url), width, height);
 	}
 
-	private Long getLastAccessTime()
+	private Bitmap getCachedBitmap(String url, int width, int height)
 	{
-		long now = System.currentTimeMillis();
-		if (!mEntrySet.isEmpty())
+		byte[] data = mStore.get(url, 0L);
+		if (data == null)
 		{
-			if (mEntrySet.last().lastAccessTime.compareTo(Long.valueOf(now)) >= 0)
+			return null;
+		}
+		long start = System.nanoTime();
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if (width > 0 && height > 0)
+		{
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			options.inJustDecodeBounds = false;
+
+			options.inSampleSize = 1;
+			while (options.outWidth / (options.inSampleSize * 2) >= width && options.outHeight / (options.inSampleSize * 2) >= height)
 			{
-				return Long.valueOf(mEntrySet.last().lastAccessTime + 1);
+				options.inSampleSize *= 2;
 			}
 		}
-		return Long.valueOf(now);
+
+		Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (bitmap == null)
+		{
+			mStats.recordError(ArvosCacheStats.DECODE, new IOException("Bitmap not decoded " + url));
+			mStore.invalidate(url);
+			return null;
+		}
+		mStats.recordLatency(ArvosCacheStats.DECODE, start);
+		return bitmap;
 	}
 
-	private void cleanup()
+	/**
+	 * Returns a cached text or null if the text is not in the cache or is older
+	 * than the maximum age given.
+	 * 
+	 * @param url
+	 *            The url of the text to search in the cache.
+	 * @param maxAge
+	 *            Maximum age of the text in milliseconds, 0 for any age.
+	 * @return The text or null.
+	 */
+	public static String getText(String url, long maxAge)
 	{
-		long now = System.currentTimeMillis();
-
-		while (mEntrySet.size() > 1 && (mMaxAge > 0L && (now - mEntrySet.first().lastAccessTime > mMaxAge)) || (mMaxSize > 0L && mSize > mMaxSize)
-				|| (mMaxFiles > 0L && mEntrySet.size() > mMaxFiles))
+		if (!Arvos.getInstance().mUseCache)
 		{
-			delete(mEntrySet.first());
+			return null;
+		}
+		ArvosCache cache = getInstance();
+		if (cache == null)
+		{
+			return null;
+		}
+		byte[] data = cache.mStore.get(ArvosHttpRequest.urlEncode(url), maxAge);
+		try
+		{
+			return data == null ? null : new String(data, "UTF-8");
+		}
+		catch (IOException e)
+		{
+			cache.mStats.recordError(ArvosCacheStats.GET, e);
+			return null;
 		}
 	}
 
 	/**
-	 * Clears the cache, deletes all cached items.
+	 * Returns whether an item is in the cache.
+	 * 
+	 * @param url
+	 *            The url of the item to search in the cache.
+	 * @return True if the item is cached.
 	 */
-	public static void clear()
+	public static boolean contains(String url)
 	{
-		getInstance().clearCache();
+		return getLength(url) > 0L;
 	}
 
-	private void clearCache()
+	/**
+	 * Returns the number of bytes used by a cached item.
+	 * 
+	 * @param url
+	 *            The url of the item to search in the cache.
+	 * @return The number of bytes used or 0 if the item is not in the cache.
+	 */
+	public static long getLength(String url)
 	{
-		synchronized (mLock)
+		if (!Arvos.getInstance().mUseCache)
 		{
-			while (!mEntrySet.isEmpty())
-			{
-				delete(mEntrySet.first());
-			}
+			return 0L;
 		}
+		ArvosCache cache = getInstance();
+		return cache == null ? 0L : cache.mStore.getLength(ArvosHttpRequest.urlEncode(url));
 	}
 
-	private void delete(ArvosCacheEntry entry)
+	/**
+	 * Returns the hash of the content of a cached bitmap, urls with the same
+	 * content have the same hash. Does not wait for the index.
+	 * 
+	 * @param url
+	 *            The url of the bitmap.
+	 * @return The hash or null if the bitmap is not known to be cached.
+	 */
+	public static String getContentHash(String url)
 	{
-		File file = new File(mCacheDir, entry.getFileName());
-		if (file.exists())
+		ArvosCache cache = instance;
+		if (cache == null || !Arvos.getInstance().mUseCache)
 		{
-			file.delete();
-		}
-		mEntryMap.remove(entry.url);
-		if (mEntrySet.contains(entry))
-		{
-			mEntrySet.remove(entry);
+			return null;
 		}
-		mSize -= entry.fileLength;
+		return cache.mStore.getContentHash(ArvosHttpRequest.urlEncode(url));
 	}
 
 	/**
-	 * Returns a cached bitmap or null if the bitmap is not in the cache.
+	 * Returns the file a download of an url is written to until it is
+	 * complete. Does not wait for the index.
 	 * 
 	 * @param url
-	 *            The url to of the bitmap to search in the cache.
-	 * @return The bitmap or null.
+	 *            The url of the download.
+	 * @return The partial file or null if the cache is not used.
 	 */
-	public static Bitmap getBitmap(String url)
+	public static File getPartialFile(String url)
 	{
-		if (!Arvos.getInstance().mUseCache)
+		ArvosCache cache = instance;
+		File cacheDir = cache == null ? null : cache.mStore.getDirectory();
+		if (cacheDir == null || !Arvos.getInstance().mUseCache)
 		{
 			return null;
 		}
-		return getInstance().getCachedBitmap(ArvosHttpRequest.urlEncode(url));
-	}
-
-	private Bitmap getCachedBitmap(String url)
-	{
-		synchronized (mLock)
+		try
+		{
+			return new File(cacheDir, ArvosCacheStore.sha1(url.getBytes("UTF-8")) + ArvosRangeDownload.PARTIAL_EXTENSION);
+		}
+		catch (Exception e)
 		{
-			ArvosCacheEntry entry = mEntryMap.get(url);
-			if (entry == null)
-			{
-				return null;
-			}
-			File file = new File(mCacheDir, entry.getFileName());
-			try
-			{
-				if (file.exists())
-				{
-					Bitmap bitmap = null;
-					FileInputStream inputStream = new FileInputStream(file);
-					try
-					{
-						if (entry.urlLength == inputStream.skip(entry.urlLength))
-						{
-							bitmap = BitmapFactory.decodeStream(inputStream);
-						}
-					}
-					finally
-					{
-						inputStream.close();
-					}
-					if (bitmap != null)
-					{
-						mEntrySet.remove(entry);
-						entry.lastAccessTime = getLastAccessTime();
-						mEntrySet.add(entry);
-						file.renameTo(new File(mCacheDir, entry.getFileName()));
-						return bitmap;
-					}
-				}
-				delete(entry);
-			}
-			catch (Exception e)
-			{
-			}
 			return null;
 		}
 	}
@@ -363,55 +485,41 @@ public class ArvosCache
 		{
 			return;
 		}
-		getInstance().addBitmap(ArvosHttpRequest.urlEncode(url), bitmap);
+		ArvosCache cache = getInstance();
+		if (cache != null)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, bytes);
+			cache.mStore.addShared(ArvosHttpRequest.urlEncode(url), bytes.toByteArray());
+		}
 	}
 
-	private void addBitmap(String url, Bitmap bitmap)
+	/**
+	 * Adds a text to the cache.
+	 * 
+	 * @param url
+	 *            The url of the text to add.
+	 * @param text
+	 *            The text to add.
+	 */
+	public static void add(String url, String text)
 	{
-		synchronized (mLock)
+		if (!Arvos.getInstance().mUseCache)
 		{
-			ArvosCacheEntry other = mEntryMap.get(url);
-			if (other != null)
-			{
-				delete(other);
-			}
-
-			ArvosCacheEntry entry = new ArvosCacheEntry();
-			entry.url = url;
-			entry.lastAccessTime = getLastAccessTime();
-			File file = new File(mCacheDir, entry.getFileName());
-
-			try
-			{
-				FileOutputStream fOut = new FileOutputStream(file);
-				OutputStreamWriter osw = new OutputStreamWriter(fOut);
-
-				try
-				{
-					osw.write(url + "\n");
-					osw.flush();
-					entry.urlLength = (int) file.length();
-
-					bitmap.compress(Bitmap.CompressFormat.PNG, 100, fOut);
-				}
-				finally
-				{
-					osw.close();
-					entry.fileLength = file.length();
-				}
-			}
-			catch (Exception e)
-			{
-				file.delete();
-				entry = null;
-			}
-			if (entry != null)
-			{
-				mSize += entry.fileLength;
-				mEntrySet.add(entry);
-				mEntryMap.put(entry.url, entry);
-			}
-			cleanup();
+			return;
+		}
+		ArvosCache cache = getInstance();
+		if (cache == null)
+		{
+			return;
+		}
+		try
+		{
+			cache.mStore.add(ArvosHttpRequest.urlEncode(url), text.getBytes("UTF-8"));
+		}
+		catch (IOException e)
+		{
+			cache.mStats.recordError(ArvosCacheStats.ADD, e);
 		}
 	}
 
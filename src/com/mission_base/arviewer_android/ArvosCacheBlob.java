@@ -0,0 +1,78 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+/**
+ * A content addressed blob in the ArvosCache.
+ * <p>
+ * The bytes of a cached bitmap are stored once in a file named by the SHA-1
+ * hash of the bytes, all entries of urls with the same content reference the
+ * same blob. The blob is deleted when its last entry is deleted. The reference
+ * count and the deleted flag only change while holding the lock of the blob.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheBlob
+{
+	/**
+	 * File name extension used for blob files in the cache.
+	 */
+	public static final String mExtension = ".blob";
+
+	/**
+	 * The SHA-1 hash of the bytes as hex string.
+	 */
+	public String hash;
+
+	/**
+	 * The length of the file.
+	 */
+	public long length;
+
+	/**
+	 * The CRC32 of the bytes, -1 if it is not known.
+	 */
+	public long crc = -1L;
+
+	/**
+	 * The number of entries referencing the blob.
+	 */
+	public int refCount;
+
+	/**
+	 * True once the blob is deleted, a deleted blob cannot be referenced again.
+	 */
+	public boolean isDeleted;
+
+	/**
+	 * Returns the file name.
+	 * 
+	 * @return The file name
+	 */
+	public String getFileName()
+	{
+		return hash + mExtension;
+	}
+}
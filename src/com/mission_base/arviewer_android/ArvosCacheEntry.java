@@ -25,12 +25,36 @@ package com.mission_base.arviewer_android;
 
 /**
  * An entry in the ArvosCache.
+ * <p>
+ * The state of an entry changes from writing to ready when its file is
+ * completely written and the entry is added to the cache index, and from
+ * ready to deleted when it is removed. The file name and the state only change
+ * while holding the lock of the entry.
+ * <p>
+ * The bytes of a cached bitmap are stored in a blob shared by all entries with
+ * the same content, the file of such an entry only contains its url and the
+ * hash of the blob.
  * 
  * @author peter
  * 
  */
 public class ArvosCacheEntry implements Comparable<Object>
 {
+	/**
+	 * The file of the entry is being written.
+	 */
+	public static final int WRITING = 0;
+
+	/**
+	 * The entry is in the cache index and its file can be read.
+	 */
+	public static final int READY = 1;
+
+	/**
+	 * The entry was removed from the cache and its file deleted.
+	 */
+	public static final int DELETED = 2;
+
 	/**
 	 * Compares two entries by their last access time.
 	 */
@@ -57,7 +81,39 @@ public class ArvosCacheEntry implements Comparable<Object>
 	/**
 	 * The last access time of the entry.
 	 */
-	public Long lastAccessTime;
+	public volatile Long lastAccessTime;
+
+	/**
+	 * The time the entry was added to the cache.
+	 */
+	public long addedTime;
+
+	/**
+	 * The CRC32 of the bytes following the url in the file of the entry, -1 if
+	 * it is not known.
+	 */
+	public long crc = -1L;
+
+	/**
+	 * The blob holding the bytes of the item or null if they follow the url in
+	 * the file of the entry.
+	 */
+	public ArvosCacheBlob blob;
+
+	/**
+	 * The state of the entry.
+	 */
+	public volatile int state = WRITING;
+
+	/**
+	 * Returns the number of bytes used by the item, including its blob.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getLength()
+	{
+		return blob == null ? fileLength : fileLength + blob.length;
+	}
 
 	/**
 	 * Returns the file name.
@@ -66,6 +122,6 @@ public class ArvosCacheEntry implements Comparable<Object>
 	 */
 	public String getFileName()
 	{
-		return lastAccessTime.toString() + ArvosCache.mExtension;
+		return lastAccessTime.toString() + ArvosCacheStore.mExtension;
 	}
 }
@@ -0,0 +1,315 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The journal of the ArvosCache.
+ * <p>
+ * A file of the cache is recorded in the journal after it was completely
+ * written, synced and renamed to its final name. When the cache directory is
+ * scanned only files recorded with their length are accepted, so files cut
+ * off by a crash are dropped without being read.
+ * <p>
+ * The journal is a UTF-8 text file with one record per line. "E length crc
+ * url" records an entry, "B length crc hash" a blob, "D url" and "X hash"
+ * record their deletion. The crc is the CRC32 of the bytes of the item or -1
+ * if it is not known. A later record of a url or hash replaces an earlier one.
+ * The journal is appended to and rewritten from the index of the cache when it
+ * contains too many obsolete records.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheJournal
+{
+	/**
+	 * The file name of the journal in the cache directory.
+	 */
+	public static final String FILE_NAME = "journal";
+
+	/**
+	 * File name extension of files being written.
+	 */
+	public static final String TEMP_EXTENSION = ".tmp";
+
+	private final File mFile;
+	private Writer mWriter = null;
+	private int mRecordCount = 0;
+
+	private final Map<String, long[]> mEntries = new HashMap<String, long[]>();
+	private final Map<String, long[]> mBlobs = new HashMap<String, long[]>();
+
+	/**
+	 * Creates the journal of a cache directory.
+	 * 
+	 * @param cacheDir
+	 *            The cache directory.
+	 */
+	public ArvosCacheJournal(File cacheDir)
+	{
+		mFile = new File(cacheDir, FILE_NAME);
+	}
+
+	/**
+	 * Loads the records of the journal.
+	 * 
+	 * @return False if there is no journal.
+	 */
+	public synchronized boolean load()
+	{
+		if (!mFile.isFile())
+		{
+			return false;
+		}
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					// A line cut off by a crash is ignored
+					String[] parts = line.split(" ", 4);
+					try
+					{
+						if (parts.length == 4 && "E".equals(parts[0]))
+						{
+							mEntries.put(parts[3], new long[] { Long.parseLong(parts[1]), Long.parseLong(parts[2]) });
+						}
+						else if (parts.length == 4 && "B".equals(parts[0]))
+						{
+							mBlobs.put(parts[3], new long[] { Long.parseLong(parts[1]), Long.parseLong(parts[2]) });
+						}
+						else if (parts.length == 2 && "D".equals(parts[0]))
+						{
+							mEntries.remove(parts[1]);
+						}
+						else if (parts.length == 2 && "X".equals(parts[0]))
+						{
+							mBlobs.remove(parts[1]);
+						}
+					}
+					catch (NumberFormatException e)
+					{
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the checksum of a recorded entry.
+	 * 
+	 * @param url
+	 *            The url of the entry.
+	 * @param length
+	 *            The length of the file of the entry found.
+	 * @return The checksum, -1 if it is not known, or null if the entry is not
+	 *         recorded with this length.
+	 */
+	public synchronized Long getEntryChecksum(String url, long length)
+	{
+		return getChecksum(mEntries.get(url), length);
+	}
+
+	/**
+	 * Returns the checksum of a recorded blob.
+	 * 
+	 * @param hash
+	 *            The hash of the blob.
+	 * @param length
+	 *            The length of the file of the blob found.
+	 * @return The checksum, -1 if it is not known, or null if the blob is not
+	 *         recorded with this length.
+	 */
+	public synchronized Long getBlobChecksum(String hash, long length)
+	{
+		return getChecksum(mBlobs.get(hash), length);
+	}
+
+	private static Long getChecksum(long[] record, long length)
+	{
+		return record == null || record[0] != length ? null : Long.valueOf(record[1]);
+	}
+
+	/**
+	 * Rewrites the journal from the index of the cache, the records loaded are
+	 * dropped.
+	 * 
+	 * @param entries
+	 *            The entries in the cache.
+	 * @param blobs
+	 *            The blobs in the cache.
+	 * @throws IOException
+	 *             Write errors.
+	 */
+	public synchronized void rewrite(Collection<ArvosCacheEntry> entries, Collection<ArvosCacheBlob> blobs) throws IOException
+	{
+		mEntries.clear();
+		mBlobs.clear();
+		close();
+
+		File file = new File(mFile.getPath() + TEMP_EXTENSION);
+		FileOutputStream fOut = new FileOutputStream(file);
+		Writer writer = new OutputStreamWriter(fOut, "UTF-8");
+		int count = 0;
+		try
+		{
+			for (ArvosCacheBlob blob : blobs)
+			{
+				writer.write("B " + blob.length + " " + blob.crc + " " + blob.hash + "\n");
+				count++;
+			}
+			for (ArvosCacheEntry entry : entries)
+			{
+				writer.write("E " + entry.fileLength + " " + entry.crc + " " + entry.url + "\n");
+				count++;
+			}
+			writer.flush();
+			fOut.getFD().sync();
+		}
+		finally
+		{
+			writer.close();
+		}
+		if (!file.renameTo(mFile))
+		{
+			file.delete();
+			throw new IOException("Journal not renamed");
+		}
+		mRecordCount = count;
+		mWriter = new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8");
+	}
+
+	/**
+	 * Records an entry whose file was written.
+	 * 
+	 * @param entry
+	 *            The entry.
+	 */
+	public void addEntry(ArvosCacheEntry entry)
+	{
+		append("E " + entry.fileLength + " " + entry.crc + " " + entry.url);
+	}
+
+	/**
+	 * Records a blob whose file was written.
+	 * 
+	 * @param blob
+	 *            The blob.
+	 */
+	public void addBlob(ArvosCacheBlob blob)
+	{
+		append("B " + blob.length + " " + blob.crc + " " + blob.hash);
+	}
+
+	/**
+	 * Records the deletion of an entry.
+	 * 
+	 * @param entry
+	 *            The entry.
+	 */
+	public void deleteEntry(ArvosCacheEntry entry)
+	{
+		append("D " + entry.url);
+	}
+
+	/**
+	 * Records the deletion of a blob.
+	 * 
+	 * @param blob
+	 *            The blob.
+	 */
+	public void deleteBlob(ArvosCacheBlob blob)
+	{
+		append("X " + blob.hash);
+	}
+
+	private synchronized void append(String record)
+	{
+		if (mWriter == null)
+		{
+			return;
+		}
+		try
+		{
+			// Flushed to the file system, a killed process loses no record
+			mWriter.write(record + "\n");
+			mWriter.flush();
+			mRecordCount++;
+		}
+		catch (IOException e)
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Returns the number of records in the journal.
+	 * 
+	 * @return The number of records.
+	 */
+	public synchronized int getRecordCount()
+	{
+		return mRecordCount;
+	}
+
+	private void close()
+	{
+		if (mWriter == null)
+		{
+			return;
+		}
+		try
+		{
+			mWriter.close();
+		}
+		catch (IOException e)
+		{
+		}
+		mWriter = null;
+	}
+}
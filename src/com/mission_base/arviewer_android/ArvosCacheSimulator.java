@@ -0,0 +1,380 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays cache access traces against the eviction policies and reports their
+ * hit ratios, so that the limits of the ArvosCache can be chosen from data.
+ * <p>
+ * A trace is a text file with one access per line, the number of bytes of the
+ * item followed by a blank and the url. Lines starting with # are ignored.
+ * Binary traces recorded by the ArvosCacheStats are read as well, hits and
+ * misses are replayed as accesses, a missed item gets the length it had when
+ * it was added.
+ * Instead of a trace file a synthetic trace of popular textures mixed with
+ * scans of textures used once can be replayed.
+ * <p>
+ * The simulated cache behaves like the ArvosCache without the maximum age, a
+ * missed item is added and items are evicted while a limit is exceeded and
+ * more than one item is cached.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheSimulator
+{
+	/**
+	 * The factors applied to the limits given, each policy is run once per
+	 * factor.
+	 */
+	public static final float[] SCALES = { 0.125f, 0.25f, 0.5f, 1f, 2f, 4f };
+
+	private final IArvosCachePolicy mPolicy;
+	private final long mMaxSize;
+	private final long mMaxFiles;
+
+	private final HashMap<String, Long> mLengths = new HashMap<String, Long>();
+	private long mSize = 0;
+
+	private long mRequestCount = 0;
+	private long mHitCount = 0;
+	private long mRequestBytes = 0;
+	private long mHitBytes = 0;
+	private long mEvictionCount = 0;
+
+	/**
+	 * Creates a simulated cache.
+	 * 
+	 * @param policy
+	 *            The eviction policy.
+	 * @param maxFiles
+	 *            Maximum number of items, 0 for no limit.
+	 * @param maxSize
+	 *            Maximum total size in bytes, 0 for no limit.
+	 */
+	public ArvosCacheSimulator(IArvosCachePolicy policy, long maxFiles, long maxSize)
+	{
+		mPolicy = policy;
+		mMaxFiles = maxFiles;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Simulates an access to an item.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @param length
+	 *            The number of bytes of the item.
+	 * @return True if the item was cached.
+	 */
+	public boolean access(String url, long length)
+	{
+		mRequestCount++;
+		mRequestBytes += length;
+		if (mLengths.containsKey(url))
+		{
+			mHitCount++;
+			mHitBytes += length;
+			mPolicy.onHit(url);
+			return true;
+		}
+
+		mPolicy.onMiss(url);
+		mLengths.put(url, Long.valueOf(length));
+		mSize += length;
+		mPolicy.onAdd(url, length);
+
+		while (mLengths.size() > 1 && ((mMaxSize > 0L && mSize > mMaxSize) || (mMaxFiles > 0L && mLengths.size() > mMaxFiles)))
+		{
+			String victim = mPolicy.evict();
+			if (victim == null)
+			{
+				break;
+			}
+			Long victimLength = mLengths.remove(victim);
+			if (victimLength != null)
+			{
+				mSize -= victimLength.longValue();
+				mEvictionCount++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the ratio of requests served from the cache.
+	 * 
+	 * @return The hit ratio between 0 and 1.
+	 */
+	public float getHitRatio()
+	{
+		return mRequestCount == 0 ? 0f : (float) mHitCount / mRequestCount;
+	}
+
+	/**
+	 * Returns the ratio of requested bytes served from the cache.
+	 * 
+	 * @return The byte hit ratio between 0 and 1.
+	 */
+	public float getByteHitRatio()
+	{
+		return mRequestBytes == 0 ? 0f : (float) mHitBytes / mRequestBytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s,%d,%d,%.4f,%.4f,%d", mPolicy.getName(), mMaxFiles, mMaxSize, getHitRatio(), getByteHitRatio(), mEvictionCount);
+	}
+
+	/**
+	 * Creates the policies compared.
+	 * 
+	 * @param maxFiles
+	 *            The expected maximum number of items.
+	 * @return The policies.
+	 */
+	public static IArvosCachePolicy[] createPolicies(long maxFiles)
+	{
+		return new IArvosCachePolicy[] { new ArvosLruCachePolicy(), new ArvosSlruCachePolicy(), new ArvosTinyLfuCachePolicy(maxFiles) };
+	}
+
+	/**
+	 * Reads a trace file.
+	 * 
+	 * @param file
+	 *            The trace file.
+	 * @param urls
+	 *            Receives the urls accessed.
+	 * @param lengths
+	 *            Receives the numbers of bytes of the items accessed.
+	 * @throws IOException
+	 *             Read errors.
+	 */
+	public static void readTrace(File file, List<String> urls, List<Long> lengths) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (file.length() >= 4 && input.readInt() == ArvosCacheStats.TRACE_MAGIC)
+			{
+				readBinaryTrace(input, urls, lengths);
+				return;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				int blank = line.indexOf(' ');
+				if (blank < 0)
+				{
+					continue;
+				}
+				lengths.add(Long.valueOf(line.substring(0, blank)));
+				urls.add(line.substring(blank + 1).trim());
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private static void readBinaryTrace(DataInputStream input, List<String> urls, List<Long> lengths) throws IOException
+	{
+		HashMap<String, Integer> misses = new HashMap<String, Integer>();
+		HashMap<String, Long> knownLengths = new HashMap<String, Long>();
+		try
+		{
+			int type;
+			while ((type = input.read()) >= 0)
+			{
+				readVarLong(input);
+				String url = Long.toHexString(input.readLong());
+				Long length = Long.valueOf(readVarLong(input));
+				switch (type)
+				{
+				case ArvosCacheStats.TRACE_HIT:
+					knownLengths.put(url, length);
+					urls.add(url);
+					lengths.add(length);
+					break;
+
+				case ArvosCacheStats.TRACE_MISS:
+					misses.put(url, Integer.valueOf(urls.size()));
+					urls.add(url);
+					lengths.add(knownLengths.containsKey(url) ? knownLengths.get(url) : Long.valueOf(0));
+					break;
+
+				case ArvosCacheStats.TRACE_ADD:
+					knownLengths.put(url, length);
+					Integer index = misses.remove(url);
+					if (index != null)
+					{
+						lengths.set(index.intValue(), length);
+					}
+					break;
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			// The last record of a trace still being written may be cut off
+		}
+	}
+
+	private static long readVarLong(DataInputStream input) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = input.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				break;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Creates a synthetic trace, textures are requested with a Zipf like
+	 * popularity and every few requests a scan of textures used only once
+	 * follows.
+	 * 
+	 * @param count
+	 *            The number of accesses.
+	 * @param urls
+	 *            Receives the urls accessed.
+	 * @param lengths
+	 *            Receives the numbers of bytes of the items accessed.
+	 */
+	public static void createTrace(int count, List<String> urls, List<Long> lengths)
+	{
+		Random random = new Random(42);
+		int textures = 2000;
+		int scans = 0;
+		while (urls.size() < count)
+		{
+			if (random.nextInt(100) == 0)
+			{
+				// An augment with many textures seen once
+				for (int i = 0; i < 50 && urls.size() < count; i++)
+				{
+					urls.add("http://scan/" + scans + "/" + i + ".png");
+					lengths.add(Long.valueOf(16 * 1024 + random.nextInt(256 * 1024)));
+				}
+				scans++;
+				continue;
+			}
+			int texture = (int) Math.pow(textures, random.nextDouble()) - 1;
+			urls.add("http://popular/" + texture + ".png");
+			lengths.add(Long.valueOf(4 * 1024 + (texture * 7919L) % (128 * 1024)));
+		}
+	}
+
+	/**
+	 * Replays a trace against each policy with the limits given scaled by
+	 * several factors and prints one line per run: policy, maximum files,
+	 * maximum size, hit ratio, byte hit ratio and number of evictions.
+	 * 
+	 * @param args
+	 *            The trace file or "synthetic", the maximum total size in bytes
+	 *            and the maximum number of files, 0 for no limit.
+	 * @throws IOException
+	 *             Read errors.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3)
+		{
+			System.err.println("Usage: ArvosCacheSimulator trace.txt|synthetic maxSize maxFiles");
+			return;
+		}
+
+		List<String> urls = new ArrayList<String>();
+		List<Long> lengths = new ArrayList<Long>();
+		if ("synthetic".equals(args[0]))
+		{
+			createTrace(200000, urls, lengths);
+		}
+		else
+		{
+			readTrace(new File(args[0]), urls, lengths);
+		}
+		long maxSize = Long.parseLong(args[1]);
+		long maxFiles = Long.parseLong(args[2]);
+		long totalLength = 0;
+		for (Long length : lengths)
+		{
+			totalLength += length.longValue();
+		}
+
+		System.out.println("# " + urls.size() + " accesses");
+		System.out.println("# policy,maxFiles,maxSize,hitRatio,byteHitRatio,evictions");
+		for (float scale : SCALES)
+		{
+			long scaledFiles = maxFiles > 0L ? Math.max(1L, (long) (maxFiles * scale)) : 0L;
+			long scaledSize = (long) (maxSize * scale);
+			long expectedFiles = scaledFiles > 0L ? scaledFiles : scaledSize / Math.max(1L, totalLength / Math.max(1, urls.size()));
+			for (IArvosCachePolicy policy : createPolicies(expectedFiles))
+			{
+				ArvosCacheSimulator simulator = new ArvosCacheSimulator(policy, scaledFiles, scaledSize);
+				for (int i = 0; i < urls.size(); i++)
+				{
+					simulator.access(urls.get(i), lengths.get(i).longValue());
+				}
+				System.out.println(simulator);
+			}
+		}
+	}
+}
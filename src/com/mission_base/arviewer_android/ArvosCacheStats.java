@@ -0,0 +1,565 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the ArvosCache.
+ * <p>
+ * Counts hits, misses, additions, evictions by reason and errors, and keeps
+ * latency histograms of the cache operations with power of two buckets of
+ * microseconds. All counters are atomic, recording a value does not take a
+ * lock.
+ * <p>
+ * Optionally the accesses are recorded to a binary trace file, which can be
+ * replayed by the ArvosCacheSimulator. The file starts with the magic number
+ * TRACE_MAGIC, each record consists of the record type byte, the milliseconds
+ * since the previous record as a variable length integer, a 64 bit FNV-1a hash
+ * of the url and the length of the item as a variable length integer. The
+ * length of a miss is 0, the length of the item is recorded when it is added.
+ * Only writing a trace record takes a lock, recording a value while no trace
+ * is recorded does not.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheStats
+{
+	/**
+	 * Cache lookups of texts and bitmaps.
+	 */
+	public static final int GET = 0;
+
+	/**
+	 * Additions of texts and bitmaps.
+	 */
+	public static final int ADD = 1;
+
+	/**
+	 * Decoding of cached bitmaps.
+	 */
+	public static final int DECODE = 2;
+
+	/**
+	 * Evictions of entries.
+	 */
+	public static final int EVICT = 3;
+
+	private static final String[] OPERATION_NAMES = { "get", "add", "decode", "evict" };
+
+	/**
+	 * The entry was not accessed for longer than the maximum age.
+	 */
+	public static final int REASON_AGE = 0;
+
+	/**
+	 * The cache had too many entries.
+	 */
+	public static final int REASON_COUNT = 1;
+
+	/**
+	 * The cache used too many bytes.
+	 */
+	public static final int REASON_SIZE = 2;
+
+	/**
+	 * The entry could not be read.
+	 */
+	public static final int REASON_ERROR = 3;
+
+	private static final String[] REASON_NAMES = { "age", "count", "size", "error" };
+
+	/**
+	 * The number of histogram buckets, bucket i counts the durations between
+	 * 2^i and 2^(i+1) microseconds.
+	 */
+	public static final int BUCKETS = 32;
+
+	/**
+	 * The magic number at the start of a trace file.
+	 */
+	public static final int TRACE_MAGIC = 0x41525654;
+
+	/**
+	 * Trace record of a lookup served from the cache.
+	 */
+	public static final int TRACE_HIT = 0;
+
+	/**
+	 * Trace record of a lookup not served from the cache.
+	 */
+	public static final int TRACE_MISS = 1;
+
+	/**
+	 * Trace record of an addition.
+	 */
+	public static final int TRACE_ADD = 2;
+
+	/**
+	 * Trace record of an eviction.
+	 */
+	public static final int TRACE_EVICT = 3;
+
+	private final AtomicLong mHitCount = new AtomicLong(0);
+	private final AtomicLong mHitBytes = new AtomicLong(0);
+	private final AtomicLong mMissCount = new AtomicLong(0);
+	private final AtomicLong mAddCount = new AtomicLong(0);
+	private final AtomicLong mAddBytes = new AtomicLong(0);
+	private final AtomicLong mDeduplicatedCount = new AtomicLong(0);
+	private final AtomicLong mDeduplicatedBytes = new AtomicLong(0);
+	private final AtomicLong mErrorCount = new AtomicLong(0);
+	private volatile String mLastError = null;
+
+	private final AtomicLongArray mEvictionCounts = new AtomicLongArray(REASON_NAMES.length);
+	private final AtomicLongArray mEvictionBytes = new AtomicLongArray(REASON_NAMES.length);
+
+	private final AtomicLongArray mHistograms = new AtomicLongArray(OPERATION_NAMES.length * BUCKETS);
+	private final AtomicLongArray mTotalNanos = new AtomicLongArray(OPERATION_NAMES.length);
+
+	private final Object mTraceLock = new Object();
+	private volatile boolean mIsTracing = false;
+	private DataOutputStream mTrace = null;
+	private File mTraceFile = null;
+	private long mTraceTime = 0;
+
+	/**
+	 * Records a lookup served from the cache.
+	 * 
+	 * @param url
+	 *            The url found.
+	 * @param length
+	 *            The number of bytes of the item.
+	 */
+	public void recordHit(String url, long length)
+	{
+		mHitCount.incrementAndGet();
+		mHitBytes.addAndGet(length);
+		trace(TRACE_HIT, url, length);
+	}
+
+	/**
+	 * Records a lookup not served from the cache.
+	 * 
+	 * @param url
+	 *            The url not found.
+	 */
+	public void recordMiss(String url)
+	{
+		mMissCount.incrementAndGet();
+		trace(TRACE_MISS, url, 0);
+	}
+
+	/**
+	 * Records an addition.
+	 * 
+	 * @param url
+	 *            The url added.
+	 * @param length
+	 *            The number of bytes of the item.
+	 */
+	public void recordAdd(String url, long length)
+	{
+		mAddCount.incrementAndGet();
+		mAddBytes.addAndGet(length);
+		trace(TRACE_ADD, url, length);
+	}
+
+	/**
+	 * Records an addition whose content was already cached for another url.
+	 * 
+	 * @param length
+	 *            The number of bytes not stored again.
+	 */
+	public void recordDeduplication(long length)
+	{
+		mDeduplicatedCount.incrementAndGet();
+		mDeduplicatedBytes.addAndGet(length);
+	}
+
+	/**
+	 * Records an eviction.
+	 * 
+	 * @param url
+	 *            The url evicted.
+	 * @param length
+	 *            The number of bytes of the item.
+	 * @param reason
+	 *            The reason, one of the REASON constants.
+	 */
+	public void recordEviction(String url, long length, int reason)
+	{
+		mEvictionCounts.incrementAndGet(reason);
+		mEvictionBytes.addAndGet(reason, length);
+		trace(TRACE_EVICT, url, length);
+	}
+
+	/**
+	 * Records an error.
+	 * 
+	 * @param operation
+	 *            The operation failing, one of the operation constants.
+	 * @param e
+	 *            The exception caught.
+	 */
+	public void recordError(int operation, Exception e)
+	{
+		recordError(OPERATION_NAMES[operation], e);
+	}
+
+	private void recordError(String operation, Exception e)
+	{
+		mErrorCount.incrementAndGet();
+		mLastError = operation + ": " + e;
+	}
+
+	/**
+	 * Records the duration of an operation.
+	 * 
+	 * @param operation
+	 *            The operation, one of the operation constants.
+	 * @param startNanos
+	 *            The value of System.nanoTime() when the operation started.
+	 */
+	public void recordLatency(int operation, long startNanos)
+	{
+		long nanos = Math.max(0L, System.nanoTime() - startNanos);
+		mTotalNanos.addAndGet(operation, nanos);
+		mHistograms.incrementAndGet(operation * BUCKETS + getBucket(nanos / 1000L));
+	}
+
+	private static int getBucket(long micros)
+	{
+		return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1L, micros)));
+	}
+
+	/**
+	 * Returns the number of lookups served from the cache.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHitCount()
+	{
+		return mHitCount.get();
+	}
+
+	/**
+	 * Returns the number of lookups not served from the cache.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMissCount()
+	{
+		return mMissCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes served from the cache instead of being
+	 * downloaded.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getHitBytes()
+	{
+		return mHitBytes.get();
+	}
+
+	/**
+	 * Returns the ratio of lookups served from the cache.
+	 * 
+	 * @return The hit ratio between 0 and 1.
+	 */
+	public float getHitRatio()
+	{
+		long hits = mHitCount.get();
+		long requests = hits + mMissCount.get();
+		return requests == 0 ? 0f : (float) hits / requests;
+	}
+
+	/**
+	 * Returns the number of evictions for a reason.
+	 * 
+	 * @param reason
+	 *            The reason, one of the REASON constants.
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount(int reason)
+	{
+		return mEvictionCounts.get(reason);
+	}
+
+	/**
+	 * Returns an upper bound of a percentile of the durations of an operation.
+	 * 
+	 * @param operation
+	 *            The operation, one of the operation constants.
+	 * @param percentile
+	 *            The percentile between 0 and 100.
+	 * @return The duration in microseconds or 0 if nothing was recorded.
+	 */
+	public long getPercentileMicros(int operation, float percentile)
+	{
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			count += mHistograms.get(operation * BUCKETS + i);
+		}
+		long rank = (long) Math.ceil(count * percentile / 100f);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS && count > 0; i++)
+		{
+			seen += mHistograms.get(operation * BUCKETS + i);
+			if (seen >= rank)
+			{
+				return 1L << (i + 1);
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Starts recording the accesses to a trace file, a trace recorded before
+	 * is closed.
+	 * 
+	 * @param file
+	 *            The trace file.
+	 * @throws IOException
+	 *             Write errors.
+	 */
+	public void startTrace(File file) throws IOException
+	{
+		synchronized (mTraceLock)
+		{
+			stopTrace();
+			DataOutputStream trace = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			trace.writeInt(TRACE_MAGIC);
+			mTrace = trace;
+			mTraceFile = file;
+			mTraceTime = System.currentTimeMillis();
+			mIsTracing = true;
+		}
+	}
+
+	/**
+	 * Stops recording the accesses and closes the trace file.
+	 */
+	public void stopTrace()
+	{
+		synchronized (mTraceLock)
+		{
+			if (mTrace == null)
+			{
+				return;
+			}
+			mIsTracing = false;
+			try
+			{
+				mTrace.close();
+			}
+			catch (IOException e)
+			{
+				recordError("trace", e);
+			}
+			mTrace = null;
+			mTraceFile = null;
+		}
+	}
+
+	/**
+	 * Writes the buffered trace records to the trace file.
+	 */
+	public void flushTrace()
+	{
+		synchronized (mTraceLock)
+		{
+			if (mTrace == null)
+			{
+				return;
+			}
+			try
+			{
+				mTrace.flush();
+			}
+			catch (IOException e)
+			{
+				recordError("trace", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether accesses are recorded.
+	 * 
+	 * @return True if a trace file is open.
+	 */
+	public boolean isTracing()
+	{
+		return mIsTracing;
+	}
+
+	private void trace(int type, String url, long length)
+	{
+		if (!mIsTracing)
+		{
+			return;
+		}
+		synchronized (mTraceLock)
+		{
+			if (mTrace == null)
+			{
+				return;
+			}
+			try
+			{
+				long now = System.currentTimeMillis();
+				mTrace.writeByte(type);
+				writeVarLong(mTrace, Math.max(0L, now - mTraceTime));
+				mTrace.writeLong(hash(url));
+				writeVarLong(mTrace, length);
+				mTraceTime = now;
+			}
+			catch (IOException e)
+			{
+				// A broken trace is abandoned, the cache keeps working
+				recordError("trace", e);
+				mIsTracing = false;
+				mTrace = null;
+				mTraceFile = null;
+			}
+		}
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Returns the 64 bit FNV-1a hash of a url, the urls themselves are not
+	 * recorded in traces.
+	 * 
+	 * @param url
+	 *            The url.
+	 * @return The hash.
+	 */
+	public static long hash(String url)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++)
+		{
+			hash ^= url.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Writes the statistics to a text file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param header
+	 *            A text written before the statistics.
+	 * @throws IOException
+	 *             Write errors.
+	 */
+	public void dump(File file, String header) throws IOException
+	{
+		OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			writer.write(header);
+			writer.write(toString());
+			writer.write("\n# operation,bucketMicros,count\n");
+			for (int operation = 0; operation < OPERATION_NAMES.length; operation++)
+			{
+				for (int i = 0; i < BUCKETS; i++)
+				{
+					long count = mHistograms.get(operation * BUCKETS + i);
+					if (count > 0)
+					{
+						writer.write(OPERATION_NAMES[operation] + "," + (1L << i) + "," + count + "\n");
+					}
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Hits %d (%.0f%%), misses %d, %d bytes served from cache\n", mHitCount.get(), 100f * getHitRatio(), mMissCount.get(),
+				mHitBytes.get()));
+		sb.append(String.format("Added %d, %d bytes, %d shared content (%d bytes)\n", mAddCount.get(), mAddBytes.get(), mDeduplicatedCount.get(),
+				mDeduplicatedBytes.get()));
+		sb.append("Evicted");
+		for (int reason = 0; reason < REASON_NAMES.length; reason++)
+		{
+			sb.append(String.format("%s %s %d (%d bytes)", reason == 0 ? ":" : ",", REASON_NAMES[reason], mEvictionCounts.get(reason),
+					mEvictionBytes.get(reason)));
+		}
+		sb.append('\n');
+		for (int operation = 0; operation < OPERATION_NAMES.length; operation++)
+		{
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				count += mHistograms.get(operation * BUCKETS + i);
+			}
+			sb.append(String.format("%s: %d, mean %d us, p50 < %d us, p99 < %d us\n", OPERATION_NAMES[operation], count,
+					count == 0 ? 0 : mTotalNanos.get(operation) / 1000L / count, getPercentileMicros(operation, 50f), getPercentileMicros(operation, 99f)));
+		}
+		sb.append("Errors " + mErrorCount.get());
+		String lastError = mLastError;
+		if (lastError != null)
+		{
+			sb.append(", last " + lastError);
+		}
+		synchronized (mTraceLock)
+		{
+			if (mTraceFile != null)
+			{
+				sb.append("\nTracing to " + mTraceFile.getName());
+			}
+		}
+		return sb.toString();
+	}
+}
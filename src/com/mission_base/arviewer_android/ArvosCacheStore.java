@@ -0,0 +1,1008 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+package com.mission_base.arviewer_android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The store of the ArvosCache, the index of the cached items and their files
+ * in the cache directory. The store keeps items as bytes and does not depend
+ * on android, the ArvosCache encodes and decodes texts and bitmaps, so the
+ * store can also be driven on a plain java vm.
+ * <p>
+ * Each cached item is stored in a file, the last access time stamp of the item
+ * is used as file name. Each file's first line contains the url of the cached
+ * item, the cached item itself follows after that line. Shared items are
+ * stored in content addressed blob files named by the SHA-1 hash of their
+ * bytes, the first line of the file of a shared item contains the hash after
+ * the url and a tab and nothing follows. Urls with the same content share one
+ * blob, the blob is deleted with its last url, the reference counts are kept
+ * in memory only. The modification time of a file is the time the item was
+ * added, it is kept when the file is renamed on access and is used to decide
+ * whether an item is still fresh.
+ * <p>
+ * Files are written under a temporary name, synced and renamed, and only then
+ * recorded in an ArvosCacheJournal with their length and checksum. When the
+ * index is loaded only files recorded with their length are accepted, so
+ * files cut off by a crash are dropped without being read. The checksum is
+ * verified whenever an item is read.
+ * <p>
+ * The index of cached urls is a concurrent map, no global lock is held while
+ * reading or writing files. A new item is written to its own file first and
+ * only then added to the index, replacing a previous entry of the url. A file
+ * is opened and renamed while holding the lock of its entry only, reading it
+ * continues without a lock, an open file stays readable if its entry is
+ * deleted meanwhile. Items exceeding the limits are evicted by a task run on
+ * the executor given.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheStore
+{
+	/**
+	 * File name extension used for files in the cache.
+	 */
+	public static final String mExtension = ".arvos";
+
+	/**
+	 * The number of obsolete records the journal may contain before it is
+	 * rewritten, in addition to twice the number of records needed.
+	 */
+	public static final int MIN_JOURNAL_RECORDS = 256;
+
+	private final ConcurrentHashMap<String, ArvosCacheEntry> mEntryMap = new ConcurrentHashMap<String, ArvosCacheEntry>();
+	private final ConcurrentHashMap<String, ArvosCacheBlob> mBlobMap = new ConcurrentHashMap<String, ArvosCacheBlob>();
+	private final AtomicLong mSize = new AtomicLong(0);
+	private final AtomicLong mLastAccessTime = new AtomicLong(0);
+	private volatile File mCacheDir = null;
+
+	private final long mMaxAge;
+	private final long mMaxSize;
+	private final long mMaxFiles;
+	private final IArvosCachePolicy mPolicy;
+	private final ArvosCacheStats mStats;
+
+	// runs the eviction and the rewriting of the journal
+	private final Executor mExecutor;
+	private final AtomicBoolean mEvictionPending = new AtomicBoolean(false);
+	private final AtomicBoolean mCompactionPending = new AtomicBoolean(false);
+	private ArvosCacheJournal mJournal;
+
+	/**
+	 * Creates a store, it is used once its index is loaded.
+	 * 
+	 * @param maxAge
+	 *            Maximum age of cached files in milliseconds.
+	 * @param maxFiles
+	 *            Maximum number of files in cache.
+	 * @param maxSize
+	 *            Maximum total size of cache in bytes.
+	 * @param policy
+	 *            The policy choosing the files evicted.
+	 * @param stats
+	 *            The statistics the operations are counted in.
+	 * @param executor
+	 *            The executor running the eviction in the background.
+	 */
+	public ArvosCacheStore(long maxAge, long maxFiles, long maxSize, IArvosCachePolicy policy, ArvosCacheStats stats, Executor executor)
+	{
+		mMaxAge = maxAge;
+		mMaxFiles = maxFiles;
+		mMaxSize = maxSize;
+		mPolicy = policy;
+		mStats = stats;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Returns the cache directory.
+	 * 
+	 * @return The directory or null if the index is not loaded.
+	 */
+	public File getDirectory()
+	{
+		return mCacheDir;
+	}
+
+	/**
+	 * Returns the number of entries in the index.
+	 * 
+	 * @return The number of entries.
+	 */
+	public int size()
+	{
+		return mEntryMap.size();
+	}
+
+	/**
+	 * Returns the number of bytes used by the files of the entries and blobs.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getByteCount()
+	{
+		return mSize.get();
+	}
+
+	/**
+	 * Returns the name of the eviction policy.
+	 * 
+	 * @return The name.
+	 */
+	public String getPolicyName()
+	{
+		return mPolicy.getName();
+	}
+
+	/**
+	 * Loads the index from a cache directory, the files of the directory not
+	 * recorded in its journal are deleted. Called once before the store is
+	 * used.
+	 * 
+	 * @param cacheDir
+	 *            The cache directory.
+	 */
+	public void load(File cacheDir)
+	{
+		if (!cacheDir.exists())
+		{
+			cacheDir.mkdirs();
+		}
+
+		mJournal = new ArvosCacheJournal(cacheDir);
+		boolean hasJournal = mJournal.load();
+
+		File[] mFiles = cacheDir.listFiles();
+		if (mFiles == null)
+		{
+			mFiles = new File[0];
+		}
+
+		char[] inputBuffer = new char[1];
+		StringBuilder sb = new StringBuilder();
+		Map<String, ArvosCacheBlob> blobs = new HashMap<String, ArvosCacheBlob>();
+
+		for (File file : mFiles)
+		{
+			if (file.getName().endsWith(ArvosCacheJournal.TEMP_EXTENSION))
+			{
+				// Written when the process died
+				file.delete();
+				continue;
+			}
+			if (ArvosRangeDownload.isPartialFile(file))
+			{
+				// Kept to be resumed unless too old
+				if (mMaxAge > 0L && System.currentTimeMillis() - file.lastModified() > mMaxAge)
+				{
+					file.delete();
+				}
+				continue;
+			}
+			Long lastAccessTime = getLastAccessTime(file);
+			if (lastAccessTime == null)
+			{
+				continue;
+			}
+
+			try
+			{
+				FileInputStream fIn = new FileInputStream(file);
+				InputStreamReader isr = new InputStreamReader(fIn);
+
+				try
+				{
+					sb.setLength(0);
+					int length = 0;
+					while (isr.read(inputBuffer) == 1)
+					{
+						length++;
+
+						if ('\n' == inputBuffer[0])
+						{
+							ArvosCacheEntry entry = new ArvosCacheEntry();
+							String line = sb.toString();
+							int tab = line.indexOf('\t');
+							entry.url = tab < 0 ? line : line.substring(0, tab);
+							if (tab >= 0)
+							{
+								String hash = line.substring(tab + 1);
+								entry.blob = blobs.get(hash);
+								if (entry.blob == null)
+								{
+									entry.blob = new ArvosCacheBlob();
+									entry.blob.hash = hash;
+									blobs.put(hash, entry.blob);
+								}
+							}
+							entry.urlLength = length;
+							entry.lastAccessTime = lastAccessTime;
+							entry.fileLength = file.length();
+							entry.addedTime = file.lastModified();
+							entry.state = ArvosCacheEntry.READY;
+
+							// Without a journal, files of older versions are
+							// accepted once
+							Long crc = hasJournal ? mJournal.getEntryChecksum(entry.url, entry.fileLength) : Long.valueOf(-1L);
+							if (crc == null)
+							{
+								file.delete();
+								break;
+							}
+							entry.crc = crc.longValue();
+							addScanned(entry, cacheDir);
+							break;
+						}
+
+						sb.append(inputBuffer[0]);
+					}
+				}
+				finally
+				{
+					isr.close();
+				}
+			}
+			catch (Exception e)
+			{
+				continue;
+			}
+		}
+		addScannedBlobs(mFiles, blobs, cacheDir, hasJournal);
+		compact();
+		mCacheDir = cacheDir;
+
+		// The policy learns the entries in the order they were accessed
+		TreeMap<Long, ArvosCacheEntry> entries = new TreeMap<Long, ArvosCacheEntry>();
+		for (ArvosCacheEntry entry : mEntryMap.values())
+		{
+			entries.put(entry.lastAccessTime, entry);
+		}
+		for (ArvosCacheEntry entry : entries.values())
+		{
+			mPolicy.onAdd(entry.url, entry.getLength());
+		}
+		evict();
+	}
+
+	/**
+	 * Adds an entry found when scanning the cache directory, of two entries of
+	 * the same url the one accessed last is kept.
+	 */
+	private void addScanned(ArvosCacheEntry entry, File cacheDir)
+	{
+		ArvosCacheEntry other = mEntryMap.get(entry.url);
+		if (other != null)
+		{
+			if (other.lastAccessTime.longValue() > entry.lastAccessTime.longValue())
+			{
+				new File(cacheDir, entry.getFileName()).delete();
+				return;
+			}
+			new File(cacheDir, other.getFileName()).delete();
+			mSize.addAndGet(-other.fileLength);
+		}
+		mEntryMap.put(entry.url, entry);
+		mSize.addAndGet(entry.fileLength);
+		if (entry.lastAccessTime.longValue() > mLastAccessTime.get())
+		{
+			mLastAccessTime.set(entry.lastAccessTime.longValue());
+		}
+	}
+
+	/**
+	 * Adds the blob files found when scanning the cache directory and counts
+	 * their references, entries whose blob is missing and blobs no entry
+	 * references are deleted.
+	 */
+	private void addScannedBlobs(File[] files, Map<String, ArvosCacheBlob> blobs, File cacheDir, boolean hasJournal)
+	{
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (!file.isFile() || !name.endsWith(ArvosCacheBlob.mExtension))
+			{
+				continue;
+			}
+			String hash = name.substring(0, name.length() - ArvosCacheBlob.mExtension.length());
+			ArvosCacheBlob blob = blobs.get(hash);
+			Long crc = hasJournal ? mJournal.getBlobChecksum(hash, file.length()) : Long.valueOf(-1L);
+			if (blob == null || crc == null)
+			{
+				file.delete();
+				continue;
+			}
+			blob.length = file.length();
+			blob.crc = crc.longValue();
+			mBlobMap.put(blob.hash, blob);
+		}
+
+		for (ArvosCacheEntry entry : mEntryMap.values())
+		{
+			if (entry.blob == null)
+			{
+				continue;
+			}
+			if (mBlobMap.get(entry.blob.hash) != entry.blob)
+			{
+				mEntryMap.remove(entry.url);
+				new File(cacheDir, entry.getFileName()).delete();
+				mSize.addAndGet(-entry.fileLength);
+				continue;
+			}
+			entry.blob.refCount++;
+		}
+
+		for (ArvosCacheBlob blob : mBlobMap.values())
+		{
+			if (blob.refCount == 0)
+			{
+				mBlobMap.remove(blob.hash);
+				new File(cacheDir, blob.getFileName()).delete();
+				continue;
+			}
+			mSize.addAndGet(blob.length);
+		}
+	}
+
+	private Long getLastAccessTime(File file)
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+		String name = file.getName();
+		if (!name.endsWith(mExtension))
+		{
+			return null;
+		}
+		try
+		{
+			return Long.valueOf(name.replace(mExtension, ""));
+		}
+		catch (Exception e)
+		{
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a new access time, unique and larger than all access times
+	 * returned before.
+	 */
+	private Long getLastAccessTime()
+	{
+		while (true)
+		{
+			long last = mLastAccessTime.get();
+			long next = Math.max(System.currentTimeMillis(), last + 1);
+			if (mLastAccessTime.compareAndSet(last, next))
+			{
+				return Long.valueOf(next);
+			}
+		}
+	}
+
+	private final Runnable mEvictionRunnable = new Runnable()
+	{
+		public void run()
+		{
+			mEvictionPending.set(false);
+			evict();
+		}
+	};
+
+	private void scheduleEviction()
+	{
+		if (mEvictionPending.compareAndSet(false, true))
+		{
+			mExecutor.execute(mEvictionRunnable);
+		}
+	}
+
+	private final Runnable mCompactionRunnable = new Runnable()
+	{
+		public void run()
+		{
+			mCompactionPending.set(false);
+			compact();
+		}
+	};
+
+	/**
+	 * Rewrites the journal on the background thread once it contains too many
+	 * obsolete records.
+	 */
+	private void checkJournal()
+	{
+		if (mJournal.getRecordCount() > 2 * (mEntryMap.size() + mBlobMap.size()) + MIN_JOURNAL_RECORDS
+				&& mCompactionPending.compareAndSet(false, true))
+		{
+			mExecutor.execute(mCompactionRunnable);
+		}
+	}
+
+	/**
+	 * Rewrites the journal from the index.
+	 */
+	private void compact()
+	{
+		try
+		{
+			mJournal.rewrite(mEntryMap.values(), mBlobMap.values());
+		}
+		catch (IOException e)
+		{
+			mStats.recordError(ArvosCacheStats.ADD, e);
+		}
+	}
+
+	/**
+	 * Writes a file under a temporary name, syncs it and renames it.
+	 */
+	private static void writeFile(File file, byte[] head, byte[] body) throws IOException
+	{
+		File tempFile = new File(file.getPath() + ArvosCacheJournal.TEMP_EXTENSION);
+		FileOutputStream fOut = new FileOutputStream(tempFile);
+		boolean isWritten = false;
+		try
+		{
+			fOut.write(head);
+			if (body != null)
+			{
+				fOut.write(body);
+			}
+			fOut.getFD().sync();
+			isWritten = true;
+		}
+		finally
+		{
+			fOut.close();
+			if (!isWritten)
+			{
+				tempFile.delete();
+			}
+		}
+		if (!tempFile.renameTo(file))
+		{
+			tempFile.delete();
+			throw new IOException("Cache file not renamed " + file.getName());
+		}
+	}
+
+	private static long crc(byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/**
+	 * Deletes the entries not accessed for longer than the maximum age, then
+	 * the entries chosen by the policy while the cache exceeds its limits, at
+	 * least one entry is kept.
+	 */
+	private void evict()
+	{
+		if (mMaxAge > 0L)
+		{
+			long now = System.currentTimeMillis();
+			for (ArvosCacheEntry entry : mEntryMap.values())
+			{
+				if (mEntryMap.size() > 1 && now - entry.lastAccessTime.longValue() > mMaxAge)
+				{
+					evict(entry, ArvosCacheStats.REASON_AGE);
+				}
+			}
+		}
+
+		while (mEntryMap.size() > 1 && (isTooLarge() || isTooMany()))
+		{
+			int reason = isTooLarge() ? ArvosCacheStats.REASON_SIZE : ArvosCacheStats.REASON_COUNT;
+			String url = mPolicy.evict();
+			if (url == null)
+			{
+				break;
+			}
+			ArvosCacheEntry entry = mEntryMap.get(url);
+			if (entry != null)
+			{
+				evict(entry, reason);
+			}
+		}
+	}
+
+	private void evict(ArvosCacheEntry entry, int reason)
+	{
+		long start = System.nanoTime();
+		if (remove(entry))
+		{
+			mStats.recordEviction(entry.url, entry.getLength(), reason);
+			mStats.recordLatency(ArvosCacheStats.EVICT, start);
+		}
+	}
+
+	private boolean isTooLarge()
+	{
+		return mMaxSize > 0L && mSize.get() > mMaxSize;
+	}
+
+	private boolean isTooMany()
+	{
+		return mMaxFiles > 0L && mEntryMap.size() > mMaxFiles;
+	}
+
+
+	/**
+	 * Removes all entries and deletes their files.
+	 */
+	public void clear()
+	{
+		for (ArvosCacheEntry entry : mEntryMap.values())
+		{
+			remove(entry);
+		}
+	}
+
+	/**
+	 * Removes an entry from the index and deletes its file.
+	 * 
+	 * @return False if the entry was not in the index anymore.
+	 */
+	private boolean remove(ArvosCacheEntry entry)
+	{
+		synchronized (mJournal)
+		{
+			if (!mEntryMap.remove(entry.url, entry))
+			{
+				return false;
+			}
+			mJournal.deleteEntry(entry);
+		}
+		mPolicy.onRemove(entry.url);
+		delete(entry);
+		return true;
+	}
+
+	/**
+	 * Deletes the file of an entry no longer in the index, the journal
+	 * already records its removal or replacement.
+	 */
+	private void delete(ArvosCacheEntry entry)
+	{
+		synchronized (entry)
+		{
+			if (entry.state != ArvosCacheEntry.READY)
+			{
+				return;
+			}
+			entry.state = ArvosCacheEntry.DELETED;
+			new File(mCacheDir, entry.getFileName()).delete();
+		}
+		mSize.addAndGet(-entry.fileLength);
+		if (entry.blob != null)
+		{
+			release(entry.blob);
+		}
+	}
+
+	/**
+	 * Returns a blob with the given content with its reference count
+	 * incremented, the blob file is written if the content is not cached yet.
+	 * 
+	 * @return The blob or null if its file could not be written.
+	 */
+	private ArvosCacheBlob acquire(String hash, byte[] data)
+	{
+		while (true)
+		{
+			ArvosCacheBlob blob = mBlobMap.get(hash);
+			if (blob != null)
+			{
+				synchronized (blob)
+				{
+					if (!blob.isDeleted)
+					{
+						blob.refCount++;
+						mStats.recordDeduplication(blob.length);
+						return blob;
+					}
+				}
+				// Deleted meanwhile, it is replaced
+				mBlobMap.remove(hash, blob);
+				continue;
+			}
+
+			blob = new ArvosCacheBlob();
+			blob.hash = hash;
+			blob.length = data.length;
+			blob.crc = crc(data);
+			blob.refCount = 1;
+			synchronized (blob)
+			{
+				// Others acquiring the same content wait until the file is
+				// written
+				if (mBlobMap.putIfAbsent(hash, blob) != null)
+				{
+					continue;
+				}
+				try
+				{
+					writeFile(new File(mCacheDir, blob.getFileName()), data, null);
+				}
+				catch (IOException e)
+				{
+					mStats.recordError(ArvosCacheStats.ADD, e);
+					blob.isDeleted = true;
+					mBlobMap.remove(hash, blob);
+					return null;
+				}
+				mJournal.addBlob(blob);
+			}
+			mSize.addAndGet(blob.length);
+			return blob;
+		}
+	}
+
+	/**
+	 * Decrements the reference count of a blob, the blob is deleted when it
+	 * is no longer referenced.
+	 */
+	private void release(ArvosCacheBlob blob)
+	{
+		synchronized (blob)
+		{
+			if (--blob.refCount > 0 || blob.isDeleted)
+			{
+				return;
+			}
+			blob.isDeleted = true;
+			mBlobMap.remove(blob.hash, blob);
+			mJournal.deleteBlob(blob);
+			new File(mCacheDir, blob.getFileName()).delete();
+		}
+		mSize.addAndGet(-blob.length);
+	}
+
+	static String sha1(byte[] data) throws Exception
+	{
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+		StringBuilder sb = new StringBuilder(2 * digest.length);
+		for (byte b : digest)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Opens the blob of an entry or the file of an entry positioned after the
+	 * url line.
+	 * 
+	 * @return The input stream or null if the entry was deleted.
+	 */
+	private FileInputStream open(ArvosCacheEntry entry) throws IOException
+	{
+		FileInputStream inputStream;
+		synchronized (entry)
+		{
+			if (entry.state != ArvosCacheEntry.READY)
+			{
+				return null;
+			}
+			try
+			{
+				// The blob is not deleted while the entry references it
+				String fileName = entry.blob == null ? entry.getFileName() : entry.blob.getFileName();
+				inputStream = new FileInputStream(new File(mCacheDir, fileName));
+			}
+			catch (FileNotFoundException e)
+			{
+				return null;
+			}
+		}
+		if (entry.blob == null && entry.urlLength != inputStream.skip(entry.urlLength))
+		{
+			inputStream.close();
+			return null;
+		}
+		return inputStream;
+	}
+
+	/**
+	 * Records a hit of an entry and renames its file to a new access time.
+	 */
+	private void touch(ArvosCacheEntry entry)
+	{
+		mPolicy.onHit(entry.url);
+		Long lastAccessTime = getLastAccessTime();
+		synchronized (entry)
+		{
+			if (entry.state != ArvosCacheEntry.READY)
+			{
+				return;
+			}
+			File file = new File(mCacheDir, entry.getFileName());
+			Long previousAccessTime = entry.lastAccessTime;
+			entry.lastAccessTime = lastAccessTime;
+			if (!file.renameTo(new File(mCacheDir, entry.getFileName())))
+			{
+				entry.lastAccessTime = previousAccessTime;
+			}
+		}
+	}
+
+
+	private ArvosCacheEntry createEntry(String url)
+	{
+		ArvosCacheEntry entry = new ArvosCacheEntry();
+		entry.url = url;
+		entry.lastAccessTime = getLastAccessTime();
+		entry.addedTime = System.currentTimeMillis();
+		return entry;
+	}
+
+	/**
+	 * Adds an entry whose file is completely written to the index and records
+	 * it in the journal, a previous entry of the url is deleted.
+	 * <p>
+	 * The index is changed and the journal appended to in one step, so the
+	 * last record of a url in the journal is the entry in the index even if
+	 * the url is added or removed concurrently.
+	 */
+	private void publish(ArvosCacheEntry entry)
+	{
+		entry.state = ArvosCacheEntry.READY;
+		mSize.addAndGet(entry.fileLength);
+		ArvosCacheEntry other;
+		synchronized (mJournal)
+		{
+			mJournal.addEntry(entry);
+			other = mEntryMap.put(entry.url, entry);
+		}
+		if (other != null)
+		{
+			delete(other);
+		}
+		mPolicy.onAdd(entry.url, entry.getLength());
+		mStats.recordAdd(entry.url, entry.getLength());
+		scheduleEviction();
+	}
+	/**
+	 * Returns the bytes of a cached item.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @param maxAge
+	 *            Maximum age of the item in milliseconds, 0 for any age.
+	 * @return The bytes or null if the item is not in the cache, is older than
+	 *         the maximum age or could not be read.
+	 */
+	public byte[] get(String url, long maxAge)
+	{
+		long start = System.nanoTime();
+		ArvosCacheEntry entry = mEntryMap.get(url);
+		if (entry == null)
+		{
+			mPolicy.onMiss(url);
+			mStats.recordMiss(url);
+			return null;
+		}
+		if (maxAge > 0L && System.currentTimeMillis() - entry.addedTime > maxAge)
+		{
+			mStats.recordMiss(url);
+			return null;
+		}
+		try
+		{
+			byte[] data = read(entry);
+			if (data != null)
+			{
+				touch(entry);
+				mStats.recordHit(url, entry.getLength());
+				mStats.recordLatency(ArvosCacheStats.GET, start);
+				return data;
+			}
+			evict(entry, ArvosCacheStats.REASON_ERROR);
+		}
+		catch (Exception e)
+		{
+			mStats.recordError(ArvosCacheStats.GET, e);
+		}
+		mStats.recordMiss(url);
+		return null;
+	}
+
+	/**
+	 * Reads the bytes of an entry from its blob or its file and verifies their
+	 * checksum.
+	 * 
+	 * @return The bytes or null if the entry was deleted or its file is
+	 *         damaged.
+	 */
+	private byte[] read(ArvosCacheEntry entry) throws IOException
+	{
+		FileInputStream inputStream = open(entry);
+		if (inputStream == null)
+		{
+			return null;
+		}
+		try
+		{
+			ArvosCacheBlob blob = entry.blob;
+			long crc = blob == null ? entry.crc : blob.crc;
+			byte[] buffer = new byte[(int) (blob == null ? entry.fileLength - entry.urlLength : blob.length)];
+			int offset = 0;
+			int count;
+			while (offset < buffer.length && (count = inputStream.read(buffer, offset, buffer.length - offset)) > 0)
+			{
+				offset += count;
+			}
+			if (offset == buffer.length && (crc < 0L || crc == crc(buffer)))
+			{
+				return buffer;
+			}
+			return null;
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Evicts an item whose bytes were read but could not be decoded.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 */
+	public void invalidate(String url)
+	{
+		ArvosCacheEntry entry = mEntryMap.get(url);
+		if (entry != null)
+		{
+			evict(entry, ArvosCacheStats.REASON_ERROR);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes used by a cached item.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @return The number of bytes used or 0 if the item is not in the cache.
+	 */
+	public long getLength(String url)
+	{
+		ArvosCacheEntry entry = mEntryMap.get(url);
+		return entry == null ? 0L : entry.getLength();
+	}
+
+	/**
+	 * Returns the hash of the content of a shared item, urls with the same
+	 * content have the same hash.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @return The hash or null if the item is not cached or not shared.
+	 */
+	public String getContentHash(String url)
+	{
+		ArvosCacheEntry entry = mEntryMap.get(url);
+		return entry == null || entry.blob == null ? null : entry.blob.hash;
+	}
+
+	/**
+	 * Adds an item stored in the file of its entry, a previous item of the url
+	 * is replaced.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @param data
+	 *            The bytes of the item.
+	 * @return False if the item could not be written.
+	 */
+	public boolean add(String url, byte[] data)
+	{
+		long start = System.nanoTime();
+		ArvosCacheEntry entry = createEntry(url);
+		File file = new File(mCacheDir, entry.getFileName());
+
+		try
+		{
+			byte[] head = (url + "\n").getBytes("UTF-8");
+			entry.crc = crc(data);
+			writeFile(file, head, data);
+			entry.urlLength = head.length;
+			entry.fileLength = head.length + data.length;
+		}
+		catch (Exception e)
+		{
+			mStats.recordError(ArvosCacheStats.ADD, e);
+			return false;
+		}
+		publish(entry);
+		checkJournal();
+		mStats.recordLatency(ArvosCacheStats.ADD, start);
+		return true;
+	}
+
+	/**
+	 * Adds an item stored in the blob of its content, shared with all urls of
+	 * the same content. A previous item of the url is replaced.
+	 * 
+	 * @param url
+	 *            The url of the item.
+	 * @param data
+	 *            The bytes of the item.
+	 * @return False if the item could not be written.
+	 */
+	public boolean addShared(String url, byte[] data)
+	{
+		long start = System.nanoTime();
+		ArvosCacheEntry entry = createEntry(url);
+		File file = new File(mCacheDir, entry.getFileName());
+
+		try
+		{
+			entry.blob = acquire(sha1(data), data);
+			if (entry.blob == null)
+			{
+				return false;
+			}
+
+			byte[] head = (url + "\t" + entry.blob.hash + "\n").getBytes("UTF-8");
+			writeFile(file, head, null);
+			entry.urlLength = head.length;
+			entry.fileLength = head.length;
+		}
+		catch (Exception e)
+		{
+			mStats.recordError(ArvosCacheStats.ADD, e);
+			if (entry.blob != null)
+			{
+				release(entry.blob);
+			}
+			return false;
+		}
+		publish(entry);
+		checkJournal();
+		mStats.recordLatency(ArvosCacheStats.ADD, start);
+		return true;
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+package com.mission_base.arviewer_android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stresses the ArvosCacheStore with concurrent threads and measures its
+ * throughput on a plain java vm.
+ * <p>
+ * The stress run lets threads add, read and invalidate the items of a small
+ * set of urls under tight limits, so entries are replaced and evicted while
+ * they are read. Every item read is checked to be an item added for its url,
+ * complete and not mixed with another. Afterwards the files of the directory
+ * are checked against the index, and the index is loaded again from the
+ * directory and compared.
+ * <p>
+ * The benchmark runs 1, 2, 4 and 8 threads reading and adding items and prints
+ * the operations per second and latency percentiles as CSV.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCacheStress
+{
+	private static final int URL_COUNT = 100;
+	private static final int SHARED_COUNT = 20;
+	private static final long MAX_FILES = 48;
+	private static final long MAX_SIZE = 128 * 1024;
+
+	private static final int BENCHMARK_URL_COUNT = 256;
+	private static final int BENCHMARK_LENGTH = 4096;
+
+	private final AtomicLong mErrorCount = new AtomicLong(0);
+	private volatile String mFirstError = null;
+
+	private static String getUrl(int index)
+	{
+		return "http://stress.example.com/item" + index;
+	}
+
+	/**
+	 * Creates the bytes of an item, a header line naming the url or the
+	 * shared content and the seed, followed by bytes derived from the seed.
+	 */
+	private static byte[] createItem(String name, int seed, int length)
+	{
+		byte[] head;
+		try
+		{
+			head = (name + " " + seed + "\n").getBytes("UTF-8");
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		byte[] data = new byte[head.length + length];
+		System.arraycopy(head, 0, data, 0, head.length);
+		Random random = new Random(seed);
+		for (int i = head.length; i < data.length; i++)
+		{
+			data[i] = (byte) random.nextInt(256);
+		}
+		return data;
+	}
+
+	private static byte[] createItem(String url, int seed)
+	{
+		return createItem(url, seed, 256 + (seed & 0xfff));
+	}
+
+	private static byte[] createSharedItem(int index)
+	{
+		return createItem("shared", index, 1024 + 512 * index);
+	}
+
+	/**
+	 * Returns whether bytes read for a url are an item added for the url or a
+	 * shared item.
+	 */
+	private static boolean isValid(String url, byte[] data)
+	{
+		int end = 0;
+		while (end < data.length && data[end] != '\n')
+		{
+			end++;
+		}
+		if (end == data.length)
+		{
+			return false;
+		}
+		String head = new String(data, 0, end);
+		int space = head.lastIndexOf(' ');
+		if (space < 0)
+		{
+			return false;
+		}
+		String name = head.substring(0, space);
+		int seed;
+		try
+		{
+			seed = Integer.parseInt(head.substring(space + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+		if ("shared".equals(name))
+		{
+			return seed >= 0 && seed < SHARED_COUNT && Arrays.equals(data, createSharedItem(seed));
+		}
+		return name.equals(url) && Arrays.equals(data, createItem(url, seed));
+	}
+
+	private void fail(String message)
+	{
+		if (mErrorCount.incrementAndGet() == 1)
+		{
+			mFirstError = message;
+		}
+	}
+
+	private static ArvosCacheStore createStore(long maxFiles, long maxSize, ArvosCacheStats stats, ExecutorService executor)
+	{
+		return new ArvosCacheStore(0L, maxFiles, maxSize, new ArvosLruCachePolicy(), stats, executor);
+	}
+
+	/**
+	 * Waits until the tasks posted to the executor, and the tasks they posted,
+	 * are done.
+	 */
+	private static void drain(ExecutorService executor) throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			executor.submit(new Runnable()
+			{
+				public void run()
+				{
+				}
+			}).get();
+		}
+	}
+
+	private static File createDirectory() throws IOException
+	{
+		File dir = File.createTempFile("arvoscache", "");
+		if (!dir.delete() || !dir.mkdir())
+		{
+			throw new IOException("Directory not created " + dir);
+		}
+		return dir;
+	}
+
+	private static void deleteDirectory(File dir)
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Runs threads adding, reading and invalidating items, then checks the
+	 * directory and a reloaded index.
+	 * 
+	 * @return The number of errors found.
+	 */
+	private long stress(int threadCount, final int operationCount) throws Exception
+	{
+		File dir = createDirectory();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final ArvosCacheStore store = createStore(MAX_FILES, MAX_SIZE, new ArvosCacheStats(), executor);
+		store.load(dir);
+
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++)
+		{
+			final int seed = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Random random = new Random(seed);
+					for (int i = 0; i < operationCount; i++)
+					{
+						String url = getUrl(random.nextInt(URL_COUNT));
+						int operation = random.nextInt(100);
+						if (operation < 50)
+						{
+							byte[] data = store.get(url, 0L);
+							if (data != null && !isValid(url, data))
+							{
+								fail("Invalid item read for " + url);
+							}
+						}
+						else if (operation < 70)
+						{
+							store.add(url, createItem(url, random.nextInt(1 << 20)));
+						}
+						else if (operation < 90)
+						{
+							store.addShared(url, createSharedItem(random.nextInt(SHARED_COUNT)));
+						}
+						else if (operation < 95)
+						{
+							store.invalidate(url);
+						}
+						else
+						{
+							String hash = store.getContentHash(url);
+							if (hash != null && hash.length() != 40)
+							{
+								fail("Invalid content hash for " + url);
+							}
+						}
+					}
+				}
+			};
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		drain(executor);
+
+		checkDirectory(dir, store);
+		if (store.size() > MAX_FILES || (store.size() > 1 && store.getByteCount() > MAX_SIZE))
+		{
+			fail("Limits exceeded, " + store.size() + " entries, " + store.getByteCount() + " bytes");
+		}
+
+		Map<String, byte[]> items = new HashMap<String, byte[]>();
+		for (int i = 0; i < URL_COUNT; i++)
+		{
+			byte[] data = store.get(getUrl(i), 0L);
+			if (data != null)
+			{
+				items.put(getUrl(i), data);
+			}
+		}
+		drain(executor);
+
+		ArvosCacheStore reloaded = createStore(MAX_FILES, MAX_SIZE, new ArvosCacheStats(), executor);
+		reloaded.load(dir);
+		drain(executor);
+		if (reloaded.size() != store.size() || reloaded.getByteCount() != store.getByteCount())
+		{
+			fail("Reloaded index differs, " + reloaded.size() + " entries, " + reloaded.getByteCount() + " bytes instead of " + store.size()
+					+ " entries, " + store.getByteCount() + " bytes");
+		}
+		for (int i = 0; i < URL_COUNT; i++)
+		{
+			byte[] data = reloaded.get(getUrl(i), 0L);
+			if (!Arrays.equals(data, items.get(getUrl(i))))
+			{
+				fail("Reloaded item differs for " + getUrl(i));
+			}
+		}
+		checkDirectory(dir, reloaded);
+
+		executor.shutdown();
+		deleteDirectory(dir);
+		System.out.println("# stress: " + threadCount + " threads, " + operationCount + " operations each, " + store.size() + " entries, "
+				+ store.getByteCount() + " bytes, " + mErrorCount.get() + " errors");
+		return mErrorCount.get();
+	}
+
+	/**
+	 * Checks that the files of the directory are the files of the index.
+	 */
+	private void checkDirectory(File dir, ArvosCacheStore store)
+	{
+		int entryCount = 0;
+		long byteCount = 0;
+		File[] files = dir.listFiles();
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (name.endsWith(ArvosCacheJournal.TEMP_EXTENSION))
+			{
+				fail("Temporary file left " + name);
+			}
+			else if (name.endsWith(ArvosCacheStore.mExtension))
+			{
+				entryCount++;
+				byteCount += file.length();
+			}
+			else if (name.endsWith(ArvosCacheBlob.mExtension))
+			{
+				byteCount += file.length();
+			}
+		}
+		if (entryCount != store.size() || byteCount != store.getByteCount())
+		{
+			fail("Directory differs from index, " + entryCount + " files, " + byteCount + " bytes instead of " + store.size() + " entries, "
+					+ store.getByteCount() + " bytes");
+		}
+	}
+
+	/**
+	 * Runs threads reading and adding items of a working set that fits into
+	 * the cache.
+	 * 
+	 * @return The results as CSV.
+	 */
+	private static String benchmark(int threadCount, long durationMillis) throws Exception
+	{
+		File dir = createDirectory();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ArvosCacheStats stats = new ArvosCacheStats();
+		final ArvosCacheStore store = createStore(2 * BENCHMARK_URL_COUNT, 0L, stats, executor);
+		store.load(dir);
+		for (int i = 0; i < BENCHMARK_URL_COUNT; i++)
+		{
+			store.add(getUrl(i), createItem(getUrl(i), i, BENCHMARK_LENGTH));
+		}
+
+		final AtomicBoolean isRunning = new AtomicBoolean(true);
+		final AtomicLong getCount = new AtomicLong(0);
+		final AtomicLong addCount = new AtomicLong(0);
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++)
+		{
+			final int seed = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Random random = new Random(seed);
+					while (isRunning.get())
+					{
+						int index = random.nextInt(BENCHMARK_URL_COUNT);
+						if (random.nextInt(10) == 0)
+						{
+							store.add(getUrl(index), createItem(getUrl(index), index, BENCHMARK_LENGTH));
+							addCount.incrementAndGet();
+						}
+						else
+						{
+							store.get(getUrl(index), 0L);
+							getCount.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		Thread.sleep(durationMillis);
+		isRunning.set(false);
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		drain(executor);
+		executor.shutdown();
+		deleteDirectory(dir);
+
+		double seconds = durationMillis / 1000.0;
+		return String.format("%d,%.0f,%.0f,%.0f,%.3f,%d,%d,%d", threadCount, (getCount.get() + addCount.get()) / seconds, getCount.get() / seconds,
+				addCount.get() / seconds, stats.getHitRatio(), stats.getPercentileMicros(ArvosCacheStats.GET, 50f),
+				stats.getPercentileMicros(ArvosCacheStats.GET, 99f), stats.getPercentileMicros(ArvosCacheStats.ADD, 99f));
+	}
+
+	/**
+	 * Runs the stress test with 8 threads and, if it passes, the benchmark
+	 * with 1, 2, 4 and 8 threads. The results of the benchmark are printed as
+	 * CSV, the process exits with status 1 if the stress test failed.
+	 * 
+	 * @param args
+	 *            Optional: the number of stress operations per thread and the
+	 *            duration of a benchmark run in milliseconds.
+	 * @throws Exception
+	 *             If the test could not be run.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int operationCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000L;
+
+		ArvosCacheStress stress = new ArvosCacheStress();
+		if (stress.stress(8, operationCount) > 0)
+		{
+			System.out.println("# stress failed: " + stress.mFirstError);
+			System.exit(1);
+		}
+
+		int[] threadCounts = { 1, 2, 4, 8 };
+		System.out.println("# threads,opsPerSecond,getsPerSecond,addsPerSecond,hitRatio,getP50Micros,getP99Micros,addP99Micros");
+		for (int threadCount : threadCounts)
+		{
+			System.out.println(benchmark(threadCount, durationMillis));
+		}
+	}
+}
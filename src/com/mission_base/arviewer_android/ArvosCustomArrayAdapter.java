@@ -37,6 +37,10 @@ import com.mission_base.arviewer_android.viewer.ArvosAugment;
 
 /**
  * Adapter used for displaying the list of augments.
+ * <p>
+ * The ids of the rows are the stable list ids of the augments, a row still
+ * showing the same augment instance is not bound again. Thumbnails of the
+ * augments are loaded asynchronously by an ArvosThumbnailLoader.
  * 
  * @author peter
  * 
@@ -46,13 +50,28 @@ public class ArvosCustomArrayAdapter extends ArrayAdapter<ArvosAugment>
 	private final Activity context;
 	private final ArrayList<ArvosAugment> augments;
 	private final int imageId;
-
-	public ArvosCustomArrayAdapter(Activity context, ArrayList<ArvosAugment> augments, int imageId)
+	private final ArvosThumbnailLoader thumbnailLoader;
+
+	/**
+	 * Creates the adapter.
+	 * 
+	 * @param context
+	 *            The activity showing the list.
+	 * @param augments
+	 *            The augments shown.
+	 * @param imageId
+	 *            The resource id of the image shown for augments without
+	 *            thumbnail and while a thumbnail is loaded.
+	 * @param thumbnailLoader
+	 *            The loader of the thumbnails.
+	 */
+	public ArvosCustomArrayAdapter(Activity context, ArrayList<ArvosAugment> augments, int imageId, ArvosThumbnailLoader thumbnailLoader)
 	{
 		super(context, R.layout.lvrowlayout, augments);
 		this.context = context;
 		this.augments = augments;
 		this.imageId = imageId;
+		this.thumbnailLoader = thumbnailLoader;
 	}
 
 	static class ViewContainer
@@ -61,6 +80,19 @@ public class ArvosCustomArrayAdapter extends ArrayAdapter<ArvosAugment>
 		public TextView txtTitle;
 		public TextView txtLine;
 		public TextView txtDescription;
+		public ArvosAugment augment;
+	}
+
+	@Override
+	public boolean hasStableIds()
+	{
+		return true;
+	}
+
+	@Override
+	public long getItemId(int position)
+	{
+		return augments.get(position).mListId;
 	}
 
 	@Override
@@ -101,11 +133,28 @@ public class ArvosCustomArrayAdapter extends ArrayAdapter<ArvosAugment>
 			viewContainer = (ViewContainer) rowView.getTag();
 		}
 
+		// ---an unchanged augment keeps its instance, the row is up to date---
+		ArvosAugment augment = augments.get(position);
+		if (viewContainer.augment == augment)
+		{
+			return rowView;
+		}
+		viewContainer.augment = augment;
+
 		// ---customize the content of each row based on position---
-		viewContainer.txtTitle.setText(augments.get(position).mName);
-		viewContainer.txtLine.setText(augments.get(position).mAuthor);
-		viewContainer.txtDescription.setText(augments.get(position).mDescription);
-		viewContainer.imageView.setImageResource(imageId);
+		viewContainer.txtTitle.setText(augment.mName);
+		viewContainer.txtLine.setText(augment.mAuthor);
+		viewContainer.txtDescription.setText(augment.mDescription);
+		if (augment.mThumbnailUrl != null)
+		{
+			// ---loaded asynchronously, a recycled row stops waiting for its old thumbnail---
+			thumbnailLoader.load(viewContainer.imageView, augment.mThumbnailUrl, imageId);
+		}
+		else
+		{
+			thumbnailLoader.cancel(viewContainer.imageView);
+			viewContainer.imageView.setImageResource(imageId);
+		}
 		return rowView;
 	}
 }
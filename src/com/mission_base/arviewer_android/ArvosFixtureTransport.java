@@ -0,0 +1,120 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Transport serving files from a fixture directory.
+ * <p>
+ * The file of an url is looked up by the host and path of the url, then by its
+ * path and finally by its file name, query and fragment are ignored. So
+ * http://www.mission-base.com/arvos/augments.json is served from
+ * www.mission-base.com/arvos/augments.json, arvos/augments.json or
+ * augments.json in the directory.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosFixtureTransport implements IArvosTransport
+{
+	private final File mDirectory;
+
+	/**
+	 * Creates a transport serving a directory.
+	 * 
+	 * @param directory
+	 *            The fixture directory.
+	 */
+	public ArvosFixtureTransport(File directory)
+	{
+		mDirectory = directory;
+	}
+
+	public String getName()
+	{
+		return "Fixtures " + mDirectory.getPath();
+	}
+
+	public InputStream open(String url, Map<String, String> headers) throws IOException
+	{
+		File file = getFile(url);
+		if (file == null)
+		{
+			throw new FileNotFoundException("No fixture for " + url);
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Returns the fixture file of an url.
+	 * 
+	 * @param url
+	 *            The url.
+	 * @return The file or null if there is none.
+	 */
+	public File getFile(String url)
+	{
+		String path = url;
+		int end = path.length();
+		int query = path.indexOf('?');
+		int fragment = path.indexOf('#');
+		if (query >= 0)
+		{
+			end = query;
+		}
+		if (fragment >= 0 && fragment < end)
+		{
+			end = fragment;
+		}
+		path = path.substring(0, end);
+		int scheme = path.indexOf("://");
+		if (scheme >= 0)
+		{
+			path = path.substring(scheme + 3);
+		}
+
+		// host and path, path, file name
+		int slash = path.indexOf('/');
+		String[] candidates = { path, slash < 0 ? null : path.substring(slash + 1), path.substring(path.lastIndexOf('/') + 1) };
+		for (String candidate : candidates)
+		{
+			if (candidate == null || candidate.length() == 0 || candidate.contains(".."))
+			{
+				continue;
+			}
+			File file = new File(mDirectory, candidate);
+			if (file.isFile())
+			{
+				return file;
+			}
+		}
+		return null;
+	}
+}
@@ -24,32 +24,56 @@
 package com.mission_base.arviewer_android;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.util.Log;
 import android.util.Pair;
 
 /**
  * Handling http downloads asynchronously.
+ * <p>
+ * Augment descriptions are served from the cache as long as they are fresh,
+ * in author mode they are always downloaded and the cached copy is only used
+ * if the download fails. The pages of the augments list are always downloaded
+ * and never cached. The download methods can also be called synchronously
+ * from a background thread, this is used by the prefetcher.
+ * <p>
+ * Concurrent downloads of the same url are coalesced into one network transfer,
+ * decode and cache write, all callers get the same result. Images are
+ * downloaded to a partial file in the cache directory, a broken download is
+ * resumed with a Range request instead of starting over.
+ * <p>
+ * The files are opened by a transport, so downloads can be served from
+ * fixtures or a simulated network instead of the web.
  * 
  * @author peter
  * 
  */
 public class ArvosHttpRequest
 {
+	/**
+	 * The zoom level of the tiles locations are quantized to with canonical
+	 * urls, tiles of level 15 are about 1.2 km wide at the equator.
+	 */
+	public static final int TILE_ZOOM = 15;
+
+	private static String mTag = "ArvosHttpRequest";
+	private static final ArvosSingleFlight<String> mTextFlights = new ArvosSingleFlight<String>();
+	private static final ArvosSingleFlight<Pair<String, Bitmap>> mImageFlights = new ArvosSingleFlight<Pair<String, Bitmap>>();
+	private static final ArvosHttpTransport mHttpTransport = new ArvosHttpTransport();
+
 	private Arvos mInstance;
 	private IArvosHttpReceiver mReceiver;
 	private Context mContext;
@@ -77,7 +101,19 @@ public class ArvosHttpRequest
 	 */
 	public void getText(String url)
 	{
-		new DownloadTextTask().execute(url);
+		new DownloadTextTask(mInstance.mAugmentsUrl.equals(url)).execute(url);
+	}
+
+	/**
+	 * Downloads a page of the augments list from the web, like the first page
+	 * it is neither cached nor recorded as a request of the user.
+	 * 
+	 * @param url
+	 *            The url of the page to download.
+	 */
+	public void getListText(String url)
+	{
+		new DownloadTextTask(true).execute(url);
 	}
 
 	/**
@@ -91,151 +127,272 @@ public class ArvosHttpRequest
 		new DownloadImageTask().execute(url);
 	}
 
-	private String createDownloadUrl(String url)
+	/**
+	 * Returns the number of downloads that waited for a download of the same
+	 * url in flight instead of transferring the file again.
+	 * 
+	 * @return The number of coalesced downloads.
+	 */
+	public static long getCoalescedCount()
+	{
+		return mTextFlights.getCoalescedCount() + mImageFlights.getCoalescedCount();
+	}
+
+	/**
+	 * Returns the download statistics as text.
+	 * 
+	 * @return The statistics.
+	 */
+	public static String getStatistics()
+	{
+		IArvosTransport transport = Arvos.getInstance().mTransport;
+		return "Text downloads: " + mTextFlights + "\nImage downloads: " + mImageFlights
+				+ (transport == null ? "" : "\n" + transport);
+	}
+
+	/**
+	 * Creates the url a text file is downloaded from.
+	 * <p>
+	 * By default the session, location, orientation and keys are added to the
+	 * url as parameters, so each request has a url of its own. With canonical
+	 * urls they are sent as X-Arvos-* request headers instead and the url stays
+	 * the same for all devices, so it can be cached by proxies and CDNs. The
+	 * augments list then only gets the tile of the location as a parameter.
+	 * <p>
+	 * The server has to answer a canonical url the same for all devices, the
+	 * X-Arvos-* headers must not select the answer unless it names them in a
+	 * Vary header. An augments list requested with an author or developer key
+	 * differs per key, so the keys stay in its url as parameters and the list
+	 * is cached per key. The server should mark such a list as
+	 * "Cache-Control: private", so shared caches do not keep it.
+	 * 
+	 * @param url
+	 *            The url of the file.
+	 * @param headers
+	 *            Receives the request headers.
+	 * @return The url to download.
+	 */
+	private String createDownloadUrl(String url, Map<String, String> headers)
 	{
+		ArvosPose pose = mInstance.getPose();
+		boolean isAuthor = mInstance.mIsAuthor;
+		boolean isAugmentsUrl = mInstance.mAugmentsUrl.equals(url);
+		String authorKey = mInstance.mAuthorKey;
+		if (!isAuthor || authorKey == null || authorKey.length() < 20)
+		{
+			authorKey = null;
+		}
+		String developerKey = mInstance.mDeveloperKey;
+		if (developerKey == null || developerKey.length() == 0)
+		{
+			developerKey = null;
+		}
+
+		if (mInstance.mCanonicalUrls)
+		{
+			headers.put("X-Arvos-Session", mInstance.mSessionId == null ? "" : mInstance.mSessionId);
+			headers.put("X-Arvos-Azimuth", String.valueOf(Math.round(pose.mCorrectedAzimuth)));
+			headers.put("X-Arvos-Author", String.valueOf(isAuthor));
+			headers.put("X-Arvos-Version", String.valueOf(mInstance.mVersion));
+			headers.put("X-Arvos-Platform", "Android");
+			if (!isAugmentsUrl)
+			{
+				return url;
+			}
+
+			url = addParameter(url, "tile=" + getTile(pose.mLatitude, pose.mLongitude, TILE_ZOOM));
+			if (authorKey != null)
+			{
+				url = addParameter(url, "akey=" + urlEncode(authorKey));
+			}
+			if (developerKey != null)
+			{
+				url = addParameter(url, "dkey=" + urlEncode(developerKey));
+			}
+			return url;
+		}
+
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append("id=");
 		stringBuilder.append(mInstance.mSessionId == null ? "" : mInstance.mSessionId);
 		stringBuilder.append("&lat=");
-		stringBuilder.append(mInstance.mLatitude);
+		stringBuilder.append(pose.mLatitude);
 		stringBuilder.append("&lon=");
-		stringBuilder.append(mInstance.mLongitude);
+		stringBuilder.append(pose.mLongitude);
 		stringBuilder.append("&azi=");
-		stringBuilder.append(mInstance.mCorrectedAzimuth);
-
-		boolean isAuthor = mInstance.mIsAuthor;
+		stringBuilder.append(pose.mCorrectedAzimuth);
 		stringBuilder.append("&aut=");
 		stringBuilder.append(isAuthor);
 		stringBuilder.append("&ver=");
 		stringBuilder.append(mInstance.mVersion);
-		stringBuilder.append("&ver=");
-		stringBuilder.append(mInstance.mVersion);
 		stringBuilder.append("&plat=Android");
 
-		if (mInstance.mAugmentsUrl.equals(url))
+		if (isAugmentsUrl)
 		{
-			String key = mInstance.mAuthorKey;
-			if (isAuthor && key != null && key.length() >= 20)
+			if (authorKey != null)
 			{
 				stringBuilder.append("&akey=");
-				stringBuilder.append(urlEncode(key));
+				stringBuilder.append(urlEncode(authorKey));
 			}
-
-			key = mInstance.mDeveloperKey;
-			if (key != null && key.length() > 0)
+			if (developerKey != null)
 			{
 				stringBuilder.append("&dkey=");
-				stringBuilder.append(urlEncode(key));
+				stringBuilder.append(urlEncode(developerKey));
 			}
 		}
 
-		if (url.contains("?"))
-		{
-			return url.replaceFirst("?", "?" + stringBuilder.toString() + "&");
-		}
-		else if (url.contains("#"))
+		int index = url.indexOf('?');
+		if (index < 0)
 		{
-			return url.replaceFirst("#", "#" + stringBuilder.toString() + "&");
+			index = url.indexOf('#');
 		}
-		else
+		if (index >= 0)
 		{
-			return url + "#" + stringBuilder.toString();
+			return url.substring(0, index + 1) + stringBuilder.toString() + "&" + url.substring(index + 1);
 		}
+		return url + "#" + stringBuilder.toString();
 	}
-	
-	private String downloadText(String url)
+
+	/**
+	 * Adds a parameter to the query of an url, in front of the fragment.
+	 */
+	private static String addParameter(String url, String parameter)
 	{
-		InputStream inputStream = null;
-		if (mInstance.mSimulateWeb)
+		int fragment = url.indexOf('#');
+		String head = fragment < 0 ? url : url.substring(0, fragment);
+		String tail = fragment < 0 ? "" : url.substring(fragment);
+		return head + (head.indexOf('?') < 0 ? "?" : "&") + parameter + tail;
+	}
+
+	/**
+	 * Returns the web map tile containing a location, locations are sent to
+	 * the server quantized to tiles so nearby devices request the same url.
+	 * 
+	 * @param latitude
+	 *            The latitude in degrees.
+	 * @param longitude
+	 *            The longitude in degrees.
+	 * @param zoom
+	 *            The zoom level of the tile.
+	 * @return The tile as zoom/x/y.
+	 */
+	public static String getTile(double latitude, double longitude, int zoom)
+	{
+		int count = 1 << zoom;
+		double latitudeRadians = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, latitude)));
+		int x = (int) Math.floor((longitude + 180.0) / 360.0 * count);
+		int y = (int) Math.floor((1.0 - Math.log(Math.tan(latitudeRadians) + 1.0 / Math.cos(latitudeRadians)) / Math.PI) / 2.0 * count);
+		x = Math.max(0, Math.min(count - 1, x));
+		y = Math.max(0, Math.min(count - 1, y));
+		return zoom + "/" + x + "/" + y;
+	}
+
+	/**
+	 * Downloads a text file synchronously, must not be called on the UI thread.
+	 * 
+	 * @param url
+	 *            The url of the file to download.
+	 * @param isPrefetch
+	 *            True if the download is a prefetch and not a request of the
+	 *            user.
+	 * @return "OK" followed by the text or "ER" followed by the error message.
+	 */
+	String downloadText(String url, boolean isPrefetch)
+	{
+		return downloadText(url, isPrefetch, mInstance.mAugmentsUrl.equals(url));
+	}
+
+	private String downloadText(final String url, boolean isPrefetch, boolean isList)
+	{
+		final boolean isCacheable = !isList;
+		String text = null;
+		if (isCacheable)
 		{
-			try
+			text = ArvosCache.getText(url, ArvosPrefetcher.MAX_TEXT_AGE);
+
+			// Authors may be editing the augment, they always get the current
+			// version and the cached text is only used if the download fails
+			if (text != null && (isPrefetch || !mInstance.mIsAuthor))
 			{
-				if (url.contains("augments.json"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.augments);
-				}
-				else if (url.contains("augment1.json"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.augment1);
-				}
-				else if (url.contains("augment2.json"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.augment2);
-				}
-				else if (url.contains("augment3.json"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.augment3);
-				}
-				else if (url.contains("augment4.json"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.augment4);
-				}
+				recordRequest(url, isPrefetch, true);
+				return "OK" + text;
+			}
+		}
 
-				if (inputStream != null)
+		String result;
+		try
+		{
+			result = mTextFlights.execute(url, new Callable<String>()
+			{
+				public String call()
 				{
-					StringBuilder stringBuilder = new StringBuilder();
-					stringBuilder.append("OK");
-
-					BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-					String line;
-					while ((line = reader.readLine()) != null)
-					{
-						line = line.trim();
-						if (!line.startsWith("#"))
-						{
-							stringBuilder.append(line);
-						}
-					}
-					return stringBuilder.toString();
+					return fetchText(url, isCacheable);
 				}
-			}
-			catch (Exception e)
+			});
+		}
+		catch (Exception e)
+		{
+			result = "ERException. " + e.getLocalizedMessage();
+		}
+		if (!result.startsWith("OK") && text != null)
+		{
+			recordRequest(url, isPrefetch, true);
+			return "OK" + text;
+		}
+		if (isCacheable)
+		{
+			recordRequest(url, isPrefetch, false);
+		}
+		return result;
+	}
+
+	private String fetchText(String url, boolean isCacheable)
+	{
+		String result = downloadText(url);
+		if (isCacheable && result.startsWith("OK"))
+		{
+			try
 			{
-				return "ERException. " + e.getLocalizedMessage();
+				ArvosCache.add(url, result.substring(2));
 			}
-			finally
+			catch (Exception e)
 			{
-				if (inputStream != null)
-				{
-					try
-					{
-						inputStream.close();
-					}
-					catch (IOException e)
-					{
-					}
-				}
+				return "ERCache write error. " + e.getLocalizedMessage();
 			}
 		}
+		return result;
+	}
+
+	private void recordRequest(String url, boolean isPrefetch, boolean isCached)
+	{
+		ArvosPrefetcher prefetcher = mInstance.mPrefetcher;
+		if (!isPrefetch && prefetcher != null)
+		{
+			prefetcher.recordRequest(url, isCached);
+		}
+	}
 
-		url = createDownloadUrl(url);
+	private String downloadText(String url)
+	{
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append("OK");
 
+		InputStream inputStream = null;
 		try
 		{
-			HttpClient httpClient = new DefaultHttpClient();
-			HttpResponse response = httpClient.execute(new HttpGet(url));
-			int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode == 200)
+			Map<String, String> headers = new HashMap<String, String>();
+			String downloadUrl = createDownloadUrl(url, headers);
+			inputStream = getTransport().open(downloadUrl, headers);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+			String line;
+			while ((line = reader.readLine()) != null)
 			{
-				HttpEntity entity = response.getEntity();
-				inputStream = entity.getContent();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-				String line;
-				while ((line = reader.readLine()) != null)
+				line = line.trim();
+				if (!line.startsWith("#"))
 				{
-					line = line.trim();
-					if (!line.startsWith("#"))
-					{
-						stringBuilder.append(line);
-					}
+					stringBuilder.append(line);
 				}
 			}
-			else
-			{
-				return "ERHTTP error status " + statusCode;
-			}
 		}
 		catch (Exception e)
 		{
@@ -276,23 +433,64 @@ public class ArvosHttpRequest
 		}
 	}
 
-	private static InputStream openHttpGETConnection(String url) throws Exception
+	/**
+	 * Returns the transport of the downloads, the one set in the Arvos
+	 * instance, the raw resources if the web is simulated, or the web.
+	 */
+	private IArvosTransport getTransport()
 	{
-		InputStream inputStream = null;
+		IArvosTransport transport = mInstance.mTransport;
+		if (transport != null)
+		{
+			return transport;
+		}
+		return mInstance.mSimulateWeb ? new ArvosResourceTransport(mContext, mHttpTransport) : mHttpTransport;
+	}
 
-		HttpClient httpclient = new DefaultHttpClient();
-		HttpResponse httpResponse = httpclient.execute(new HttpGet(url));
-		inputStream = httpResponse.getEntity().getContent();
+	/**
+	 * Downloads an image file synchronously, must not be called on the UI
+	 * thread.
+	 * 
+	 * @param url
+	 *            The url of the file to download.
+	 * @param isPrefetch
+	 *            True if the download is a prefetch and not a request of the
+	 *            user.
+	 * @return "OK" or "ER" followed by the error message, and the bitmap. The
+	 *         bitmap may be shared with concurrent callers and must not be
+	 *         recycled.
+	 */
+	public Pair<String, Bitmap> downloadImage(String url, boolean isPrefetch)
+	{
+		return downloadImage(url, isPrefetch, true);
+	}
 
-		return inputStream;
+	/**
+	 * Downloads an image file synchronously without recording it as a request
+	 * of the user, for images derived from requests already recorded, like the
+	 * textures of other resolutions of an object. Must not be called on the UI
+	 * thread.
+	 * 
+	 * @param url
+	 *            The url of the file to download.
+	 * @return "OK" or "ER" followed by the error message, and the bitmap. The
+	 *         bitmap may be shared with concurrent callers and must not be
+	 *         recycled.
+	 */
+	public Pair<String, Bitmap> downloadDerivedImage(String url)
+	{
+		return downloadImage(url, false, false);
 	}
 
-	private Pair<String, Bitmap> downloadImage(String url)
+	private Pair<String, Bitmap> downloadImage(final String url, boolean isPrefetch, boolean isRecorded)
 	{
-		Bitmap bitmap;
 		try
 		{
-			bitmap = ArvosCache.getBitmap(url);
+			Bitmap bitmap = ArvosCache.getBitmap(url);
+			if (isRecorded)
+			{
+				recordRequest(url, isPrefetch, bitmap != null);
+			}
 			if (bitmap != null)
 			{
 				return new Pair<String, Bitmap>("OK", bitmap);
@@ -303,62 +501,40 @@ public class ArvosHttpRequest
 			return new Pair<String, Bitmap>("ERCache read error. " + e.getLocalizedMessage(), null);
 		}
 
-		InputStream inputStream = null;
-		if (mInstance.mSimulateWeb)
+		try
 		{
-			try
+			return mImageFlights.execute(url, new Callable<Pair<String, Bitmap>>()
 			{
-				if (url.contains("one.png"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.one);
-				}
-				else if (url.contains("two.png"))
-				{
-					inputStream = mContext.getResources().openRawResource(R.raw.two);
-				}
-				else if (url.contains("three.png"))
+				public Pair<String, Bitmap> call()
 				{
-					inputStream = mContext.getResources().openRawResource(R.raw.three);
+					return fetchImage(url);
 				}
+			});
+		}
+		catch (Exception e)
+		{
+			return new Pair<String, Bitmap>("ERException. " + e.getLocalizedMessage(), null);
+		}
+	}
 
-				if (inputStream != null)
-				{
-					bitmap = BitmapFactory.decodeStream(inputStream);
-					try
-					{
-						ArvosCache.add(url, bitmap);
-					}
-					catch (Exception e)
-					{
-						return new Pair<String, Bitmap>("ERCache write error. " + e.getLocalizedMessage(), null);
-					}
-
-					return new Pair<String, Bitmap>("OK", bitmap);
-				}
-			}
-			catch (Exception e)
-			{
-				return new Pair<String, Bitmap>("ERException. " + e.getLocalizedMessage(), null);
-			}
-			finally
-			{
-				if (inputStream != null)
-				{
-					try
-					{
-						inputStream.close();
-					}
-					catch (IOException e)
-					{
-					}
-				}
-			}
+	private Pair<String, Bitmap> fetchImage(String url)
+	{
+		IArvosTransport transport = getTransport();
+		File partialFile = transport instanceof ArvosHttpTransport ? ArvosCache.getPartialFile(url) : null;
+		if (partialFile != null)
+		{
+			return downloadResumable(url, partialFile);
 		}
 
+		InputStream inputStream = null;
 		try
 		{
-			inputStream = openHttpGETConnection(url);
-			bitmap = BitmapFactory.decodeStream(inputStream);
+			inputStream = transport.open(url, null);
+			Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+			if (bitmap == null)
+			{
+				return new Pair<String, Bitmap>("ERImage not decoded.", null);
+			}
 			try
 			{
 				ArvosCache.add(url, bitmap);
@@ -389,14 +565,59 @@ public class ArvosHttpRequest
 		}
 	}
 
+	/**
+	 * Downloads an image to a partial file, resuming after broken connections,
+	 * and decodes it once complete.
+	 */
+	private Pair<String, Bitmap> downloadResumable(String url, File partialFile)
+	{
+		ArvosRangeDownload download = new ArvosRangeDownload(url, partialFile);
+		File file;
+		try
+		{
+			file = download.download();
+		}
+		catch (IOException e)
+		{
+			Log.d(mTag, "Download failed after " + download.getAttemptCount() + " attempts, " + partialFile.length() + " bytes kept " + url);
+			return new Pair<String, Bitmap>("ERNetwork error. " + e.getLocalizedMessage(), null);
+		}
+		if (download.getResumedBytes() > 0)
+		{
+			Log.d(mTag, "Download resumed, " + download.getResumedBytes() + " bytes not downloaded again " + url);
+		}
+
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+		download.delete();
+		if (bitmap == null)
+		{
+			return new Pair<String, Bitmap>("ERImage not decoded.", null);
+		}
+		try
+		{
+			ArvosCache.add(url, bitmap);
+		}
+		catch (Exception e)
+		{
+			return new Pair<String, Bitmap>("ERCache write error. " + e.getLocalizedMessage(), null);
+		}
+		return new Pair<String, Bitmap>("OK", bitmap);
+	}
+
 	private class DownloadTextTask extends AsyncTask<String, Void, String>
 	{
 		private String url;
+		private final boolean mIsList;
+
+		DownloadTextTask(boolean isList)
+		{
+			mIsList = isList;
+		}
 
 		protected String doInBackground(String... urls)
 		{
 			url = urls[0];
-			return downloadText(url);
+			return downloadText(url, false, mIsList);
 		}
 
 		@Override
@@ -413,7 +634,7 @@ public class ArvosHttpRequest
 		protected Pair<String, Bitmap> doInBackground(String... urls)
 		{
 			url = urls[0];
-			return downloadImage(urls[0]);
+			return downloadImage(urls[0], false);
 		}
 
 		protected void onPostExecute(Pair<String, Bitmap> result)
@@ -0,0 +1,587 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A minimal local http server standing in for an augment server.
+ * <p>
+ * Files are served from memory with an ETag, Range and If-Range requests are
+ * answered as a web server would. Responses can be delayed by a latency and
+ * bodies limited to a bandwidth. To exercise the error handling of downloads
+ * the server can drop connections after a number of bytes of a body.
+ * <p>
+ * The main method runs the resumable downloads against the server, or serves
+ * a fixture directory to a device so loading times can be measured over a
+ * network of known quality.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosHttpStandIn
+{
+	private final ServerSocket mServerSocket;
+	private final ConcurrentHashMap<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+	private final ConcurrentHashMap<String, String> mETags = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger mRequestCount = new AtomicInteger(0);
+	private final AtomicInteger mDisconnectCount = new AtomicInteger(0);
+	private volatile long mDisconnectAfter = 0;
+	private volatile long mLatencyMillis = 0;
+	private volatile long mBandwidth = 0;
+	private Thread mThread;
+
+	/**
+	 * Creates a server listening on a free port of the loopback interface.
+	 * 
+	 * @throws IOException
+	 *             If no port could be bound.
+	 */
+	public ArvosHttpStandIn() throws IOException
+	{
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Creates a server listening on a port of all interfaces, so devices can
+	 * connect to it.
+	 * 
+	 * @param port
+	 *            The port.
+	 * @throws IOException
+	 *             If the port could not be bound.
+	 */
+	public ArvosHttpStandIn(int port) throws IOException
+	{
+		mServerSocket = new ServerSocket(port, 50);
+	}
+
+	/**
+	 * Returns the url of a path on the server.
+	 * 
+	 * @param path
+	 *            The path, starting with a slash.
+	 * @return The url.
+	 */
+	public String getUrl(String path)
+	{
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+	}
+
+	/**
+	 * Serves a file, a file replaced gets a new ETag.
+	 * 
+	 * @param path
+	 *            The path of the file, starting with a slash.
+	 * @param data
+	 *            The content of the file.
+	 */
+	public void put(String path, byte[] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		mETags.put(path, "\"" + Long.toHexString(crc.getValue()) + "-" + data.length + "\"");
+		mFiles.put(path, data);
+	}
+
+	/**
+	 * Serves the files of a directory and its subdirectories, the path of a
+	 * file is its path relative to the directory.
+	 * 
+	 * @param directory
+	 *            The directory.
+	 * @throws IOException
+	 *             If a file could not be read.
+	 */
+	public void putDirectory(File directory) throws IOException
+	{
+		putDirectory(directory, "");
+	}
+
+	private void putDirectory(File directory, String path) throws IOException
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				putDirectory(file, path + "/" + file.getName());
+			}
+			else
+			{
+				put(path + "/" + file.getName(), readFile(file));
+			}
+		}
+	}
+
+	/**
+	 * Sets the delay of the responses.
+	 * 
+	 * @param millis
+	 *            The delay in milliseconds.
+	 */
+	public void setLatency(long millis)
+	{
+		mLatencyMillis = millis;
+	}
+
+	/**
+	 * Sets the bandwidth of the bodies sent.
+	 * 
+	 * @param bytesPerSecond
+	 *            The bandwidth in bytes per second, 0 for no limit.
+	 */
+	public void setBandwidth(long bytesPerSecond)
+	{
+		mBandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the number of bytes of a body sent before the connection is dropped.
+	 * 
+	 * @param bytes
+	 *            The number of bytes, 0 to send bodies completely.
+	 */
+	public void setDisconnectAfter(long bytes)
+	{
+		mDisconnectAfter = bytes;
+	}
+
+	/**
+	 * Returns the number of requests received.
+	 * 
+	 * @return The number of requests.
+	 */
+	public int getRequestCount()
+	{
+		return mRequestCount.get();
+	}
+
+	/**
+	 * Returns the number of connections dropped on purpose.
+	 * 
+	 * @return The number of connections.
+	 */
+	public int getDisconnectCount()
+	{
+		return mDisconnectCount.get();
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 */
+	public synchronized void start()
+	{
+		if (mThread != null)
+		{
+			return;
+		}
+		mThread = new Thread("ArvosHttpStandIn")
+		{
+			public void run()
+			{
+				while (!mServerSocket.isClosed())
+				{
+					try
+					{
+						final Socket socket = mServerSocket.accept();
+						Thread thread = new Thread("ArvosHttpStandInConnection")
+						{
+							public void run()
+							{
+								serve(socket);
+							}
+						};
+						thread.setDaemon(true);
+						thread.start();
+					}
+					catch (IOException e)
+					{
+						// Closed by stop
+					}
+				}
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public synchronized void stop()
+	{
+		try
+		{
+			mServerSocket.close();
+		}
+		catch (IOException e)
+		{
+		}
+		mThread = null;
+	}
+
+	/**
+	 * Answers one request, the connection is closed afterwards.
+	 */
+	private void serve(Socket socket)
+	{
+		try
+		{
+			InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+			String requestLine = readLine(inputStream);
+			String range = null;
+			String ifRange = null;
+			for (String line = readLine(inputStream); line != null && line.length() > 0; line = readLine(inputStream))
+			{
+				int colon = line.indexOf(':');
+				if (colon < 0)
+				{
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if ("Range".equalsIgnoreCase(name))
+				{
+					range = value;
+				}
+				else if ("If-Range".equalsIgnoreCase(name))
+				{
+					ifRange = value;
+				}
+			}
+			if (requestLine == null)
+			{
+				return;
+			}
+			mRequestCount.incrementAndGet();
+			if (mLatencyMillis > 0)
+			{
+				Thread.sleep(mLatencyMillis);
+			}
+
+			OutputStream outputStream = socket.getOutputStream();
+			String[] parts = requestLine.split(" ");
+			if (parts.length < 2 || !"GET".equals(parts[0]))
+			{
+				writeHead(outputStream, "405 Method Not Allowed", 0, null);
+				return;
+			}
+			String path = parts[1];
+			int end = path.indexOf('?');
+			if (end >= 0)
+			{
+				path = path.substring(0, end);
+			}
+			byte[] data = mFiles.get(path);
+			String eTag = mETags.get(path);
+			if (data == null || eTag == null)
+			{
+				writeHead(outputStream, "404 Not Found", 0, null);
+				return;
+			}
+
+			int first = 0;
+			int last = data.length - 1;
+			String status = "200 OK";
+			StringBuilder headers = new StringBuilder();
+			headers.append("ETag: ").append(eTag).append("\r\n");
+			headers.append("Accept-Ranges: bytes\r\n");
+			if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(eTag)))
+			{
+				String[] bounds = range.substring(6).split("-", -1);
+				try
+				{
+					first = Integer.parseInt(bounds[0].trim());
+					if (bounds.length > 1 && bounds[1].trim().length() > 0)
+					{
+						last = Math.min(last, Integer.parseInt(bounds[1].trim()));
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					first = 0;
+				}
+				if (first >= data.length || first > last)
+				{
+					writeHead(outputStream, "416 Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + data.length + "\r\n");
+					return;
+				}
+				status = "206 Partial Content";
+				headers.append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(data.length).append("\r\n");
+			}
+
+			int length = last + 1 - first;
+			writeHead(outputStream, status, length, headers.toString());
+			long disconnectAfter = mDisconnectAfter;
+			boolean isDisconnect = disconnectAfter > 0 && disconnectAfter < length;
+			int count = isDisconnect ? (int) disconnectAfter : length;
+			long startNanos = System.nanoTime();
+			long bandwidth = mBandwidth;
+			int chunk = bandwidth > 0 ? (int) Math.max(1L, Math.min(8192L, bandwidth / 10L)) : count;
+			for (int sent = 0; sent < count;)
+			{
+				int n = Math.min(chunk, count - sent);
+				outputStream.write(data, first + sent, n);
+				sent += n;
+				outputStream.flush();
+				ArvosSimulatedTransport.throttle(startNanos, sent, bandwidth);
+			}
+			if (isDisconnect)
+			{
+				mDisconnectCount.incrementAndGet();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Stopped
+		}
+		catch (IOException e)
+		{
+			// The client went away
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	private static void writeHead(OutputStream outputStream, String status, long length, String headers) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Length: ").append(length).append("\r\n");
+		sb.append("Connection: close\r\n");
+		if (headers != null)
+		{
+			sb.append(headers);
+		}
+		sb.append("\r\n");
+		outputStream.write(sb.toString().getBytes("ISO-8859-1"));
+	}
+
+	private static String readLine(InputStream inputStream) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = inputStream.read()) >= 0)
+		{
+			if (c == '\n')
+			{
+				int length = sb.length();
+				return length > 0 && sb.charAt(length - 1) == '\r' ? sb.substring(0, length - 1) : sb.toString();
+			}
+			sb.append((char) c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream inputStream = new FileInputStream(file);
+		try
+		{
+			int offset = 0;
+			int count;
+			while (offset < data.length && (count = inputStream.read(data, offset, data.length - offset)) > 0)
+			{
+				offset += count;
+			}
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return data;
+	}
+
+	private static boolean check(String name, boolean isOk)
+	{
+		System.out.println((isOk ? "OK     " : "FAILED ") + name);
+		return isOk;
+	}
+
+	/**
+	 * Serves a fixture directory until the process is killed.
+	 */
+	private static void serve(String[] args) throws IOException
+	{
+		if (args.length < 3)
+		{
+			System.err.println("Usage: ArvosHttpStandIn serve directory port [latencyMillis] [bytesPerSecond] [disconnectAfter]");
+			return;
+		}
+		ArvosHttpStandIn server = new ArvosHttpStandIn(Integer.parseInt(args[2]));
+		server.putDirectory(new File(args[1]));
+		server.setLatency(args.length > 3 ? Long.parseLong(args[3]) : 0L);
+		server.setBandwidth(args.length > 4 ? Long.parseLong(args[4]) : 0L);
+		server.setDisconnectAfter(args.length > 5 ? Long.parseLong(args[5]) : 0L);
+		server.start();
+		System.out.println("Serving " + server.mFiles.size() + " files of " + args[1] + " on port " + args[2]);
+		for (String path : server.mFiles.keySet())
+		{
+			System.out.println(path);
+		}
+		try
+		{
+			server.mThread.join();
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+
+	/**
+	 * Runs resumable downloads against the server, dropping connections, or
+	 * serves a fixture directory.
+	 * 
+	 * @param args
+	 *            Optional: the length of the file served in bytes, or "serve"
+	 *            followed by the directory, the port, and optionally the
+	 *            latency, the bandwidth and the bytes sent before a disconnect.
+	 * @throws IOException
+	 *             If the server could not be started.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length > 0 && "serve".equals(args[0]))
+		{
+			serve(args);
+			return;
+		}
+
+		int length = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+
+		ArvosHttpStandIn server = new ArvosHttpStandIn();
+		server.start();
+		server.put("/texture.png", data);
+		String url = server.getUrl("/texture.png");
+		File partialFile = File.createTempFile("arvos", ArvosRangeDownload.PARTIAL_EXTENSION);
+		boolean isOk = true;
+		try
+		{
+			// Resumed within one download
+			server.setDisconnectAfter(length / 3 + 1);
+			ArvosRangeDownload download = new ArvosRangeDownload(url, partialFile);
+			File file = download.download();
+			isOk &= check("resumed after " + server.getDisconnectCount() + " disconnects, " + download.getAttemptCount() + " attempts, "
+					+ download.getTransferredBytes() + " bytes transferred", Arrays.equals(data, readFile(file))
+					&& download.getTransferredBytes() == length);
+			download.delete();
+
+			// Resumed by the next download
+			server.setDisconnectAfter(length / (2 * ArvosRangeDownload.MAX_ATTEMPTS) + 1);
+			download = new ArvosRangeDownload(url, partialFile);
+			boolean failed = false;
+			try
+			{
+				download.download();
+			}
+			catch (IOException e)
+			{
+				failed = true;
+			}
+			long kept = partialFile.length();
+			server.setDisconnectAfter(0);
+			download = new ArvosRangeDownload(url, partialFile);
+			file = download.download();
+			isOk &= check("resumed " + download.getResumedBytes() + " bytes kept by a failed download", failed && kept > 0
+					&& download.getResumedBytes() == kept && Arrays.equals(data, readFile(file)));
+			download.delete();
+
+			// Restarted when the file changed on the server
+			server.setDisconnectAfter(length / 2);
+			download = new ArvosRangeDownload(url, partialFile);
+			try
+			{
+				download.download();
+			}
+			catch (IOException e)
+			{
+			}
+			byte[] changed = data.clone();
+			changed[0]++;
+			server.put("/texture.png", changed);
+			server.setDisconnectAfter(0);
+			download = new ArvosRangeDownload(url, partialFile);
+			file = download.download();
+			isOk &= check("restarted after the ETag changed", download.getResumedBytes() == 0 && Arrays.equals(changed, readFile(file)));
+			download.delete();
+
+			// Errors are not retried
+			download = new ArvosRangeDownload(server.getUrl("/missing.png"), partialFile);
+			failed = false;
+			try
+			{
+				download.download();
+			}
+			catch (IOException e)
+			{
+				failed = true;
+			}
+			isOk &= check("not found after " + download.getAttemptCount() + " attempt", failed && download.getAttemptCount() == 1);
+		}
+		catch (SocketException e)
+		{
+			isOk = check("connection error " + e.getMessage(), false);
+		}
+		finally
+		{
+			new ArvosRangeDownload(url, partialFile).delete();
+			server.stop();
+		}
+		System.out.println(server.getRequestCount() + " requests, " + server.getDisconnectCount() + " disconnects");
+		if (!isOk)
+		{
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+/**
+ * Transport downloading files from the web.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosHttpTransport implements IArvosTransport
+{
+	public String getName()
+	{
+		return "Web";
+	}
+
+	public InputStream open(String url, Map<String, String> headers) throws IOException
+	{
+		HttpGet request = new HttpGet(url);
+		if (headers != null)
+		{
+			for (Map.Entry<String, String> header : headers.entrySet())
+			{
+				request.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		HttpClient httpClient = new DefaultHttpClient();
+		HttpResponse response = httpClient.execute(request);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != 200)
+		{
+			InputStream inputStream = response.getEntity().getContent();
+			if (inputStream != null)
+			{
+				inputStream.close();
+			}
+			throw new IOException("HTTP error status " + statusCode);
+		}
+		return response.getEntity().getContent();
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Filters and smooths the location fixes before they reach the scene.
+ * <p>
+ * Fixes that are too inaccurate or imply an impossible speed are rejected.
+ * Accepted fixes are smoothed by a simple Kalman filter that weights each fix
+ * by its accuracy, so the overlay does not jump with every new fix. Counters
+ * record how many fixes were accepted and rejected.
+ * <p>
+ * The filter does not use Android classes, so recorded traces can be replayed
+ * on a desktop JVM with
+ * 
+ * <pre>
+ * java com.mission_base.arviewer_android.ArvosLocationFilter trace.csv
+ * </pre>
+ * 
+ * where each line of the trace holds time in milliseconds, latitude,
+ * longitude, accuracy in meters and optionally speed in meters per second,
+ * separated by commas.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosLocationFilter
+{
+	/**
+	 * Fixes less accurate than this many meters are rejected once a fix was
+	 * accepted.
+	 */
+	public static final float MAX_ACCURACY = 200f;
+
+	/**
+	 * Fixes implying a speed above this many meters per second are rejected.
+	 */
+	public static final float MAX_SPEED = 150f;
+
+	/**
+	 * After this many milliseconds without an accepted fix the next fix
+	 * restarts the filter regardless of its accuracy.
+	 */
+	public static final long MAX_FIX_AGE = 1000L * 60 * 2;
+
+	/**
+	 * The minimal process noise in meters per second, the speed assumed for a
+	 * pedestrian.
+	 */
+	public static final float MIN_PROCESS_NOISE = 1.5f;
+
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	private double mLatitude;
+	private double mLongitude;
+	private double mVariance = -1;
+	private long mTime;
+
+	private long mAcceptedCount = 0;
+	private long mRejectedCount = 0;
+
+	/**
+	 * Forgets the current position, the next fix is accepted as is.
+	 */
+	public void reset()
+	{
+		mVariance = -1;
+	}
+
+	/**
+	 * Processes a location fix.
+	 * 
+	 * @param time
+	 *            The time of the fix in milliseconds.
+	 * @param latitude
+	 *            The latitude of the fix.
+	 * @param longitude
+	 *            The longitude of the fix.
+	 * @param accuracy
+	 *            The accuracy of the fix in meters.
+	 * @param speed
+	 *            The speed reported with the fix in meters per second, 0 if
+	 *            unknown.
+	 * @return True if the fix was accepted, the smoothed position is then
+	 *         available from getLatitude() and getLongitude().
+	 */
+	public boolean process(long time, double latitude, double longitude, float accuracy, float speed)
+	{
+		if (accuracy <= 0f)
+		{
+			accuracy = 1f;
+		}
+
+		if (mVariance < 0 || time - mTime > MAX_FIX_AGE)
+		{
+			mLatitude = latitude;
+			mLongitude = longitude;
+			mVariance = accuracy * accuracy;
+			mTime = time;
+			mAcceptedCount++;
+			return true;
+		}
+
+		long delta = time - mTime;
+		if (delta <= 0 && accuracy * accuracy >= mVariance)
+		{
+			// Older or simultaneous and not more accurate
+			mRejectedCount++;
+			return false;
+		}
+
+		if (accuracy > MAX_ACCURACY)
+		{
+			mRejectedCount++;
+			return false;
+		}
+		double distance = distance(mLatitude, mLongitude, latitude, longitude);
+		double seconds = Math.max(delta, 1000L) / 1000.0;
+		if (distance - accuracy > MAX_SPEED * seconds)
+		{
+			mRejectedCount++;
+			return false;
+		}
+
+		if (delta > 0)
+		{
+			float noise = Math.max(speed, MIN_PROCESS_NOISE);
+			mVariance += delta * noise * noise / 1000.0;
+			mTime = time;
+		}
+
+		double gain = mVariance / (mVariance + accuracy * accuracy);
+		mLatitude += gain * (latitude - mLatitude);
+		mLongitude += gain * (longitude - mLongitude);
+		mVariance = (1 - gain) * mVariance;
+
+		mAcceptedCount++;
+		return true;
+	}
+
+	/**
+	 * Approximates the distance in meters between two nearby positions.
+	 * 
+	 * @param latitude1
+	 *            The latitude of the first position.
+	 * @param longitude1
+	 *            The longitude of the first position.
+	 * @param latitude2
+	 *            The latitude of the second position.
+	 * @param longitude2
+	 *            The longitude of the second position.
+	 * @return The distance in meters.
+	 */
+	public static double distance(double latitude1, double longitude1, double latitude2, double longitude2)
+	{
+		double dy = (latitude2 - latitude1) * METERS_PER_DEGREE;
+		double dx = (longitude2 - longitude1) * METERS_PER_DEGREE * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Returns the smoothed latitude.
+	 * 
+	 * @return The smoothed latitude.
+	 */
+	public double getLatitude()
+	{
+		return mLatitude;
+	}
+
+	/**
+	 * Returns the smoothed longitude.
+	 * 
+	 * @return The smoothed longitude.
+	 */
+	public double getLongitude()
+	{
+		return mLongitude;
+	}
+
+	/**
+	 * Returns the estimated accuracy of the smoothed position.
+	 * 
+	 * @return The accuracy in meters.
+	 */
+	public float getAccuracy()
+	{
+		return mVariance < 0 ? Float.MAX_VALUE : (float) Math.sqrt(mVariance);
+	}
+
+	/**
+	 * Returns the number of fixes accepted.
+	 * 
+	 * @return The number of fixes accepted.
+	 */
+	public long getAcceptedCount()
+	{
+		return mAcceptedCount;
+	}
+
+	/**
+	 * Counts a fix rejected before it reached the filter, so the rejected
+	 * count covers all fixes not used.
+	 */
+	public void reject()
+	{
+		mRejectedCount++;
+	}
+
+	/**
+	 * Returns the number of fixes rejected.
+	 * 
+	 * @return The number of fixes rejected.
+	 */
+	public long getRejectedCount()
+	{
+		return mRejectedCount;
+	}
+
+	/**
+	 * Replays a recorded trace of fixes and prints the smoothed positions and
+	 * the counters.
+	 * 
+	 * @param args
+	 *            The trace file.
+	 * @throws IOException
+	 *             Read errors.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: ArvosLocationFilter trace.csv");
+			return;
+		}
+
+		ArvosLocationFilter filter = new ArvosLocationFilter();
+		ArvosLocationPolicy policy = new ArvosLocationPolicy();
+		double jumps = 0;
+		double lastLatitude = 0;
+		double lastLongitude = 0;
+		boolean hasLast = false;
+
+		BufferedReader reader = new BufferedReader(new FileReader(new File(args[0])));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] parts = line.split(",");
+				if (parts.length < 4)
+				{
+					continue;
+				}
+				long time = Long.parseLong(parts[0].trim());
+				double latitude = Double.parseDouble(parts[1].trim());
+				double longitude = Double.parseDouble(parts[2].trim());
+				float accuracy = Float.parseFloat(parts[3].trim());
+				float speed = parts.length > 4 ? Float.parseFloat(parts[4].trim()) : 0f;
+
+				boolean accepted = filter.process(time, latitude, longitude, accuracy, speed);
+				policy.update(time, speed, filter.getAccuracy(), -1f);
+				if (accepted)
+				{
+					if (hasLast)
+					{
+						jumps += distance(lastLatitude, lastLongitude, filter.getLatitude(), filter.getLongitude());
+					}
+					lastLatitude = filter.getLatitude();
+					lastLongitude = filter.getLongitude();
+					hasLast = true;
+				}
+				System.out.println(time + "," + (accepted ? "A" : "R") + "," + filter.getLatitude() + "," + filter.getLongitude() + ","
+						+ filter.getAccuracy() + "," + policy);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		System.out.println("# accepted " + filter.getAcceptedCount() + ", rejected " + filter.getRejectedCount() + ", path length "
+				+ Math.round(jumps) + " m");
+	}
+}
@@ -23,6 +23,8 @@
 
 package com.mission_base.arviewer_android;
 
+import java.util.List;
+
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -30,8 +32,16 @@ import android.location.LocationProvider;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.mission_base.arviewer_android.viewer.ArvosAugment;
+import com.mission_base.arviewer_android.viewer.ArvosPoi;
+
 /**
  * Listens for location updates from the LocationManager.
+ * <p>
+ * Fixes are filtered and smoothed by an ArvosLocationFilter before they are
+ * published to the instance. The update interval and the providers used are
+ * adapted by an ArvosLocationPolicy to the speed of the device, the accuracy of
+ * the position and the distance to the nearest poi of the augment shown.
  * 
  * @author peter
  * 
@@ -41,6 +51,11 @@ public class ArvosLocationListener implements LocationListener
 	private IArvosLocationReceiver mReceiver;
 	private LocationManager mLocationManager;
 	private Arvos mInstance;
+	private ArvosAugment mAugment;
+
+	private ArvosLocationFilter mFilter = new ArvosLocationFilter();
+	private ArvosLocationPolicy mPolicy = new ArvosLocationPolicy();
+	private boolean mIsRequesting = false;
 
 	/**
 	 * Creates a new listener.
@@ -58,15 +73,54 @@ public class ArvosLocationListener implements LocationListener
 		mInstance = Arvos.getInstance();
 	}
 
+	/**
+	 * Starts listening for location updates.
+	 */
 	public void onResume()
 	{
 		requestLocation();
 	}
 
+	/**
+	 * Stops listening for location updates.
+	 */
 	public void onPause()
 	{
 		Log.d("removeUpdates", "this");
 		mLocationManager.removeUpdates(this);
+		mIsRequesting = false;
+		Log.d("ArvosLocationListener", "fixes accepted " + mFilter.getAcceptedCount() + ", rejected " + mFilter.getRejectedCount());
+	}
+
+	/**
+	 * Sets the augment whose pois are used to adapt the update policy.
+	 * 
+	 * @param augment
+	 *            The augment shown, may be null.
+	 */
+	public void setAugment(ArvosAugment augment)
+	{
+		mAugment = augment;
+	}
+
+	/**
+	 * Returns the number of location fixes accepted.
+	 * 
+	 * @return The number of location fixes accepted.
+	 */
+	public long getAcceptedCount()
+	{
+		return mFilter.getAcceptedCount();
+	}
+
+	/**
+	 * Returns the number of location fixes rejected.
+	 * 
+	 * @return The number of location fixes rejected.
+	 */
+	public long getRejectedCount()
+	{
+		return mFilter.getRejectedCount();
 	}
 
 	private Location mCurrentBestLocation = null;
@@ -85,10 +139,58 @@ public class ArvosLocationListener implements LocationListener
 			onLocationChanged(false, location);
 		}
 
-		Log.d("requestLocationUpdates", LocationManager.GPS_PROVIDER);
-		mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10000, 3, this);
-		Log.d("requestLocationUpdates", LocationManager.NETWORK_PROVIDER);
-		mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 10000, 3, this);
+		requestUpdates();
+	}
+
+	private void requestUpdates()
+	{
+		if (mIsRequesting)
+		{
+			mLocationManager.removeUpdates(this);
+		}
+		mIsRequesting = true;
+
+		long minTime = mPolicy.getMinTime();
+		float minDistance = mPolicy.getMinDistance();
+		if (mPolicy.useGps())
+		{
+			Log.d("requestLocationUpdates", LocationManager.GPS_PROVIDER + " " + mPolicy);
+			mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime, minDistance, this);
+		}
+		if (mPolicy.useNetwork())
+		{
+			Log.d("requestLocationUpdates", LocationManager.NETWORK_PROVIDER + " " + mPolicy);
+			mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime, minDistance, this);
+		}
+	}
+
+	private float getNearestPoiDistance(double latitude, double longitude)
+	{
+		ArvosAugment augment = mAugment;
+		if (augment == null)
+		{
+			return -1f;
+		}
+
+		float nearest = -1f;
+		float[] results = new float[1];
+		synchronized (augment.mPois)
+		{
+			List<ArvosPoi> pois = augment.mPois;
+			for (ArvosPoi poi : pois)
+			{
+				if (poi.mLatitude == null || poi.mLongitude == null)
+				{
+					continue;
+				}
+				Location.distanceBetween(latitude, longitude, poi.mLatitude, poi.mLongitude, results);
+				if (nearest < 0f || results[0] < nearest)
+				{
+					nearest = results[0];
+				}
+			}
+		}
+		return nearest;
 	}
 
 	@Override
@@ -101,24 +203,42 @@ public class ArvosLocationListener implements LocationListener
 	{
 		// Log.d("onLocationChanged", "new " + isNew);
 		// Log.d("onLocationChanged", location.getProvider());
-
-		mInstance.mLatitude = (float) location.getLatitude();
-		// Log.d("onLocationChanged", "lat " + mInstance.mLatitude);
-
-		mInstance.mLongitude = (float) location.getLongitude();
-		// Log.d("onLocationChanged", "lon " + mInstance.mLongitude);
-		//
+		// Log.d("onLocationChanged", "lat " + location.getLatitude());
+		// Log.d("onLocationChanged", "lon " + location.getLongitude());
 		// Log.d("onLocationChanged", "alt " + location.getAltitude());
 		// Log.d("onLocationChanged", "acc " + location.getAccuracy());
 		// Log.d("onLocationChanged", "tim " + location.getTime());
 
+		if (!isBetterLocation(location, mCurrentBestLocation))
+		{
+			mFilter.reject();
+			return;
+		}
+
+		float accuracy = location.hasAccuracy() ? location.getAccuracy() : ArvosLocationFilter.MAX_ACCURACY;
+		float speed = location.hasSpeed() ? location.getSpeed() : 0f;
+		if (!mFilter.process(location.getTime(), location.getLatitude(), location.getLongitude(), accuracy, speed))
+		{
+			return;
+		}
+		mCurrentBestLocation = location;
+
+		Location smoothedLocation = new Location(location);
+		smoothedLocation.setLatitude(mFilter.getLatitude());
+		smoothedLocation.setLongitude(mFilter.getLongitude());
+		smoothedLocation.setAccuracy(mFilter.getAccuracy());
+
+		mInstance.setLocation((float) mFilter.getLatitude(), (float) mFilter.getLongitude());
+
+		float poiDistance = getNearestPoiDistance(mFilter.getLatitude(), mFilter.getLongitude());
+		if (mPolicy.update(location.getTime(), speed, mFilter.getAccuracy(), poiDistance) && mIsRequesting)
+		{
+			requestUpdates();
+		}
+
 		if (mReceiver != null)
 		{
-			if (isBetterLocation(location, mCurrentBestLocation))
-			{
-				mCurrentBestLocation = location;
-				mReceiver.onLocationChanged(true, location);
-			}
+			mReceiver.onLocationChanged(true, smoothedLocation);
 		}
 	}
 
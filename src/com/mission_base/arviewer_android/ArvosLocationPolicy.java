@@ -0,0 +1,234 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+/**
+ * Decides how often and from which providers location updates are requested.
+ * <p>
+ * Close to a poi, or when moving fast, updates are requested often and from
+ * GPS. Far away from all pois and standing still, updates are requested rarely
+ * and, once the position is known accurately enough, from the network
+ * provider only.
+ * <p>
+ * To keep the policy from flapping between tiers, a slower tier is only chosen
+ * once the distance and speed are beyond the thresholds by the hysteresis
+ * factor. GPS is dropped once the position is accurate, but only turned on
+ * again once the position got poor, and it stays on for a minimum time.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosLocationPolicy
+{
+	/**
+	 * Within this many meters of a poi the fastest updates are used.
+	 */
+	public static final float NEAR_DISTANCE = 50f;
+
+	/**
+	 * Beyond this many meters of all pois the slowest updates are used.
+	 */
+	public static final float FAR_DISTANCE = 1000f;
+
+	/**
+	 * Above this speed in meters per second the device is considered moving.
+	 */
+	public static final float MOVING_SPEED = 1f;
+
+	/**
+	 * Above this speed in meters per second the device is considered moving
+	 * fast.
+	 */
+	public static final float FAST_SPEED = 5f;
+
+	/**
+	 * If the position is less accurate than this many meters GPS is always
+	 * used.
+	 */
+	public static final float GOOD_ACCURACY = 50f;
+
+	/**
+	 * If GPS was dropped, it is used again once the position is less accurate
+	 * than this many meters.
+	 */
+	public static final float POOR_ACCURACY = 250f;
+
+	/**
+	 * Once turned on, GPS is used for at least this many milliseconds.
+	 */
+	public static final long MIN_GPS_MILLIS = 120000L;
+
+	/**
+	 * Factor the speeds are multiplied with and the distances divided by
+	 * before a slower tier is chosen.
+	 */
+	public static final float HYSTERESIS = 1.5f;
+
+	private static final int TIER_FAST = 0;
+	private static final int TIER_MOVING = 1;
+	private static final int TIER_IDLE = 2;
+	private static final int TIER_FAR = 3;
+
+	private int mTier = TIER_IDLE;
+	private long mGpsStartTime = 0;
+
+	private long mMinTime = 10000L;
+	private float mMinDistance = 3f;
+	private boolean mUseGps = true;
+	private boolean mUseNetwork = true;
+
+	/**
+	 * Updates the policy.
+	 * 
+	 * @param time
+	 *            The time of the current position in milliseconds.
+	 * @param speed
+	 *            The speed of the device in meters per second.
+	 * @param accuracy
+	 *            The accuracy of the current position in meters.
+	 * @param poiDistance
+	 *            The distance to the nearest poi in meters, negative if
+	 *            unknown.
+	 * @return True if the policy changed and the updates need to be
+	 *         requested again.
+	 */
+	public boolean update(long time, float speed, float accuracy, float poiDistance)
+	{
+		int tier = getTier(speed, poiDistance);
+		if (tier > mTier)
+		{
+			// Slower tiers need a margin
+			tier = Math.max(mTier, getTier(speed * HYSTERESIS, poiDistance < 0f ? poiDistance : poiDistance / HYSTERESIS));
+		}
+		mTier = tier;
+
+		long minTime;
+		float minDistance;
+		boolean useGps = true;
+		boolean useNetwork = true;
+
+		if (tier == TIER_FAST)
+		{
+			minTime = 1000L;
+			minDistance = 1f;
+		}
+		else if (tier == TIER_MOVING)
+		{
+			minTime = 5000L;
+			minDistance = 3f;
+		}
+		else if (tier == TIER_FAR)
+		{
+			minTime = 30000L;
+			minDistance = 20f;
+			if (mUseGps)
+			{
+				useGps = accuracy > GOOD_ACCURACY || time - mGpsStartTime < MIN_GPS_MILLIS;
+			}
+			else
+			{
+				useGps = accuracy > POOR_ACCURACY;
+			}
+		}
+		else
+		{
+			minTime = 10000L;
+			minDistance = 3f;
+		}
+		if (useGps && !mUseGps)
+		{
+			mGpsStartTime = time;
+		}
+
+		boolean changed = minTime != mMinTime || minDistance != mMinDistance || useGps != mUseGps || useNetwork != mUseNetwork;
+		mMinTime = minTime;
+		mMinDistance = minDistance;
+		mUseGps = useGps;
+		mUseNetwork = useNetwork;
+		return changed;
+	}
+
+	private static int getTier(float speed, float poiDistance)
+	{
+		if ((poiDistance >= 0f && poiDistance < NEAR_DISTANCE) || speed > FAST_SPEED)
+		{
+			return TIER_FAST;
+		}
+		if (speed > MOVING_SPEED || (poiDistance >= 0f && poiDistance < FAR_DISTANCE))
+		{
+			return TIER_MOVING;
+		}
+		if (poiDistance >= FAR_DISTANCE)
+		{
+			return TIER_FAR;
+		}
+		return TIER_IDLE;
+	}
+
+	/**
+	 * Returns the minimum time between updates.
+	 * 
+	 * @return The minimum time in milliseconds.
+	 */
+	public long getMinTime()
+	{
+		return mMinTime;
+	}
+
+	/**
+	 * Returns the minimum distance between updates.
+	 * 
+	 * @return The minimum distance in meters.
+	 */
+	public float getMinDistance()
+	{
+		return mMinDistance;
+	}
+
+	/**
+	 * Returns whether GPS updates are requested.
+	 * 
+	 * @return True if GPS updates are requested.
+	 */
+	public boolean useGps()
+	{
+		return mUseGps;
+	}
+
+	/**
+	 * Returns whether network updates are requested.
+	 * 
+	 * @return True if network updates are requested.
+	 */
+	public boolean useNetwork()
+	{
+		return mUseNetwork;
+	}
+
+	@Override
+	public String toString()
+	{
+		return mMinTime + " ms " + mMinDistance + " m" + (mUseGps ? " gps" : "") + (mUseNetwork ? " network" : "");
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key, the policy the ArvosCache used before
+ * policies were pluggable.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosLruCachePolicy implements IArvosCachePolicy
+{
+	// keys in access order, the least recently used first
+	private final LinkedHashMap<String, Long> mLengths = new LinkedHashMap<String, Long>();
+
+	public String getName()
+	{
+		return "LRU";
+	}
+
+	public synchronized void onHit(String key)
+	{
+		Long length = mLengths.remove(key);
+		if (length != null)
+		{
+			mLengths.put(key, length);
+		}
+	}
+
+	public void onMiss(String key)
+	{
+	}
+
+	public synchronized void onAdd(String key, long length)
+	{
+		mLengths.remove(key);
+		mLengths.put(key, Long.valueOf(length));
+	}
+
+	public synchronized void onRemove(String key)
+	{
+		mLengths.remove(key);
+	}
+
+	public synchronized String evict()
+	{
+		Iterator<String> iterator = mLengths.keySet().iterator();
+		if (!iterator.hasNext())
+		{
+			return null;
+		}
+		String key = iterator.next();
+		iterator.remove();
+		return key;
+	}
+}
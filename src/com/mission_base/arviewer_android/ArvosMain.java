@@ -23,6 +23,8 @@
 
 package com.mission_base.arviewer_android;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import android.app.ActionBar;
@@ -37,9 +39,11 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.Toast;
 
@@ -51,14 +55,41 @@ import com.mission_base.arviewer_android.viewer.ArvosAugment;
  * <P>
  * Downloads the list of augments and displays them in a list. When an augment
  * is selected it downloads the augments and calls the ArvosViewer app for
- * displaying the augment.
+ * displaying the augment. While the list is shown, the augments near the
+ * location are prefetched into the cache.
+ * <P>
+ * Refreshes of the list are applied incrementally by an ArvosAugmentList, the
+ * next page of a paged list is requested when the list is scrolled near its
+ * end. A page that failed to load is requested again after a delay doubling
+ * with each failure.
  * 
  * @author peter
  * 
  */
 public class ArvosMain extends ListActivity implements IArvosLocationReceiver, IArvosHttpReceiver
 {
+	private static String mTag = "ArvosMain";
+
 	private ArrayList<ArvosAugment> mAugments = new ArrayList<ArvosAugment>();
+	private ArvosAugmentList mAugmentList;
+	private ArvosThumbnailLoader mThumbnailLoader;
+
+	/**
+	 * The number of rows before the end of the list at which the next page is
+	 * requested.
+	 */
+	private static final int PAGE_PREFETCH_ROWS = 10;
+
+	/**
+	 * The delay in milliseconds before a page that failed to load is
+	 * requested again, doubled with each failure.
+	 */
+	private static final long PAGE_RETRY_MILLIS = 2000;
+
+	/**
+	 * The maximum delay before a page that failed to load is requested again.
+	 */
+	private static final long MAX_PAGE_RETRY_MILLIS = 60000;
 
 	private ArvosLocationListener mLocationListener;
 	private Arvos mInstance;
@@ -75,13 +106,36 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		setContentView(R.layout.activity_main);
 
 		mInstance = Arvos.getInstance();
+
+		// Start loading the cache index before anything needs the cache
+		ArvosCache.initialize(this, mMaxAge, mMaxFiles, mMaxSize, new ArvosTinyLfuCachePolicy(mMaxFiles));
 		mLocationListener = new ArvosLocationListener((LocationManager) getSystemService(Context.LOCATION_SERVICE), this);
 
-		ArvosCustomArrayAdapter adapter = new ArvosCustomArrayAdapter(this, mAugments, R.drawable.arvos_logo_black);
+		mThumbnailLoader = new ArvosThumbnailLoader(getApplicationContext());
+		ArvosCustomArrayAdapter adapter = new ArvosCustomArrayAdapter(this, mAugments, R.drawable.arvos_logo_black, mThumbnailLoader);
 		setListAdapter(adapter);
+		mAugmentList = new ArvosAugmentList(mAugments, adapter);
+		getListView().setOnScrollListener(new AbsListView.OnScrollListener()
+		{
+			public void onScrollStateChanged(AbsListView view, int scrollState)
+			{
+			}
+
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+			{
+				if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_ROWS)
+				{
+					requestNextPage();
+				}
+			}
+		});
 
 		updateFromPreferences();
-		ArvosCache.initialize(this, mMaxAge, mMaxFiles, mMaxSize);
+
+		if (mInstance.mPrefetcher == null)
+		{
+			mInstance.mPrefetcher = new ArvosPrefetcher(getApplicationContext());
+		}
 	}
 
 	/**
@@ -121,9 +175,11 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		else
 		{
 			actionBar.setTitle("Augments");
-			actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", mInstance.mLongitude, mInstance.mLatitude));
+			actionBar.setSubtitle(formatLocation());
 		}
 		mLocationListener.onResume();
+		mInstance.mPrefetcher.onResume();
+		mThumbnailLoader.onResume();
 	}
 
 	private ArvosHttpRequest mArvosHttpRequest = null;
@@ -138,6 +194,41 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		mArvosHttpRequest.getText(mInstance.mAugmentsUrl);
 	}
 
+	private ArvosHttpRequest mPageRequest = null;
+	private int mPageFailureCount = 0;
+	private long mPageRetryTime = 0;
+
+	/**
+	 * Requests the next page of the augment list, if there is one, no page is
+	 * being requested and the delay after a failure passed.
+	 */
+	private void requestNextPage()
+	{
+		String url = mAugmentList.getNextPageUrl();
+		if (url == null || mPageRequest != null || System.currentTimeMillis() < mPageRetryTime)
+		{
+			return;
+		}
+		mPageRequest = new ArvosHttpRequest(this, this);
+		mPageRequest.getListText(url);
+	}
+
+	private void onPageLoaded(boolean isLoaded)
+	{
+		mPageRequest = null;
+		if (isLoaded)
+		{
+			mPageFailureCount = 0;
+			mPageRetryTime = 0;
+		}
+		else
+		{
+			mPageFailureCount++;
+			long delay = PAGE_RETRY_MILLIS << Math.min(mPageFailureCount - 1, 5);
+			mPageRetryTime = System.currentTimeMillis() + Math.min(delay, MAX_PAGE_RETRY_MILLIS);
+		}
+	}
+
 	private void requestAugment(ArvosAugment augment)
 	{
 		ActionBar actionBar = getActionBar();
@@ -155,8 +246,17 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		super.onPause();
 
 		mLocationListener.onPause();
+		mInstance.mPrefetcher.onPause();
+		mThumbnailLoader.onPause();
+
+		ArvosCacheStats stats = ArvosCache.getStats();
+		if (stats != null)
+		{
+			stats.flushTrace();
+		}
 
 		mArvosHttpRequest = null;
+		mPageRequest = null;
 	}
 
 	/**
@@ -168,14 +268,32 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		{
 			ActionBar actionBar = getActionBar();
 			actionBar.setSubtitle("Error: " + text);
+			if (url.equals(mAugmentList.getNextPageUrl()))
+			{
+				// the page is requested again when the list is scrolled
+				onPageLoaded(false);
+				return;
+			}
 			mArvosHttpRequest = null;
 			return;
 		}
 
+		if (url.equals(mAugmentList.getNextPageUrl()))
+		{
+			error = mAugmentList.addPage(text, mInstance.getPose());
+			onPageLoaded(error.startsWith("OK"));
+			if (error.startsWith("ER"))
+			{
+				ActionBar actionBar = getActionBar();
+				actionBar.setSubtitle("Error: " + error.substring(2));
+			}
+			return;
+		}
+
 		if (mInstance.mAugmentsUrl.equals(url))
 		{
-			mAugments.clear();
-			error = ArvosAugment.parse(text, mAugments);
+			onPageLoaded(true);
+			error = mAugmentList.update(text, mInstance.getPose());
 			if (error.startsWith("RD"))
 			{
 				mInstance.mAugmentsUrl = error.substring(2);
@@ -190,12 +308,10 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 				return;
 			}
 
-			((ArvosCustomArrayAdapter) (this.getListAdapter())).notifyDataSetChanged();
-
 			ActionBar actionBar = getActionBar();
 
 			actionBar.setTitle("Augments");
-			actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", mInstance.mLongitude, mInstance.mLatitude));
+			actionBar.setSubtitle(formatLocation());
 			return;
 		}
 
@@ -226,6 +342,12 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 
 	private boolean hasInitialAugmentsRequest = false;
 
+	private String formatLocation()
+	{
+		ArvosPose pose = mInstance.getPose();
+		return String.format("Lon %.6f, Lat %.6f", pose.mLongitude, pose.mLatitude);
+	}
+
 	/**
 	 * Handles location updates sent from the location listener.
 	 */
@@ -239,12 +361,15 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		else
 		{
 			ActionBar actionBar = getActionBar();
-			actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", mInstance.mLongitude, mInstance.mLatitude));
+			actionBar.setSubtitle(formatLocation());
 		}
+		mAugmentList.sort(mInstance.getPose());
+		mInstance.mPrefetcher.onLocationChanged();
 	}
 
 	static final private int MENU_ITEM_REFRESH = Menu.FIRST;
 	static final private int MENU_PREFERENCES = Menu.FIRST + 1;
+	static final private int MENU_CACHE_STATISTICS = Menu.FIRST + 2;
 	private static final int SHOW_PREFERENCES = 1;
 
 	/**
@@ -261,6 +386,7 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		int menuItemText = R.string.menu_refresh;
 
 		menu.add(groupId, MENU_PREFERENCES, menuItemOrder, R.string.menu_preferences);
+		menu.add(groupId, MENU_CACHE_STATISTICS, menuItemOrder, R.string.menu_cache_statistics);
 
 		MenuItem menuItem = menu.add(groupId, menuItemId, menuItemOrder, menuItemText);
 		menuItem = menu.add(groupId, menuItemId++, menuItemOrder, menuItemText);
@@ -287,6 +413,8 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 			}
 			else
 			{
+				// apply the list even if it is unchanged, dropping later pages
+				mAugmentList.invalidate();
 				requestAugments();
 			}
 			return true;
@@ -294,10 +422,99 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		case (MENU_PREFERENCES):
 			showPreferences();
 			return true;
+
+		case (MENU_CACHE_STATISTICS):
+			showCacheStatistics();
+			return true;
 		}
 		return false;
 	}
 
+	private File getDiagnosticsDir()
+	{
+		File dir = getExternalCacheDir();
+		return dir == null ? getCacheDir() : dir;
+	}
+
+	private void showCacheStatistics()
+	{
+		AlertDialog.Builder ad = new AlertDialog.Builder(this);
+		ad.setTitle("Cache statistics");
+		ad.setMessage(ArvosCache.getStatistics() + "\n" + ArvosHttpRequest.getStatistics() + "\nAugment list changes: " + mAugmentList.getChangeCount());
+		ad.setPositiveButton("Close", null);
+		ad.setNeutralButton("Dump", new DialogInterface.OnClickListener()
+		{
+			public void onClick(DialogInterface dialog, int arg1)
+			{
+				dumpCacheStatistics();
+			}
+		});
+		ad.show();
+	}
+
+	private void dumpCacheStatistics()
+	{
+		final ArvosCacheStats stats = ArvosCache.getStats();
+		if (stats == null)
+		{
+			return;
+		}
+		final File file = new File(getDiagnosticsDir(), "cachestats-" + System.currentTimeMillis() + ".txt");
+
+		new Thread("ArvosCacheStatsWriter")
+		{
+			public void run()
+			{
+				String message;
+				try
+				{
+					stats.dump(file, ArvosCache.getStatistics() + "\n" + ArvosHttpRequest.getStatistics() + "\n\n");
+					message = "Cache statistics saved to " + file.getAbsolutePath();
+				}
+				catch (IOException e)
+				{
+					message = "Cache statistics not saved, " + e.getMessage();
+				}
+				final String text = message;
+				runOnUiThread(new Runnable()
+				{
+					public void run()
+					{
+						Toast.makeText(ArvosMain.this, text, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Starts or stops recording the cache trace as set in the preferences.
+	 */
+	private void updateCacheTrace()
+	{
+		ArvosCacheStats stats = ArvosCache.getStats();
+		if (stats == null)
+		{
+			return;
+		}
+		if (!mInstance.mRecordCacheTrace)
+		{
+			stats.stopTrace();
+		}
+		else if (!stats.isTracing())
+		{
+			File file = new File(getDiagnosticsDir(), "cachetrace-" + System.currentTimeMillis() + ".bin");
+			try
+			{
+				stats.startTrace(file);
+			}
+			catch (IOException e)
+			{
+				Log.d(mTag, "Cache trace not recorded, " + e.getMessage());
+			}
+		}
+	}
+
 	private void showPreferences()
 	{
 		Intent i = new Intent(this, ArvosPreferences.class);
@@ -379,5 +596,43 @@ public class ArvosMain extends ListActivity implements IArvosLocationReceiver, I
 		mInstance.mIsAuthor = prefs.getBoolean(ArvosPreferences.PREF_IS_AUTHOR, false);
 		mInstance.mAuthorKey = prefs.getString(ArvosPreferences.PREF_AUTHOR_KEY, "").trim();
 		mInstance.mDeveloperKey = prefs.getString(ArvosPreferences.PREF_DEVELOPER_KEY, "").trim();
+
+		try
+		{
+			mInstance.mPredictionMillis = Long.parseLong(prefs.getString(ArvosPreferences.PREF_PREDICTION_MILLIS, "30").trim());
+		}
+		catch (NumberFormatException e)
+		{
+			mInstance.mPredictionMillis = 30;
+		}
+		mInstance.mRecordPoseTrace = prefs.getBoolean(ArvosPreferences.PREF_RECORD_POSE_TRACE, false);
+		mInstance.mSingleSurface = prefs.getBoolean(ArvosPreferences.PREF_SINGLE_SURFACE, false);
+		mInstance.mCompressTextures = prefs.getBoolean(ArvosPreferences.PREF_COMPRESS_TEXTURES, false);
+		mInstance.mRecordCacheTrace = prefs.getBoolean(ArvosPreferences.PREF_RECORD_CACHE_TRACE, false);
+		mInstance.mCanonicalUrls = prefs.getBoolean(ArvosPreferences.PREF_CANONICAL_URLS, false);
+		updateCacheTrace();
+		updateTransport(prefs.getString(ArvosPreferences.PREF_SIMULATE_NETWORK, ""));
+	}
+
+	private void updateTransport(String spec)
+	{
+		IArvosTransport transport = new ArvosHttpTransport();
+		if (mInstance.mSimulateWeb)
+		{
+			transport = new ArvosResourceTransport(getApplicationContext(), transport);
+		}
+		try
+		{
+			mInstance.mTransport = ArvosSimulatedTransport.parse(spec, transport);
+		}
+		catch (IllegalArgumentException e)
+		{
+			mInstance.mTransport = null;
+			Log.d(mTag, "Network not simulated, " + e.getMessage());
+		}
+		if (mInstance.mTransport != null)
+		{
+			Log.d(mTag, "Downloads use " + mInstance.mTransport.getName());
+		}
 	}
 }
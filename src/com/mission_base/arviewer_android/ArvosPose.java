@@ -0,0 +1,142 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+/**
+ * An immutable snapshot of the location and orientation of the device.
+ * <p>
+ * The current pose is published by the static Arvos instance through a single
+ * atomic reference. The sensor, location and opengl threads replace it with a
+ * new snapshot, readers take one snapshot per frame or request and so never see
+ * a new azimuth together with an old pitch.
+ * <p>
+ * Each snapshot carries a version increased with every change, and separate
+ * versions for location and orientation changes, so readers can skip
+ * recomputations if nothing they depend on changed.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosPose
+{
+	public final float mLongitude;
+	public final float mLatitude;
+
+	public final float mAzimuth;
+	public final float mCorrectedAzimuth;
+	public final float mPitch;
+	public final float mRoll;
+
+	/**
+	 * Increased with every change of the pose.
+	 */
+	public final long mVersion;
+
+	/**
+	 * Increased with every change of latitude or longitude.
+	 */
+	public final long mLocationVersion;
+
+	/**
+	 * Increased with every change of azimuth, pitch or roll.
+	 */
+	public final long mOrientationVersion;
+
+	/**
+	 * Creates the initial pose, no location is known.
+	 */
+	public ArvosPose()
+	{
+		this(-1000f, -1000f, 0f, 0f, 0f, 0f, 0L, 0L, 0L);
+	}
+
+	private ArvosPose(float longitude, float latitude, float azimuth, float correctedAzimuth, float pitch, float roll, long version,
+			long locationVersion, long orientationVersion)
+	{
+		mLongitude = longitude;
+		mLatitude = latitude;
+		mAzimuth = azimuth;
+		mCorrectedAzimuth = correctedAzimuth;
+		mPitch = pitch;
+		mRoll = roll;
+		mVersion = version;
+		mLocationVersion = locationVersion;
+		mOrientationVersion = orientationVersion;
+	}
+
+	/**
+	 * Returns whether a location was received.
+	 * 
+	 * @return True if a location is known.
+	 */
+	public boolean hasLocation()
+	{
+		return mLocationVersion > 0;
+	}
+
+	/**
+	 * Returns a copy of the pose with a new location.
+	 * 
+	 * @param latitude
+	 *            The new latitude.
+	 * @param longitude
+	 *            The new longitude.
+	 * @return The new pose.
+	 */
+	public ArvosPose withLocation(float latitude, float longitude)
+	{
+		return new ArvosPose(longitude, latitude, mAzimuth, mCorrectedAzimuth, mPitch, mRoll, mVersion + 1, mLocationVersion + 1,
+				mOrientationVersion);
+	}
+
+	/**
+	 * Returns a copy of the pose with a new orientation.
+	 * 
+	 * @param azimuth
+	 *            The new azimuth.
+	 * @param pitch
+	 *            The new pitch.
+	 * @param roll
+	 *            The new roll.
+	 * @return The new pose.
+	 */
+	public ArvosPose withOrientation(float azimuth, float pitch, float roll)
+	{
+		return new ArvosPose(mLongitude, mLatitude, azimuth, mCorrectedAzimuth, pitch, roll, mVersion + 1, mLocationVersion,
+				mOrientationVersion + 1);
+	}
+
+	/**
+	 * Returns a copy of the pose with a new corrected azimuth.
+	 * 
+	 * @param correctedAzimuth
+	 *            The new corrected azimuth.
+	 * @return The new pose.
+	 */
+	public ArvosPose withCorrectedAzimuth(float correctedAzimuth)
+	{
+		return new ArvosPose(mLongitude, mLatitude, mAzimuth, correctedAzimuth, mPitch, mRoll, mVersion + 1, mLocationVersion,
+				mOrientationVersion);
+	}
+}
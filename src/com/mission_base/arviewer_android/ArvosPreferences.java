@@ -39,6 +39,13 @@ public class ArvosPreferences extends PreferenceActivity
 	public static final String PREF_IS_AUTHOR = "PREF_IS_AUTHOR";
 	public static final String PREF_AUTHOR_KEY = "PREF_AUTHOR_KEY";
 	public static final String PREF_DEVELOPER_KEY = "PREF_DEVELOPER_KEY";
+	public static final String PREF_PREDICTION_MILLIS = "PREF_PREDICTION_MILLIS";
+	public static final String PREF_RECORD_POSE_TRACE = "PREF_RECORD_POSE_TRACE";
+	public static final String PREF_SINGLE_SURFACE = "PREF_SINGLE_SURFACE";
+	public static final String PREF_COMPRESS_TEXTURES = "PREF_COMPRESS_TEXTURES";
+	public static final String PREF_RECORD_CACHE_TRACE = "PREF_RECORD_CACHE_TRACE";
+	public static final String PREF_SIMULATE_NETWORK = "PREF_SIMULATE_NETWORK";
+	public static final String PREF_CANONICAL_URLS = "PREF_CANONICAL_URLS";
 
 	@SuppressWarnings("deprecation")
 	@Override
@@ -0,0 +1,382 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.Pair;
+
+import com.mission_base.arviewer_android.viewer.ArvosAugment;
+import com.mission_base.arviewer_android.viewer.ArvosPoi;
+import com.mission_base.arviewer_android.viewer.ArvosPoiObject;
+
+/**
+ * Prefetches the augments and textures near the current location into the
+ * cache.
+ * <p>
+ * Whenever the location has moved far enough or the last prefetch is too old,
+ * the augments list is downloaded on a background thread and the descriptions
+ * and textures of the nearest augments are stored in the cache, until a byte
+ * budget is used up. The budget depends on the network connection, nothing is
+ * prefetched while roaming or disconnected.
+ * <p>
+ * Requests of the user report to the prefetcher whether they were served from
+ * the cache, so that the ratio of requests served by prefetched items can be
+ * reported.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosPrefetcher
+{
+	private static String mTag = "ArvosPrefetcher";
+
+	/**
+	 * Cached augment descriptions older than this many milliseconds are
+	 * downloaded again.
+	 */
+	public static final long MAX_TEXT_AGE = 1000L * 60 * 60;
+
+	/**
+	 * The number of nearest augments prefetched.
+	 */
+	public static final int MAX_AUGMENTS = 5;
+
+	/**
+	 * The maximum number of bytes prefetched per round on an unmetered
+	 * connection, a quarter of it is used on a mobile connection.
+	 */
+	public static final long MAX_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * The distance in meters the location has to move to start a new round.
+	 */
+	public static final float MIN_DISTANCE = 250f;
+
+	/**
+	 * The time in milliseconds after which a new round is started even if the
+	 * location did not move.
+	 */
+	public static final long REFRESH_INTERVAL = 1000L * 60 * 15;
+
+	private Context mContext;
+	private Arvos mInstance;
+
+	private HandlerThread mThread;
+	private Handler mHandler;
+	private volatile boolean mIsRunning = false;
+
+	private float mLastLatitude;
+	private float mLastLongitude;
+	private long mLastPrefetchTime = 0;
+
+	private final Set<String> mPrefetchedUrls = new HashSet<String>();
+	private long mRequestCount = 0;
+	private long mCacheHitCount = 0;
+	private long mPrefetchHitCount = 0;
+	private long mPrefetchedBytes = 0;
+
+	/**
+	 * Creates the prefetcher.
+	 * 
+	 * @param context
+	 *            The application context.
+	 */
+	public ArvosPrefetcher(Context context)
+	{
+		mContext = context;
+		mInstance = Arvos.getInstance();
+	}
+
+	/**
+	 * Starts the prefetch thread.
+	 */
+	public void onResume()
+	{
+		if (mThread == null)
+		{
+			mThread = new HandlerThread("ArvosPrefetcher", Process.THREAD_PRIORITY_BACKGROUND);
+			mThread.start();
+			mHandler = new Handler(mThread.getLooper());
+		}
+		mIsRunning = true;
+	}
+
+	/**
+	 * Stops the prefetch thread, a running round is abandoned after the current
+	 * download.
+	 */
+	public void onPause()
+	{
+		mIsRunning = false;
+		if (mThread != null)
+		{
+			mHandler.removeCallbacks(mPrefetchRunnable);
+			mThread.quit();
+			mThread = null;
+			mHandler = null;
+		}
+		Log.d(mTag, toString());
+	}
+
+	/**
+	 * Handles location updates, starts a new prefetch round if the location
+	 * moved far enough or the last round is too old.
+	 */
+	public void onLocationChanged()
+	{
+		ArvosPose pose = mInstance.getPose();
+		if (mHandler == null || !pose.hasLocation() || !mInstance.mUseCache)
+		{
+			return;
+		}
+
+		if (!isDue(pose))
+		{
+			return;
+		}
+
+		mHandler.removeCallbacks(mPrefetchRunnable);
+		mHandler.post(mPrefetchRunnable);
+	}
+
+	/**
+	 * Returns whether a prefetch round is due at a location, the time and
+	 * location of the last round are only set once a round actually ran.
+	 */
+	private synchronized boolean isDue(ArvosPose pose)
+	{
+		if (mLastPrefetchTime > 0 && System.currentTimeMillis() - mLastPrefetchTime < REFRESH_INTERVAL)
+		{
+			float[] results = new float[1];
+			Location.distanceBetween(mLastLatitude, mLastLongitude, pose.mLatitude, pose.mLongitude, results);
+			if (results[0] < MIN_DISTANCE)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized void setPrefetched(ArvosPose pose)
+	{
+		mLastLatitude = pose.mLatitude;
+		mLastLongitude = pose.mLongitude;
+		mLastPrefetchTime = System.currentTimeMillis();
+	}
+
+	private Runnable mPrefetchRunnable = new Runnable()
+	{
+		public void run()
+		{
+			if (!isDue(mInstance.getPose()))
+			{
+				return;
+			}
+			long budget = getByteBudget();
+			if (budget <= 0)
+			{
+				Log.d(mTag, "No suitable connection, prefetch skipped");
+				return;
+			}
+			prefetch(budget);
+		}
+	};
+
+	private long getByteBudget()
+	{
+		ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+		if (networkInfo == null || !networkInfo.isConnected() || networkInfo.isRoaming())
+		{
+			return 0;
+		}
+		int type = networkInfo.getType();
+		if (type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET)
+		{
+			return MAX_BYTES;
+		}
+		return MAX_BYTES / 4;
+	}
+
+	private void prefetch(long budget)
+	{
+		final ArvosPose pose = mInstance.getPose();
+		ArvosHttpRequest request = new ArvosHttpRequest(null, mContext);
+
+		String result = request.downloadText(mInstance.mAugmentsUrl, true);
+		if (!result.startsWith("OK"))
+		{
+			Log.d(mTag, "Augments list not prefetched, " + result.substring(2));
+			return;
+		}
+		setPrefetched(pose);
+
+		List<ArvosAugment> augments = new ArrayList<ArvosAugment>();
+		if (!ArvosAugment.parse(result.substring(2), augments).startsWith("OK"))
+		{
+			return;
+		}
+
+		Collections.sort(augments, new Comparator<ArvosAugment>()
+		{
+			public int compare(ArvosAugment a, ArvosAugment b)
+			{
+				return Float.compare(a.getDistance(pose), b.getDistance(pose));
+			}
+		});
+
+		long bytes = 0;
+		int count = 0;
+		for (ArvosAugment augment : augments)
+		{
+			if (!mIsRunning || count++ >= MAX_AUGMENTS || bytes >= budget)
+			{
+				break;
+			}
+			if (augment.mUrl == null || augment.mUrl.trim().length() == 0)
+			{
+				continue;
+			}
+
+			String text = ArvosCache.getText(augment.mUrl, MAX_TEXT_AGE);
+			if (text == null)
+			{
+				result = request.downloadText(augment.mUrl, true);
+				if (!result.startsWith("OK"))
+				{
+					continue;
+				}
+				text = result.substring(2);
+				bytes += addPrefetched(augment.mUrl);
+			}
+
+			ArvosAugment parsedAugment = new ArvosAugment();
+			if (!parsedAugment.parse(text).startsWith("OK"))
+			{
+				continue;
+			}
+
+			for (String textureUrl : getTextureUrls(parsedAugment))
+			{
+				if (!mIsRunning || bytes >= budget)
+				{
+					break;
+				}
+				if (ArvosCache.contains(textureUrl))
+				{
+					continue;
+				}
+				Pair<String, Bitmap> image = request.downloadImage(textureUrl, true);
+				if (image.first.startsWith("OK"))
+				{
+					bytes += addPrefetched(textureUrl);
+				}
+			}
+		}
+
+		synchronized (this)
+		{
+			mPrefetchedBytes += bytes;
+		}
+		Log.d(mTag, "Prefetched " + bytes + " bytes for " + Math.min(count, augments.size()) + " augments");
+	}
+
+	private static Set<String> getTextureUrls(ArvosAugment augment)
+	{
+		Set<String> result = new LinkedHashSet<String>();
+		for (ArvosPoi poi : augment.mPois)
+		{
+			for (ArvosPoiObject poiObject : poi.mPoiObjects)
+			{
+				// Only the lowest resolution is prefetched, higher resolutions
+				// are downloaded when needed
+				if (poiObject.getFirstTextureUrl() != null)
+				{
+					result.add(poiObject.getFirstTextureUrl());
+				}
+			}
+		}
+		return result;
+	}
+
+	private synchronized long addPrefetched(String url)
+	{
+		mPrefetchedUrls.add(url);
+		return ArvosCache.getLength(url);
+	}
+
+	/**
+	 * Records a request of the user for an augment or texture.
+	 * 
+	 * @param url
+	 *            The url requested.
+	 * @param isCached
+	 *            True if the request was served from the cache.
+	 */
+	public synchronized void recordRequest(String url, boolean isCached)
+	{
+		mRequestCount++;
+		if (isCached)
+		{
+			mCacheHitCount++;
+			if (mPrefetchedUrls.contains(url))
+			{
+				mPrefetchHitCount++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ratio of requests of the user served by prefetched items.
+	 * 
+	 * @return The prefetch hit ratio between 0 and 1.
+	 */
+	public synchronized float getHitRatio()
+	{
+		return mRequestCount == 0 ? 0f : (float) mPrefetchHitCount / mRequestCount;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("Requests %d, cache hits %d, prefetch hits %d (%.0f%%), prefetched %d bytes", mRequestCount, mCacheHitCount, mPrefetchHitCount,
+				100f * getHitRatio(), mPrefetchedBytes);
+	}
+}
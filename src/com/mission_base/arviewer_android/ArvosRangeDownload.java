@@ -0,0 +1,365 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads a file to a partial file and resumes the download after a failure.
+ * <p>
+ * The body is appended to the partial file as it arrives. After a broken
+ * connection the download asks for the missing bytes only, with a Range
+ * request validated by the ETag or the Last-Modified date of the first
+ * response, so a file changed on the server in between is downloaded from the
+ * start again. A partial file left by a failed download is resumed by the next
+ * download of the same url.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosRangeDownload
+{
+	/**
+	 * File name extension of partial files.
+	 */
+	public static final String PARTIAL_EXTENSION = ".part";
+
+	/**
+	 * File name extension of the files holding the validator of a partial file.
+	 */
+	public static final String VALIDATOR_EXTENSION = ".etag";
+
+	/**
+	 * The number of connections tried per download.
+	 */
+	public static final int MAX_ATTEMPTS = 4;
+
+	/**
+	 * The delay before the first retry, doubled for each further retry.
+	 */
+	public static final long RETRY_DELAY_MILLIS = 250L;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+	private static final int READ_TIMEOUT_MILLIS = 20000;
+
+	private final String mUrl;
+	private final File mPartialFile;
+	private final File mValidatorFile;
+
+	private int mStatusCode = 0;
+	private int mAttemptCount = 0;
+	private long mResumedBytes = 0;
+	private long mTransferredBytes = 0;
+
+	/**
+	 * Creates a download.
+	 * 
+	 * @param url
+	 *            The url of the file to download.
+	 * @param partialFile
+	 *            The file the body is written to.
+	 */
+	public ArvosRangeDownload(String url, File partialFile)
+	{
+		mUrl = url;
+		mPartialFile = partialFile;
+		mValidatorFile = new File(partialFile.getPath() + VALIDATOR_EXTENSION);
+	}
+
+	/**
+	 * Returns whether a file is a partial file or the validator of one.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return True if the file belongs to a partial download.
+	 */
+	public static boolean isPartialFile(File file)
+	{
+		String name = file.getName();
+		return name.endsWith(PARTIAL_EXTENSION) || name.endsWith(PARTIAL_EXTENSION + VALIDATOR_EXTENSION);
+	}
+
+	/**
+	 * Downloads the file, must not be called on the UI thread.
+	 * <p>
+	 * Broken connections are retried up to MAX_ATTEMPTS times, each retry
+	 * resuming where the last one stopped. If all attempts fail the partial
+	 * file is kept for the next download.
+	 * 
+	 * @return The complete file.
+	 * @throws IOException
+	 *             If the server answered with an error status or all attempts
+	 *             failed.
+	 */
+	public File download() throws IOException
+	{
+		IOException failure = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+		{
+			if (attempt > 0)
+			{
+				try
+				{
+					Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException("Download interrupted " + mUrl);
+				}
+			}
+
+			mAttemptCount++;
+			try
+			{
+				transfer();
+				return mPartialFile;
+			}
+			catch (IOException e)
+			{
+				if (mStatusCode >= 400 && mStatusCode < 500 && mStatusCode != 416)
+				{
+					throw e;
+				}
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Deletes the partial file and its validator.
+	 */
+	public void delete()
+	{
+		mPartialFile.delete();
+		mValidatorFile.delete();
+	}
+
+	private void transfer() throws IOException
+	{
+		long offset = mPartialFile.length();
+		String validator = offset > 0 ? readValidator() : null;
+		if (validator == null)
+		{
+			// A partial file that cannot be validated is not resumed
+			offset = 0;
+		}
+
+		mStatusCode = 0;
+		HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+		try
+		{
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+			connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+			// Ranges refer to the bytes as sent, they must not be unzipped
+			connection.setRequestProperty("Accept-Encoding", "identity");
+			if (offset > 0)
+			{
+				connection.setRequestProperty("Range", "bytes=" + offset + "-");
+				connection.setRequestProperty("If-Range", validator);
+			}
+
+			mStatusCode = connection.getResponseCode();
+			long length;
+			if (mStatusCode == HttpURLConnection.HTTP_PARTIAL)
+			{
+				length = getRangeLength(connection.getHeaderField("Content-Range"), offset);
+				mResumedBytes += offset;
+			}
+			else if (mStatusCode == HttpURLConnection.HTTP_OK)
+			{
+				offset = 0;
+				length = connection.getContentLength();
+				writeValidator(connection);
+			}
+			else
+			{
+				if (mStatusCode == 416)
+				{
+					// The partial file does not fit the file on the server
+					delete();
+				}
+				throw new IOException("HTTP error status " + mStatusCode);
+			}
+
+			InputStream inputStream = connection.getInputStream();
+			FileOutputStream outputStream = new FileOutputStream(mPartialFile, offset > 0);
+			long received = 0;
+			try
+			{
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = inputStream.read(buffer)) > 0)
+				{
+					outputStream.write(buffer, 0, count);
+					received += count;
+					mTransferredBytes += count;
+				}
+			}
+			finally
+			{
+				try
+				{
+					// The bytes received are kept for the next attempt
+					outputStream.getFD().sync();
+				}
+				finally
+				{
+					outputStream.close();
+					inputStream.close();
+				}
+			}
+			if (length >= 0 && received < length)
+			{
+				throw new IOException("Connection closed after " + received + " of " + length + " bytes " + mUrl);
+			}
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Parses a Content-Range header, the range must start at the offset asked
+	 * for.
+	 * 
+	 * @return The length of the range or -1 if the header is not understood.
+	 */
+	private static long getRangeLength(String contentRange, long offset) throws IOException
+	{
+		if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-"))
+		{
+			throw new IOException("Unexpected content range " + contentRange);
+		}
+		int dash = contentRange.indexOf('-');
+		int slash = contentRange.indexOf('/');
+		try
+		{
+			long last = Long.parseLong(contentRange.substring(dash + 1, slash < 0 ? contentRange.length() : slash).trim());
+			return last + 1 - offset;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private String readValidator()
+	{
+		if (!mValidatorFile.exists())
+		{
+			return null;
+		}
+		try
+		{
+			Reader reader = new InputStreamReader(new FileInputStream(mValidatorFile), "UTF-8");
+			try
+			{
+				StringBuilder sb = new StringBuilder();
+				char[] buffer = new char[256];
+				int count;
+				while ((count = reader.read(buffer)) > 0)
+				{
+					sb.append(buffer, 0, count);
+				}
+				return sb.length() > 0 ? sb.toString() : null;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private void writeValidator(HttpURLConnection connection) throws IOException
+	{
+		String validator = connection.getHeaderField("ETag");
+		if (validator == null || validator.startsWith("W/"))
+		{
+			// Weak entity tags must not be used for ranges
+			validator = connection.getHeaderField("Last-Modified");
+		}
+		if (validator == null)
+		{
+			mValidatorFile.delete();
+			return;
+		}
+		Writer writer = new OutputStreamWriter(new FileOutputStream(mValidatorFile), "UTF-8");
+		try
+		{
+			writer.write(validator);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the number of connections tried.
+	 * 
+	 * @return The number of attempts.
+	 */
+	public int getAttemptCount()
+	{
+		return mAttemptCount;
+	}
+
+	/**
+	 * Returns the number of bytes not downloaded again because a partial file
+	 * was resumed.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getResumedBytes()
+	{
+		return mResumedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes received.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getTransferredBytes()
+	{
+		return mTransferredBytes;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import android.content.Context;
+
+/**
+ * Transport serving the augments and textures of the raw resources, files
+ * not among them are downloaded by another transport.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosResourceTransport implements IArvosTransport
+{
+	private static final String[] mNames = { "augments.json", "augment1.json", "augment2.json", "augment3.json", "augment4.json",
+			"one.png", "two.png", "three.png" };
+	private static final int[] mResources = { R.raw.augments, R.raw.augment1, R.raw.augment2, R.raw.augment3, R.raw.augment4, R.raw.one,
+			R.raw.two, R.raw.three };
+
+	private final Context mContext;
+	private final IArvosTransport mTransport;
+
+	/**
+	 * Creates a transport serving the raw resources.
+	 * 
+	 * @param context
+	 *            The application context.
+	 * @param transport
+	 *            The transport of the files not among the resources.
+	 */
+	public ArvosResourceTransport(Context context, IArvosTransport transport)
+	{
+		mContext = context;
+		mTransport = transport;
+	}
+
+	public String getName()
+	{
+		return "Resources";
+	}
+
+	public InputStream open(String url, Map<String, String> headers) throws IOException
+	{
+		for (int i = 0; i < mNames.length; i++)
+		{
+			if (url.contains(mNames[i]))
+			{
+				return mContext.getResources().openRawResource(mResources[i]);
+			}
+		}
+		return mTransport.open(url, headers);
+	}
+}
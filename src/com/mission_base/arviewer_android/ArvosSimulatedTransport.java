@@ -0,0 +1,449 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport simulating a slow and unreliable network in front of another
+ * transport.
+ * <p>
+ * Each request waits for a latency with a random jitter, bodies are delivered
+ * no faster than the bandwidth, and requests fail with the error rate before
+ * and the disconnect rate during the transfer of the body. The random draws of
+ * a request depend only on the seed, the url without query and fragment and
+ * the number of earlier requests of it, so a run is repeated exactly even if
+ * the requests are made by several threads and carry the location of the
+ * device.
+ * <p>
+ * The main method downloads urls through the transport and prints the times,
+ * to compare loading times of fixtures on a desktop.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosSimulatedTransport implements IArvosTransport
+{
+	/**
+	 * A disconnect happens within this number of bytes of a body, or at the end
+	 * of a shorter body.
+	 */
+	public static final int DISCONNECT_RANGE = 64 * 1024;
+
+	private final IArvosTransport mTransport;
+	private final long mSeed;
+	private long mLatencyMillis = 0;
+	private long mJitterMillis = 0;
+	private long mBandwidth = 0;
+	private float mErrorRate = 0;
+	private float mDisconnectRate = 0;
+
+	private final ConcurrentHashMap<String, AtomicInteger> mUrlRequestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger mRequestCount = new AtomicInteger(0);
+	private final AtomicInteger mErrorCount = new AtomicInteger(0);
+	private final AtomicInteger mDisconnectCount = new AtomicInteger(0);
+
+	/**
+	 * Creates a simulated network without delays or faults.
+	 * 
+	 * @param transport
+	 *            The transport serving the files.
+	 * @param seed
+	 *            The seed of the random draws.
+	 */
+	public ArvosSimulatedTransport(IArvosTransport transport, long seed)
+	{
+		mTransport = transport;
+		mSeed = seed;
+	}
+
+	/**
+	 * Creates a simulated network from a specification like
+	 * "latency=200 jitter=50 bandwidth=65536 errors=0.05 disconnects=0.1 seed=42 fixtures=/sdcard/arvos"
+	 * , all keys are optional. Without fixtures the files are served by the
+	 * transport given.
+	 * 
+	 * @param spec
+	 *            The specification, keys separated by blanks or commas.
+	 * @param transport
+	 *            The transport serving the files if no fixtures are given.
+	 * @return The transport or null if the specification is empty.
+	 * @throws IllegalArgumentException
+	 *             If the specification cannot be parsed.
+	 */
+	public static ArvosSimulatedTransport parse(String spec, IArvosTransport transport)
+	{
+		if (spec == null || spec.trim().length() == 0)
+		{
+			return null;
+		}
+
+		long seed = 42;
+		long latency = 0;
+		long jitter = 0;
+		long bandwidth = 0;
+		float errors = 0;
+		float disconnects = 0;
+		try
+		{
+			for (String item : spec.trim().split("[\\s,]+"))
+			{
+				int equals = item.indexOf('=');
+				if (equals < 0)
+				{
+					throw new IllegalArgumentException("Missing value of " + item);
+				}
+				String key = item.substring(0, equals);
+				String value = item.substring(equals + 1);
+				if ("latency".equals(key))
+				{
+					latency = Long.parseLong(value);
+				}
+				else if ("jitter".equals(key))
+				{
+					jitter = Long.parseLong(value);
+				}
+				else if ("bandwidth".equals(key))
+				{
+					bandwidth = Long.parseLong(value);
+				}
+				else if ("errors".equals(key))
+				{
+					errors = Float.parseFloat(value);
+				}
+				else if ("disconnects".equals(key))
+				{
+					disconnects = Float.parseFloat(value);
+				}
+				else if ("seed".equals(key))
+				{
+					seed = Long.parseLong(value);
+				}
+				else if ("fixtures".equals(key))
+				{
+					transport = new ArvosFixtureTransport(new File(value));
+				}
+				else
+				{
+					throw new IllegalArgumentException("Unknown key " + key);
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid number in " + spec);
+		}
+
+		ArvosSimulatedTransport simulated = new ArvosSimulatedTransport(transport, seed);
+		simulated.setLatency(latency, jitter);
+		simulated.setBandwidth(bandwidth);
+		simulated.setErrorRate(errors);
+		simulated.setDisconnectRate(disconnects);
+		return simulated;
+	}
+
+	/**
+	 * Sets the latency of the requests.
+	 * 
+	 * @param latencyMillis
+	 *            The minimum latency in milliseconds.
+	 * @param jitterMillis
+	 *            The maximum random latency added in milliseconds.
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis)
+	{
+		mLatencyMillis = Math.max(0L, latencyMillis);
+		mJitterMillis = Math.max(0L, jitterMillis);
+	}
+
+	/**
+	 * Sets the bandwidth of the body transfers.
+	 * 
+	 * @param bytesPerSecond
+	 *            The bandwidth in bytes per second, 0 for no limit.
+	 */
+	public void setBandwidth(long bytesPerSecond)
+	{
+		mBandwidth = Math.max(0L, bytesPerSecond);
+	}
+
+	/**
+	 * Sets the fraction of requests failing before the body is transferred.
+	 * 
+	 * @param rate
+	 *            The rate between 0 and 1.
+	 */
+	public void setErrorRate(float rate)
+	{
+		mErrorRate = rate;
+	}
+
+	/**
+	 * Sets the fraction of requests failing during the transfer of the body.
+	 * 
+	 * @param rate
+	 *            The rate between 0 and 1.
+	 */
+	public void setDisconnectRate(float rate)
+	{
+		mDisconnectRate = rate;
+	}
+
+	public String getName()
+	{
+		return "Simulated " + mTransport.getName();
+	}
+
+	public InputStream open(String url, Map<String, String> headers) throws IOException
+	{
+		mRequestCount.incrementAndGet();
+		String contentUrl = getContentUrl(url);
+		AtomicInteger urlRequestCount = mUrlRequestCounts.get(contentUrl);
+		if (urlRequestCount == null)
+		{
+			AtomicInteger count = new AtomicInteger(0);
+			urlRequestCount = mUrlRequestCounts.putIfAbsent(contentUrl, count);
+			if (urlRequestCount == null)
+			{
+				urlRequestCount = count;
+			}
+		}
+		Random random = new Random(mSeed * 31L + contentUrl.hashCode() * 1000003L + urlRequestCount.getAndIncrement());
+
+		long latency = mLatencyMillis + (mJitterMillis > 0L ? (long) (random.nextDouble() * mJitterMillis) : 0L);
+		boolean isError = random.nextFloat() < mErrorRate;
+		long disconnectAfter = random.nextFloat() < mDisconnectRate ? random.nextInt(DISCONNECT_RANGE) : -1L;
+
+		sleep(latency);
+		if (isError)
+		{
+			mErrorCount.incrementAndGet();
+			throw new IOException("Simulated network error " + url);
+		}
+		return new SimulatedInputStream(mTransport.open(url, headers), disconnectAfter);
+	}
+
+	/**
+	 * Returns an url without its query and fragment, the session and location
+	 * parameters of a download url differ on every request.
+	 * 
+	 * @param url
+	 *            The download url.
+	 * @return The url of the content.
+	 */
+	static String getContentUrl(String url)
+	{
+		int end = url.length();
+		int index = url.indexOf('?');
+		if (index >= 0)
+		{
+			end = index;
+		}
+		index = url.indexOf('#');
+		if (index >= 0 && index < end)
+		{
+			end = index;
+		}
+		return url.substring(0, end);
+	}
+
+	/**
+	 * Sleeps until a number of bytes can have been transferred at a bandwidth.
+	 * 
+	 * @param startNanos
+	 *            The start time of the transfer.
+	 * @param bytes
+	 *            The number of bytes transferred.
+	 * @param bytesPerSecond
+	 *            The bandwidth, 0 for no limit.
+	 * @throws InterruptedIOException
+	 *             If the thread was interrupted.
+	 */
+	static void throttle(long startNanos, long bytes, long bytesPerSecond) throws InterruptedIOException
+	{
+		if (bytesPerSecond > 0L)
+		{
+			long dueNanos = startNanos + bytes * 1000000000L / bytesPerSecond;
+			sleep((dueNanos - System.nanoTime()) / 1000000L);
+		}
+	}
+
+	private static void sleep(long millis) throws InterruptedIOException
+	{
+		if (millis <= 0L)
+		{
+			return;
+		}
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Simulated transfer interrupted");
+		}
+	}
+
+	private class SimulatedInputStream extends FilterInputStream
+	{
+		private final long mStartNanos = System.nanoTime();
+		private final long mDisconnectAfter;
+		private long mPosition = 0;
+
+		SimulatedInputStream(InputStream in, long disconnectAfter)
+		{
+			super(in);
+			mDisconnectAfter = disconnectAfter;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			if (mDisconnectAfter >= 0L)
+			{
+				if (mPosition >= mDisconnectAfter)
+				{
+					disconnect();
+				}
+				length = (int) Math.min(length, mDisconnectAfter - mPosition);
+			}
+			if (mBandwidth > 0L)
+			{
+				// deliver at least ten chunks a second
+				length = (int) Math.min(length, Math.max(1L, mBandwidth / 10L));
+			}
+
+			int count = super.read(buffer, offset, length);
+			if (count < 0)
+			{
+				if (mDisconnectAfter >= 0L)
+				{
+					disconnect();
+				}
+				return count;
+			}
+			mPosition += count;
+			throttle(mStartNanos, mPosition, mBandwidth);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			byte[] buffer = new byte[(int) Math.min(n, 8192L)];
+			int count = read(buffer, 0, buffer.length);
+			return count < 0 ? 0 : count;
+		}
+
+		@Override
+		public int available()
+		{
+			return 0;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		private void disconnect() throws IOException
+		{
+			mDisconnectCount.incrementAndGet();
+			throw new IOException("Simulated disconnect after " + mPosition + " bytes");
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s: %d requests, %d errors, %d disconnects", getName(), mRequestCount.get(), mErrorCount.get(),
+				mDisconnectCount.get());
+	}
+
+	/**
+	 * Downloads urls through a simulated network serving a fixture directory,
+	 * the current directory if none is given, and prints the time of each
+	 * download as CSV.
+	 * 
+	 * @param args
+	 *            The specification of the network, see parse, followed by the
+	 *            urls.
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: ArvosSimulatedTransport \"fixtures=dir latency=200 bandwidth=65536 ...\" url...");
+			return;
+		}
+		ArvosSimulatedTransport transport = parse(args[0], new ArvosFixtureTransport(new File(".")));
+
+		System.out.println("# url,result,bytes,millis");
+		byte[] buffer = new byte[8192];
+		for (int i = 1; i < args.length; i++)
+		{
+			long start = System.nanoTime();
+			long bytes = 0;
+			String result = "OK";
+			try
+			{
+				InputStream inputStream = transport.open(args[i], null);
+				try
+				{
+					int count;
+					while ((count = inputStream.read(buffer)) > 0)
+					{
+						bytes += count;
+					}
+				}
+				finally
+				{
+					inputStream.close();
+				}
+			}
+			catch (IOException e)
+			{
+				result = e.getMessage().replace(',', ' ');
+			}
+			System.out.println(args[i] + "," + result + "," + bytes + "," + (System.nanoTime() - start) / 1000000L);
+		}
+		System.out.println("# " + transport);
+	}
+}
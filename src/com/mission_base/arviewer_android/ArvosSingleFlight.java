@@ -0,0 +1,132 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key.
+ * <p>
+ * The first caller of a key executes the call, callers arriving while it is
+ * in flight wait for it and get the same result or exception. Once the call
+ * is done the next caller of the key executes it again, results are not
+ * cached. As results are shared, callers must not modify or recycle them.
+ * 
+ * @author peter
+ * 
+ * @param <T>
+ *            The type of the results.
+ */
+public class ArvosSingleFlight<T>
+{
+	private static class Flight<T>
+	{
+		final CountDownLatch mDone = new CountDownLatch(1);
+		volatile T mResult;
+		volatile Exception mException;
+
+		T get() throws Exception
+		{
+			mDone.await();
+			if (mException != null)
+			{
+				throw mException;
+			}
+			return mResult;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Flight<T>> mFlights = new ConcurrentHashMap<String, Flight<T>>();
+	private final AtomicLong mExecutedCount = new AtomicLong(0);
+	private final AtomicLong mCoalescedCount = new AtomicLong(0);
+
+	/**
+	 * Executes a call or waits for the call of the same key in flight.
+	 * 
+	 * @param key
+	 *            The key of the call.
+	 * @param call
+	 *            The call executed if none is in flight for the key.
+	 * @return The result of the call.
+	 * @throws Exception
+	 *             The exception of the call, or an InterruptedException if
+	 *             waiting was interrupted.
+	 */
+	public T execute(String key, Callable<T> call) throws Exception
+	{
+		Flight<T> flight = new Flight<T>();
+		Flight<T> inFlight = mFlights.putIfAbsent(key, flight);
+		if (inFlight != null)
+		{
+			mCoalescedCount.incrementAndGet();
+			return inFlight.get();
+		}
+
+		mExecutedCount.incrementAndGet();
+		try
+		{
+			flight.mResult = call.call();
+		}
+		catch (Exception e)
+		{
+			flight.mException = e;
+		}
+		finally
+		{
+			mFlights.remove(key, flight);
+			flight.mDone.countDown();
+		}
+		return flight.get();
+	}
+
+	/**
+	 * Returns the number of calls executed.
+	 * 
+	 * @return The number of calls.
+	 */
+	public long getExecutedCount()
+	{
+		return mExecutedCount.get();
+	}
+
+	/**
+	 * Returns the number of calls that waited for a call in flight instead of
+	 * being executed.
+	 * 
+	 * @return The number of calls.
+	 */
+	public long getCoalescedCount()
+	{
+		return mCoalescedCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("executed %d, coalesced %d", mExecutedCount.get(), mCoalescedCount.get());
+	}
+}
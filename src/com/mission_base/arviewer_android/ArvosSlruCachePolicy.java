@@ -0,0 +1,167 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segmented LRU eviction policy.
+ * <p>
+ * New keys enter a probation segment, a key hit while on probation moves to a
+ * protected segment. The protected segment holds at most a fixed share of the
+ * bytes, its least recently used keys are moved back to probation. Keys are
+ * evicted from probation first, so items used only once cannot flush items
+ * used repeatedly.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosSlruCachePolicy implements IArvosCachePolicy
+{
+	/**
+	 * The maximum share of the bytes held by the protected segment.
+	 */
+	public static final float PROTECTED_RATIO = 0.8f;
+
+	// keys in access order, the least recently used first
+	private final LinkedHashMap<String, Long> mProbation = new LinkedHashMap<String, Long>();
+	private final LinkedHashMap<String, Long> mProtected = new LinkedHashMap<String, Long>();
+	private long mProtectedLength = 0;
+	private long mLength = 0;
+
+	public String getName()
+	{
+		return "SLRU";
+	}
+
+	public synchronized void onHit(String key)
+	{
+		Long length = mProtected.remove(key);
+		if (length != null)
+		{
+			mProtected.put(key, length);
+			return;
+		}
+		length = mProbation.remove(key);
+		if (length == null)
+		{
+			return;
+		}
+		mProtected.put(key, length);
+		mProtectedLength += length.longValue();
+
+		// Demote the least recently used protected keys, the key just
+		// promoted is kept
+		Iterator<Map.Entry<String, Long>> iterator = mProtected.entrySet().iterator();
+		while (mProtectedLength > PROTECTED_RATIO * mLength && mProtected.size() > 1)
+		{
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			mProtectedLength -= eldest.getValue().longValue();
+			mProbation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	public void onMiss(String key)
+	{
+	}
+
+	public synchronized void onAdd(String key, long length)
+	{
+		onRemove(key);
+		mProbation.put(key, Long.valueOf(length));
+		mLength += length;
+	}
+
+	public synchronized void onRemove(String key)
+	{
+		Long length = mProbation.remove(key);
+		if (length == null)
+		{
+			length = mProtected.remove(key);
+			if (length == null)
+			{
+				return;
+			}
+			mProtectedLength -= length.longValue();
+		}
+		mLength -= length.longValue();
+	}
+
+	public synchronized String evict()
+	{
+		List<String> victims = getVictims(0);
+		if (victims.isEmpty())
+		{
+			return null;
+		}
+		String key = victims.get(0);
+		onRemove(key);
+		return key;
+	}
+
+	/**
+	 * Returns the keys that would be evicted next without evicting them.
+	 * 
+	 * @param length
+	 *            The number of bytes the keys returned should use at least.
+	 * @return The keys in eviction order, at least one unless the policy is
+	 *         empty.
+	 */
+	synchronized List<String> getVictims(long length)
+	{
+		List<String> victims = new ArrayList<String>();
+		long victimsLength = addVictims(mProbation, victims, 0, length);
+		addVictims(mProtected, victims, victimsLength, length);
+		return victims;
+	}
+
+	private static long addVictims(LinkedHashMap<String, Long> segment, List<String> victims, long victimsLength, long length)
+	{
+		for (Map.Entry<String, Long> entry : segment.entrySet())
+		{
+			if (!victims.isEmpty() && victimsLength >= length)
+			{
+				break;
+			}
+			victims.add(entry.getKey());
+			victimsLength += entry.getValue().longValue();
+		}
+		return victimsLength;
+	}
+
+	/**
+	 * Returns the number of bytes of the keys known to the policy.
+	 * 
+	 * @return The number of bytes.
+	 */
+	synchronized long getLength()
+	{
+		return mLength;
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Pair;
+import android.widget.ImageView;
+
+/**
+ * Loads the thumbnails of the augment list asynchronously.
+ * <p>
+ * Thumbnails are decoded from the cache on a background thread at exactly the
+ * size of the image view showing them, thumbnails not in the cache are
+ * downloaded first. The decoded thumbnails are kept in a memory cache, so a
+ * row scrolled back into view shows its thumbnail immediately.
+ * <p>
+ * Each image view waits for at most one thumbnail, binding a recycled row to
+ * another thumbnail cancels the request of the previous one if no other view
+ * waits for it. Requests for the same thumbnail at the same size are
+ * coalesced into one. All methods but the decoding are called on the UI
+ * thread.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosThumbnailLoader
+{
+	private static String mTag = "ArvosThumbnailLoader";
+
+	/**
+	 * The fraction of the memory of the application used for decoded
+	 * thumbnails.
+	 */
+	public static final int MEMORY_FRACTION = 16;
+
+	private class Request implements Runnable
+	{
+		final String mKey;
+		final String mUrl;
+		final int mWidth;
+		final int mHeight;
+		volatile boolean mIsCanceled = false;
+
+		Request(String key, String url, int width, int height)
+		{
+			mKey = key;
+			mUrl = url;
+			mWidth = width;
+			mHeight = height;
+		}
+
+		public void run()
+		{
+			if (mIsCanceled)
+			{
+				return;
+			}
+			final Bitmap bitmap = loadThumbnail(mUrl, mWidth, mHeight);
+			mUiHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					onLoaded(Request.this, bitmap);
+				}
+			});
+		}
+	}
+
+	private final Context mContext;
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+	private HandlerThread mThread;
+	private Handler mHandler;
+
+	private final LruCache<String, Bitmap> mThumbnails;
+	private final Map<String, Request> mRequests = new HashMap<String, Request>();
+	private final Map<ImageView, String> mViewKeys = new WeakHashMap<ImageView, String>();
+
+	private long mLoadCount = 0;
+	private long mCoalescedCount = 0;
+	private long mCancelCount = 0;
+
+	/**
+	 * Creates a thumbnail loader.
+	 * 
+	 * @param context
+	 *            The application context.
+	 */
+	public ArvosThumbnailLoader(Context context)
+	{
+		mContext = context;
+		int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+		mThumbnails = new LruCache<String, Bitmap>(maxBytes)
+		{
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap)
+			{
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		};
+	}
+
+	/**
+	 * Shows a thumbnail in an image view, the placeholder is shown until the
+	 * thumbnail is loaded.
+	 * 
+	 * @param view
+	 *            The image view.
+	 * @param url
+	 *            The url of the thumbnail.
+	 * @param placeholderId
+	 *            The resource id of the placeholder image.
+	 */
+	public void load(ImageView view, String url, int placeholderId)
+	{
+		int width = getSize(view.getWidth(), view.getLayoutParams() == null ? 0 : view.getLayoutParams().width);
+		int height = getSize(view.getHeight(), view.getLayoutParams() == null ? 0 : view.getLayoutParams().height);
+		// Thumbnails of urls with the same cached content share one bitmap
+		String contentHash = ArvosCache.getContentHash(url);
+		String key = (contentHash == null ? url : contentHash) + "@" + width + "x" + height;
+
+		String previousKey = mViewKeys.get(view);
+		if (key.equals(previousKey))
+		{
+			return;
+		}
+		cancel(view);
+
+		Bitmap bitmap = mThumbnails.get(key);
+		if (bitmap != null)
+		{
+			view.setImageBitmap(bitmap);
+			return;
+		}
+		view.setImageResource(placeholderId);
+		if (width <= 0 || height <= 0)
+		{
+			return;
+		}
+
+		mViewKeys.put(view, key);
+		if (mRequests.containsKey(key))
+		{
+			mCoalescedCount++;
+			return;
+		}
+		Request request = new Request(key, url, width, height);
+		mRequests.put(key, request);
+		if (mHandler != null)
+		{
+			mHandler.post(request);
+		}
+	}
+
+	/**
+	 * Stops waiting for a thumbnail for an image view, the request is canceled
+	 * if no other view waits for the thumbnail.
+	 * 
+	 * @param view
+	 *            The image view.
+	 */
+	public void cancel(ImageView view)
+	{
+		String key = mViewKeys.remove(view);
+		if (key == null || mViewKeys.containsValue(key))
+		{
+			return;
+		}
+		Request request = mRequests.remove(key);
+		if (request != null)
+		{
+			request.mIsCanceled = true;
+			if (mHandler != null)
+			{
+				mHandler.removeCallbacks(request);
+			}
+			mCancelCount++;
+		}
+	}
+
+	private static int getSize(int size, int layoutSize)
+	{
+		if (size > 0)
+		{
+			return size;
+		}
+		// match parent and wrap content are negative
+		return Math.max(layoutSize, 0);
+	}
+
+	private void onLoaded(Request request, Bitmap bitmap)
+	{
+		if (mRequests.get(request.mKey) != request)
+		{
+			// canceled meanwhile
+			return;
+		}
+		mRequests.remove(request.mKey);
+		if (bitmap == null)
+		{
+			return;
+		}
+		mLoadCount++;
+		mThumbnails.put(request.mKey, bitmap);
+
+		for (Iterator<Map.Entry<ImageView, String>> iterator = mViewKeys.entrySet().iterator(); iterator.hasNext();)
+		{
+			Map.Entry<ImageView, String> entry = iterator.next();
+			if (request.mKey.equals(entry.getValue()))
+			{
+				entry.getKey().setImageBitmap(bitmap);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a thumbnail at the size of its view, called on the loader
+	 * thread.
+	 */
+	private Bitmap loadThumbnail(String url, int width, int height)
+	{
+		Bitmap bitmap = ArvosCache.getBitmap(url, width, height);
+		if (bitmap == null)
+		{
+			Pair<String, Bitmap> result = new ArvosHttpRequest(null, mContext).downloadImage(url, false);
+			if (!result.first.startsWith("OK") || result.second == null)
+			{
+				Log.d(mTag, "Thumbnail not loaded, " + result.first.substring(2) + " " + url);
+				return null;
+			}
+			// the downloaded bitmap may be shared with concurrent downloads of
+			// the url, it is never recycled here
+			bitmap = ArvosCache.getBitmap(url, width, height);
+			if (bitmap == null)
+			{
+				bitmap = result.second.copy(result.second.getConfig(), false);
+			}
+		}
+
+		// Scale to fit into the view keeping the aspect ratio
+		float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+		int scaledWidth = Math.max(1, Math.round(bitmap.getWidth() * scale));
+		int scaledHeight = Math.max(1, Math.round(bitmap.getHeight() * scale));
+		if (scaledWidth == bitmap.getWidth() && scaledHeight == bitmap.getHeight())
+		{
+			return bitmap;
+		}
+		Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true);
+		if (thumbnail != bitmap)
+		{
+			bitmap.recycle();
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Starts the loader thread, the thumbnails requested while paused are
+	 * loaded.
+	 */
+	public void onResume()
+	{
+		if (mThread == null)
+		{
+			mThread = new HandlerThread("ArvosThumbnailLoader", Process.THREAD_PRIORITY_BACKGROUND);
+			mThread.start();
+			mHandler = new Handler(mThread.getLooper());
+		}
+		for (Request request : mRequests.values())
+		{
+			mHandler.post(request);
+		}
+	}
+
+	/**
+	 * Stops the loader thread, pending requests are loaded after resuming.
+	 */
+	public void onPause()
+	{
+		if (mThread != null)
+		{
+			mThread.quit();
+			mThread = null;
+			mHandler = null;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Thumbnails " + mThumbnails.size() + ", loads " + mLoadCount + ", coalesced " + mCoalescedCount + ", canceled " + mCancelCount;
+	}
+}
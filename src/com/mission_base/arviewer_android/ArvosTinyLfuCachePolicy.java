@@ -0,0 +1,281 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction policy.
+ * <p>
+ * New keys enter a small LRU window holding about one percent of the bytes.
+ * Keys leaving the window are candidates for the main area, a segmented LRU.
+ * A candidate is admitted only if it was requested more often than the main
+ * key it would displace, otherwise the candidate itself is evicted. As a
+ * candidate larger than the next main key would displace several keys, it has
+ * to be requested more often than each of the main keys needed to free its
+ * bytes.
+ * <p>
+ * Request frequencies, of hits and of misses, are estimated by a count-min
+ * sketch of 4-bit counters which are halved periodically, so that the
+ * frequencies of keys no longer requested decay.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosTinyLfuCachePolicy implements IArvosCachePolicy
+{
+	/**
+	 * The share of the bytes held by the window.
+	 */
+	public static final float WINDOW_RATIO = 0.01f;
+
+	// keys in access order, the least recently used first
+	private final LinkedHashMap<String, Long> mWindow = new LinkedHashMap<String, Long>();
+	private long mWindowLength = 0;
+	private final ArvosSlruCachePolicy mMain = new ArvosSlruCachePolicy();
+	private final FrequencySketch mSketch;
+
+	/**
+	 * Creates the policy.
+	 * 
+	 * @param maxEntries
+	 *            The expected maximum number of keys in the cache, used to size
+	 *            the frequency sketch.
+	 */
+	public ArvosTinyLfuCachePolicy(long maxEntries)
+	{
+		mSketch = new FrequencySketch(maxEntries);
+	}
+
+	public String getName()
+	{
+		return "W-TinyLFU";
+	}
+
+	public synchronized void onHit(String key)
+	{
+		mSketch.increment(key);
+		Long length = mWindow.remove(key);
+		if (length != null)
+		{
+			mWindow.put(key, length);
+		}
+		else
+		{
+			mMain.onHit(key);
+		}
+	}
+
+	public synchronized void onMiss(String key)
+	{
+		mSketch.increment(key);
+	}
+
+	public synchronized void onAdd(String key, long length)
+	{
+		onRemove(key);
+		mWindow.put(key, Long.valueOf(length));
+		mWindowLength += length;
+	}
+
+	public synchronized void onRemove(String key)
+	{
+		Long length = mWindow.remove(key);
+		if (length != null)
+		{
+			mWindowLength -= length.longValue();
+		}
+		else
+		{
+			mMain.onRemove(key);
+		}
+	}
+
+	public synchronized String evict()
+	{
+		// The window exceeds its share by more than one key while the cache
+		// fills up, the excess keys are admitted without comparison
+		float windowShare = WINDOW_RATIO * (mWindowLength + mMain.getLength());
+		Iterator<Map.Entry<String, Long>> iterator = mWindow.entrySet().iterator();
+		while (mWindow.size() > 1)
+		{
+			Map.Entry<String, Long> eldest = iterator.next();
+			if (mWindowLength - eldest.getValue().longValue() <= windowShare)
+			{
+				break;
+			}
+			iterator.remove();
+			mWindowLength -= eldest.getValue().longValue();
+			mMain.onAdd(eldest.getKey(), eldest.getValue().longValue());
+		}
+
+		while (true)
+		{
+			Map.Entry<String, Long> candidate = null;
+			if (mWindowLength > WINDOW_RATIO * (mWindowLength + mMain.getLength()))
+			{
+				candidate = mWindow.entrySet().iterator().next();
+			}
+
+			List<String> victims = mMain.getVictims(candidate == null ? 0 : candidate.getValue().longValue());
+			if (candidate == null)
+			{
+				if (!victims.isEmpty())
+				{
+					mMain.onRemove(victims.get(0));
+					return victims.get(0);
+				}
+				return removeEldest();
+			}
+
+			String key = candidate.getKey();
+			long length = candidate.getValue().longValue();
+			removeEldest();
+			if (victims.isEmpty())
+			{
+				// Nothing to compare with, the candidate moves on
+				mMain.onAdd(key, length);
+				continue;
+			}
+
+			int victimsFrequency = 0;
+			for (String victim : victims)
+			{
+				victimsFrequency = Math.max(victimsFrequency, mSketch.frequency(victim));
+			}
+			if (mSketch.frequency(key) <= victimsFrequency)
+			{
+				return key;
+			}
+
+			// The other victims follow in later calls, unless they are
+			// requested meanwhile
+			mMain.onAdd(key, length);
+			mMain.onRemove(victims.get(0));
+			return victims.get(0);
+		}
+	}
+
+	private String removeEldest()
+	{
+		Iterator<Map.Entry<String, Long>> iterator = mWindow.entrySet().iterator();
+		if (!iterator.hasNext())
+		{
+			return null;
+		}
+		Map.Entry<String, Long> eldest = iterator.next();
+		iterator.remove();
+		mWindowLength -= eldest.getValue().longValue();
+		return eldest.getKey();
+	}
+
+	/**
+	 * Returns the estimated request frequency of a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The frequency between 0 and 15.
+	 */
+	public synchronized int frequency(String key)
+	{
+		return mSketch.frequency(key);
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters in four rows.
+	 */
+	private static class FrequencySketch
+	{
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final int MAX_COUNT = 15;
+
+		private final byte[] mCounters;
+		private final int mWidth;
+		private final int mSampleSize;
+		private int mAdditions = 0;
+
+		FrequencySketch(long maxEntries)
+		{
+			int width = 16;
+			while (width < 4 * maxEntries && width < (1 << 20))
+			{
+				width <<= 1;
+			}
+			mWidth = width;
+			mCounters = new byte[SEEDS.length * width];
+			mSampleSize = 10 * width;
+		}
+
+		private int indexOf(int hash, int row)
+		{
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return row * mWidth + ((int) h & (mWidth - 1));
+		}
+
+		private static int spread(String key)
+		{
+			int hash = key.hashCode() * 0x9e3779b9;
+			return hash ^ (hash >>> 16);
+		}
+
+		void increment(String key)
+		{
+			int hash = spread(key);
+			boolean isAdded = false;
+			for (int row = 0; row < SEEDS.length; row++)
+			{
+				int index = indexOf(hash, row);
+				if (mCounters[index] < MAX_COUNT)
+				{
+					mCounters[index]++;
+					isAdded = true;
+				}
+			}
+			if (isAdded && ++mAdditions >= mSampleSize)
+			{
+				// Age all counters
+				for (int i = 0; i < mCounters.length; i++)
+				{
+					mCounters[i] >>= 1;
+				}
+				mAdditions /= 2;
+			}
+		}
+
+		int frequency(String key)
+		{
+			int hash = spread(key);
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < SEEDS.length; row++)
+			{
+				frequency = Math.min(frequency, mCounters[indexOf(hash, row)]);
+			}
+			return frequency;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+/**
+ * Interface of the eviction policies of the ArvosCache.
+ * <p>
+ * A policy keeps its own bookkeeping of the keys in the cache, it is told about
+ * hits, misses, additions and removals and chooses the key to evict when the
+ * cache exceeds its limits. Policies do not depend on Android, so they can be
+ * replayed against recorded traces by the ArvosCacheSimulator. Implementations
+ * must be thread safe.
+ * 
+ * @author peter
+ * 
+ */
+public interface IArvosCachePolicy
+{
+	/**
+	 * Returns the name of the policy.
+	 * 
+	 * @return The name.
+	 */
+	public String getName();
+
+	/**
+	 * Records a lookup of a key found in the cache.
+	 * 
+	 * @param key
+	 *            The key found.
+	 */
+	public void onHit(String key);
+
+	/**
+	 * Records a lookup of a key not found in the cache.
+	 * 
+	 * @param key
+	 *            The key not found.
+	 */
+	public void onMiss(String key);
+
+	/**
+	 * Records a key added to the cache, a key already known is replaced.
+	 * 
+	 * @param key
+	 *            The key added.
+	 * @param length
+	 *            The number of bytes used by the item.
+	 */
+	public void onAdd(String key, long length);
+
+	/**
+	 * Records a key removed from the cache for a reason other than eviction by
+	 * the policy, unknown keys are ignored.
+	 * 
+	 * @param key
+	 *            The key removed.
+	 */
+	public void onRemove(String key);
+
+	/**
+	 * Chooses the key to evict next and forgets it.
+	 * 
+	 * @return The key to evict or null if the policy does not know any keys.
+	 */
+	public String evict();
+}
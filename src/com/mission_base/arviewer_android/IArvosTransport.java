@@ -0,0 +1,63 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Interface of the transports files are downloaded with by the
+ * ArvosHttpRequest.
+ * <p>
+ * Besides the web, files can be served from the raw resources, from a fixture
+ * directory or through a simulated network adding latency, bandwidth limits
+ * and faults to another transport. Implementations must be thread safe.
+ * 
+ * @author peter
+ * 
+ */
+public interface IArvosTransport
+{
+	/**
+	 * Returns the name of the transport.
+	 * 
+	 * @return The name.
+	 */
+	public String getName();
+
+	/**
+	 * Opens the body of a file, must not be called on the UI thread.
+	 * 
+	 * @param url
+	 *            The url of the file.
+	 * @param headers
+	 *            The request headers sent with the request, may be null.
+	 *            Transports not talking http ignore them.
+	 * @return The stream of the body, to be closed by the caller.
+	 * @throws IOException
+	 *             If the file is not available or the transfer failed.
+	 */
+	public InputStream open(String url, Map<String, String> headers) throws IOException;
+}
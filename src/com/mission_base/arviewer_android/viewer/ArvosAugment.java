@@ -23,6 +23,7 @@
 
 package com.mission_base.arviewer_android.viewer;
 
+import android.location.*;
 import com.mission_base.arviewer_android.*;
 import com.mission_base.arviewer_android.viewer.opengl.*;
 import java.util.*;
@@ -45,8 +46,18 @@ public class ArvosAugment
 	public Float mLatitude;
 	public String mDeveloperKey;
 
+	/**
+	 * The url of the thumbnail shown in the augment list, or null.
+	 */
+	public String mThumbnailUrl;
+
 	public LinkedList<ArvosPoi> mPois;
 
+	/**
+	 * The stable id of the augment in the augment list.
+	 */
+	public long mListId;
+
 	public ArvosAugment()
 	{
 		mPois = new LinkedList<ArvosPoi>();
@@ -59,10 +70,13 @@ public class ArvosAugment
 	 *            The input in JSON format.
 	 * @param result
 	 *            The list of augments to parse to.
-	 * @return "OK" or "ER" followed by the error message.
+	 * @return "OK" followed by the url of the next page of the list if there
+	 *         is one, "RD" followed by the url to redirect to, or "ER" followed
+	 *         by the error message.
 	 */
 	public static String parse(String input, List<ArvosAugment> result)
 	{
+		String nextPageUrl = "";
 		try
 		{
 			JSONObject jsonAugmentsList = new JSONObject(input);
@@ -92,6 +106,11 @@ public class ArvosAugment
 				}
 			}
 
+			if (jsonAugmentsList.has("nextPage"))
+			{
+				nextPageUrl = jsonAugmentsList.getString("nextPage").trim();
+			}
+
 			JSONArray jsonAugments = new JSONArray(jsonAugmentsList.getString("augments"));
 
 			if (jsonAugments == null || jsonAugments.length() == 0)
@@ -115,6 +134,7 @@ public class ArvosAugment
 					augment.mLongitude = (float) (jsonAugment.has("lon") ? jsonAugment.getDouble("lon") : 0f);
 					augment.mDescription = jsonAugment.has("description") ? jsonAugment.getString("description") : "";
 					augment.mDeveloperKey = jsonAugment.has("developerKey") ? jsonAugment.getString("developerKey") : "";
+					augment.mThumbnailUrl = jsonAugment.has("thumbnail") ? jsonAugment.getString("thumbnail") : null;
 				}
 			}
 		}
@@ -123,7 +143,51 @@ public class ArvosAugment
 			return "ERJSON parse error. " + e.getLocalizedMessage();
 		}
 
-		return "OK";
+		return "OK" + nextPageUrl;
+	}
+
+	/**
+	 * Returns the distance of the augment from the location of a pose.
+	 * 
+	 * @param pose
+	 *            The pose of the device.
+	 * @return The distance in meters, or Float.MAX_VALUE if the augment has no
+	 *         location.
+	 */
+	public float getDistance(ArvosPose pose)
+	{
+		if (mLatitude == null || mLongitude == null)
+		{
+			return Float.MAX_VALUE;
+		}
+		float[] results = new float[1];
+		Location.distanceBetween(pose.mLatitude, pose.mLongitude, mLatitude, mLongitude, results);
+		return results[0];
+	}
+
+	/**
+	 * Checks whether another augment parsed from the augment list shows the
+	 * same entry in the list.
+	 * 
+	 * @param other
+	 *            The other augment.
+	 * @return True if all properties parsed from the list are equal.
+	 */
+	public boolean isSameListEntry(ArvosAugment other)
+	{
+		return equals(mName, other.mName) //
+				&& equals(mUrl, other.mUrl) //
+				&& equals(mAuthor, other.mAuthor) //
+				&& equals(mDescription, other.mDescription) //
+				&& equals(mLatitude, other.mLatitude) //
+				&& equals(mLongitude, other.mLongitude) //
+				&& equals(mDeveloperKey, other.mDeveloperKey) //
+				&& equals(mThumbnailUrl, other.mThumbnailUrl);
+	}
+
+	private static boolean equals(Object a, Object b)
+	{
+		return a == null ? b == null : a.equals(b);
 	}
 
 	/**
@@ -176,9 +240,11 @@ public class ArvosAugment
 	 *            The current time.
 	 * @param arvosObjects
 	 *            The previous list of objects.
+	 * @param pose
+	 *            The pose of the device the objects are placed for.
 	 * @return Returns the list of all objects.
 	 */
-	public List<ArvosObject> getObjects(long time, List<ArvosObject> arvosObjects)
+	public List<ArvosObject> getObjects(long time, List<ArvosObject> arvosObjects, ArvosPose pose)
 	{
 		List<ArvosObject> result = new LinkedList<ArvosObject>();
 
@@ -186,12 +252,32 @@ public class ArvosAugment
 		{
 			for (ArvosPoi poi : mPois)
 			{
-				poi.getObjects(time, result, arvosObjects);
+				poi.getObjects(time, result, arvosObjects, pose);
 			}
 		}
 		return result;
 	}
 
+	/**
+	 * Returns whether any poi of the augment shows an animation.
+	 * 
+	 * @return True if a poi is animated.
+	 */
+	public boolean isAnimated()
+	{
+		synchronized (mPois)
+		{
+			for (ArvosPoi poi : mPois)
+			{
+				if (poi.isAnimated())
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Handles a click on an object in the opengl view.
 	 * 
@@ -0,0 +1,400 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.Size;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.mission_base.arviewer_android.Arvos;
+
+/**
+ * Owns the camera and runs all camera calls on a dedicated thread.
+ * <p>
+ * The camera thread lives as long as the process and is shared by all
+ * instances, so the release of the camera by a paused or rotated viewer is
+ * always done before the camera is opened again.
+ * <p>
+ * The camera is opened on the camera thread as soon as the viewer resumes, in
+ * parallel to the download of the textures, so it is usually ready when the
+ * preview surface appears. Preview frames are delivered into a small set of
+ * callback buffers that are handed back to the camera after each frame, no
+ * memory is allocated per frame.
+ * <p>
+ * The preview is either shown on the surface of a view or rendered into a
+ * SurfaceTexture that is drawn by the opengl renderer.
+ * <p>
+ * The time needed to open the camera and the time until the first preview
+ * frame arrives are measured from the open request and logged.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCamera
+{
+	private static String mTag = "ArvosCamera";
+
+	/**
+	 * The number of preview callback buffers used.
+	 */
+	public static final int CALLBACK_BUFFERS = 3;
+
+	/**
+	 * The maximum time in milliseconds stopPreview waits for the camera
+	 * thread.
+	 */
+	public static final long STOP_TIMEOUT_MILLIS = 2000L;
+
+	private static HandlerThread mCameraThread;
+	private static Handler mSharedHandler;
+
+	// the handler of the camera thread while the camera is open, else null
+	private volatile Handler mCameraHandler;
+
+	// only used on the camera thread
+	private Camera mCamera;
+	private Size mPreviewSize;
+	private boolean mIsPreviewing = false;
+
+	private volatile long mOpenRequestTime = 0;
+	private volatile long mOpenMillis = -1;
+	private volatile long mFirstFrameMillis = -1;
+	private volatile long mFrameCount = 0;
+
+	private static synchronized Handler getSharedHandler()
+	{
+		if (mCameraThread == null)
+		{
+			mCameraThread = new HandlerThread("ArvosCameraThread", Process.THREAD_PRIORITY_DISPLAY);
+			mCameraThread.start();
+			mSharedHandler = new Handler(mCameraThread.getLooper());
+		}
+		return mSharedHandler;
+	}
+
+	/**
+	 * Opens the camera asynchronously, starts the camera thread if needed.
+	 */
+	public void open()
+	{
+		mCameraHandler = getSharedHandler();
+
+		mOpenRequestTime = SystemClock.elapsedRealtime();
+		mOpenMillis = -1;
+		mFirstFrameMillis = -1;
+		mFrameCount = 0;
+
+		mCameraHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				if (mCamera != null)
+				{
+					return;
+				}
+				try
+				{
+					mCamera = Camera.open();
+					mOpenMillis = SystemClock.elapsedRealtime() - mOpenRequestTime;
+					Log.d(mTag, "Camera opened in " + mOpenMillis + " ms");
+				}
+				catch (Exception e)
+				{
+					Log.d(mTag, "Camera not opened, " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the preview on a surface asynchronously, the camera is opened
+	 * before if needed.
+	 * 
+	 * @param holder
+	 *            The holder of the surface to show the preview on.
+	 * @param width
+	 *            The width of the surface.
+	 * @param height
+	 *            The height of the surface.
+	 */
+	public void startPreview(SurfaceHolder holder, int width, int height)
+	{
+		startPreview(holder, null, width, height);
+	}
+
+	/**
+	 * Starts the preview into a surface texture asynchronously, the camera is
+	 * opened before if needed.
+	 * 
+	 * @param surfaceTexture
+	 *            The surface texture to render the preview to.
+	 * @param width
+	 *            The width of the view the texture is shown in.
+	 * @param height
+	 *            The height of the view the texture is shown in.
+	 */
+	public void startPreview(SurfaceTexture surfaceTexture, int width, int height)
+	{
+		startPreview(null, surfaceTexture, width, height);
+	}
+
+	private void startPreview(final SurfaceHolder holder, final SurfaceTexture surfaceTexture, final int width, final int height)
+	{
+		Handler handler = mCameraHandler;
+		if (handler == null)
+		{
+			return;
+		}
+		handler.post(new Runnable()
+		{
+			public void run()
+			{
+				if (mCamera == null)
+				{
+					return;
+				}
+				try
+				{
+					stopPreviewLocal();
+					if (surfaceTexture != null)
+					{
+						mCamera.setPreviewTexture(surfaceTexture);
+					}
+					else
+					{
+						mCamera.setPreviewDisplay(holder);
+					}
+					startPreviewLocal(width, height);
+				}
+				catch (Exception e)
+				{
+					Log.d(mTag, "Preview not started, " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the preview and waits until it is stopped, so the surface can be
+	 * destroyed afterwards.
+	 */
+	public void stopPreview()
+	{
+		Handler handler = mCameraHandler;
+		if (handler == null)
+		{
+			return;
+		}
+		final CountDownLatch stopped = new CountDownLatch(1);
+		handler.post(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					stopPreviewLocal();
+				}
+				finally
+				{
+					stopped.countDown();
+				}
+			}
+		});
+		try
+		{
+			if (!stopped.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				Log.d(mTag, "Preview not stopped within " + STOP_TIMEOUT_MILLIS + " ms");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops the preview and releases the camera asynchronously, before any
+	 * later open.
+	 */
+	public void close()
+	{
+		Handler handler = mCameraHandler;
+		if (handler == null)
+		{
+			return;
+		}
+		handler.post(new Runnable()
+		{
+			public void run()
+			{
+				stopPreviewLocal();
+				if (mCamera != null)
+				{
+					mCamera.release();
+					mCamera = null;
+				}
+				Log.d(mTag, "Camera closed, open " + mOpenMillis + " ms, first frame " + mFirstFrameMillis + " ms, frames " + mFrameCount);
+			}
+		});
+		mCameraHandler = null;
+	}
+
+	/**
+	 * Returns the time in milliseconds it took to open the camera.
+	 * 
+	 * @return The time to open the camera or -1 if it is not open yet.
+	 */
+	public long getOpenMillis()
+	{
+		return mOpenMillis;
+	}
+
+	/**
+	 * Returns the time in milliseconds from the open request to the first
+	 * preview frame.
+	 * 
+	 * @return The time to the first frame or -1 if no frame arrived yet.
+	 */
+	public long getFirstFrameMillis()
+	{
+		return mFirstFrameMillis;
+	}
+
+	private void startPreviewLocal(int width, int height)
+	{
+		Camera.Parameters parameters = mCamera.getParameters();
+		mPreviewSize = getOptimalPreviewSize(parameters.getSupportedPreviewSizes(), width, height);
+		parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
+		mCamera.setParameters(parameters);
+		setCameraDisplayOrientation(0, mCamera);
+
+		int bufferSize = mPreviewSize.width * mPreviewSize.height * ImageFormat.getBitsPerPixel(parameters.getPreviewFormat()) / 8;
+		for (int i = 0; i < CALLBACK_BUFFERS; i++)
+		{
+			mCamera.addCallbackBuffer(new byte[bufferSize]);
+		}
+		mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+
+		Log.d(mTag, "startPreview " + mPreviewSize.width + "x" + mPreviewSize.height);
+		mCamera.startPreview();
+		mIsPreviewing = true;
+	}
+
+	private void stopPreviewLocal()
+	{
+		if (mCamera != null && mIsPreviewing)
+		{
+			mCamera.setPreviewCallbackWithBuffer(null);
+			mCamera.stopPreview();
+			mIsPreviewing = false;
+		}
+	}
+
+	private Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback()
+	{
+		public void onPreviewFrame(byte[] data, Camera camera)
+		{
+			if (mFrameCount++ == 0)
+			{
+				mFirstFrameMillis = SystemClock.elapsedRealtime() - mOpenRequestTime;
+				Log.d(mTag, "First preview frame after " + mFirstFrameMillis + " ms");
+			}
+			camera.addCallbackBuffer(data);
+		}
+	};
+
+	private static void setCameraDisplayOrientation(int cameraId, Camera camera)
+	{
+		Camera.CameraInfo info = new Camera.CameraInfo();
+		Camera.getCameraInfo(cameraId, info);
+
+		int degrees = Arvos.getInstance().getRotationDegrees();
+		// Log.d(mTag, "RotationDegrees = " + degrees);
+
+		int result;
+		if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
+		{
+			result = (info.orientation + degrees) % 360;
+			result = (360 - result) % 360; // compensate the mirror
+		}
+		else
+		{ // back-facing
+			result = (info.orientation - degrees + 360) % 360;
+		}
+		camera.setDisplayOrientation(result);
+	}
+
+	private static Size getOptimalPreviewSize(List<Size> sizes, int w, int h)
+	{
+		final double ASPECT_TOLERANCE = 0.1;
+		double targetRatio = (double) w / h;
+		if (sizes == null)
+			return null;
+
+		Size optimalSize = null;
+		double minDiff = Double.MAX_VALUE;
+
+		int targetHeight = h;
+
+		// Try to find an size match aspect ratio and size
+		for (Size size : sizes)
+		{
+			double ratio = (double) size.width / size.height;
+			if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
+				continue;
+			if (Math.abs(size.height - targetHeight) < minDiff)
+			{
+				optimalSize = size;
+				minDiff = Math.abs(size.height - targetHeight);
+			}
+		}
+
+		// Cannot find the one match the aspect ratio, ignore the requirement
+		if (optimalSize == null)
+		{
+			minDiff = Double.MAX_VALUE;
+			for (Size size : sizes)
+			{
+				if (Math.abs(size.height - targetHeight) < minDiff)
+				{
+					optimalSize = size;
+					minDiff = Math.abs(size.height - targetHeight);
+				}
+			}
+		}
+		return optimalSize;
+	}
+}
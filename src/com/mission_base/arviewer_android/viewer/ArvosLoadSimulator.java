@@ -0,0 +1,334 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+package com.mission_base.arviewer_android.viewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.mission_base.arviewer_android.ArvosCacheStats;
+import com.mission_base.arviewer_android.ArvosCacheStore;
+import com.mission_base.arviewer_android.ArvosFixtureTransport;
+import com.mission_base.arviewer_android.ArvosLruCachePolicy;
+import com.mission_base.arviewer_android.ArvosPrefetcher;
+import com.mission_base.arviewer_android.ArvosSimulatedTransport;
+import com.mission_base.arviewer_android.IArvosTransport;
+
+/**
+ * Loads an augment list, its augments and their textures through an
+ * ArvosSimulatedTransport and an ArvosCacheStore, and prints the loading times
+ * as CSV. Runs on a desktop java vm with the android.jar of the sdk and the
+ * org.json implementation of android on the class path, parsing does not call
+ * into android.
+ * <p>
+ * The harness measures the timing of the transport and the hits of the cache
+ * store only. ArvosHttpRequest and ArvosTexturePreparer decode bitmaps and
+ * need an android runtime, so they are not driven, the order of the downloads
+ * follows them and has to be kept in step when they change.
+ * <p>
+ * The augment list is parsed and redirects are followed, it is never cached.
+ * Each augment is read from the cache or downloaded and parsed, then the first
+ * texture of each object is loaded one after the other as the viewer does
+ * before the augment is shown. Afterwards the other resolutions of the
+ * textures are loaded as the texture preparer does once objects are drawn
+ * large enough. Texts are cached for ArvosPrefetcher.MAX_TEXT_AGE, textures
+ * are stored shared by content like the cache of the app does.
+ * <p>
+ * The random draws of the simulated transport only depend on its seed and the
+ * urls, so a run with the same fixtures and specification makes the same
+ * requests with the same delays and failures.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosLoadSimulator
+{
+	private static final int MAX_REDIRECTS = 5;
+
+	// the limits of the cache of the app
+	private static final long MAX_AGE = 1000L * 60 * 60 * 24 * 30;
+	private static final long MAX_FILES = 256;
+	private static final long MAX_SIZE = 64 * 1024 * 1024;
+
+	private final IArvosTransport mTransport;
+	private final ArvosCacheStore mStore;
+
+	/**
+	 * Creates a load simulator.
+	 * 
+	 * @param transport
+	 *            The transport the files are downloaded with.
+	 * @param store
+	 *            The cache the files are read from and added to, loaded
+	 *            already.
+	 */
+	public ArvosLoadSimulator(IArvosTransport transport, ArvosCacheStore store)
+	{
+		mTransport = transport;
+		mStore = store;
+	}
+
+	/**
+	 * Reads a file from the cache or downloads and caches it, and prints a CSV
+	 * line of the load.
+	 * 
+	 * @param maxAge
+	 *            The maximum age of a cached copy, -1 if the file is not
+	 *            cached.
+	 * @param isShared
+	 *            True if the file is stored shared by content.
+	 * @return The bytes or null if the download failed.
+	 */
+	private byte[] load(String phase, String url, long maxAge, boolean isShared)
+	{
+		long start = System.nanoTime();
+		if (maxAge >= 0L)
+		{
+			byte[] cached = mStore.get(url, maxAge);
+			if (cached != null)
+			{
+				System.out.println(phase + "," + url + ",CACHED," + cached.length + "," + (System.nanoTime() - start) / 1000000L);
+				return cached;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String result = "OK";
+		try
+		{
+			InputStream inputStream = mTransport.open(url, null);
+			try
+			{
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = inputStream.read(buffer)) > 0)
+				{
+					bytes.write(buffer, 0, count);
+				}
+			}
+			finally
+			{
+				inputStream.close();
+			}
+		}
+		catch (IOException e)
+		{
+			result = String.valueOf(e.getMessage()).replace(',', ' ');
+		}
+		if ("OK".equals(result) && maxAge >= 0L)
+		{
+			byte[] data = bytes.toByteArray();
+			if (!(isShared ? mStore.addShared(url, data) : mStore.add(url, data)))
+			{
+				result = "Cache write error";
+			}
+		}
+		System.out.println(phase + "," + url + "," + result + "," + bytes.size() + "," + (System.nanoTime() - start) / 1000000L);
+		return "OK".equals(result) ? bytes.toByteArray() : null;
+	}
+
+	private String loadText(String phase, String url, long maxAge)
+	{
+		byte[] bytes = load(phase, url, maxAge, false);
+		if (bytes == null)
+		{
+			return null;
+		}
+		try
+		{
+			return new String(bytes, "UTF-8");
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the augment list, following redirects.
+	 * 
+	 * @return The augments listed.
+	 */
+	public List<ArvosAugment> loadList(String url)
+	{
+		List<ArvosAugment> augments = new LinkedList<ArvosAugment>();
+		for (int i = 0; i <= MAX_REDIRECTS && url != null; i++)
+		{
+			String text = loadText("list", url, -1L);
+			if (text == null)
+			{
+				break;
+			}
+			String result = ArvosAugment.parse(text, augments);
+			url = null;
+			if (result.startsWith("RD"))
+			{
+				url = result.substring(2);
+			}
+			else if (result.startsWith("ER"))
+			{
+				System.out.println("# list not parsed, " + result.substring(2));
+			}
+		}
+		return augments;
+	}
+
+	/**
+	 * Loads an augment and its textures and prints a summary of the times.
+	 * 
+	 * @param listed
+	 *            The augment as listed in the augment list.
+	 */
+	public void loadAugment(ArvosAugment listed)
+	{
+		long start = System.nanoTime();
+		String text = loadText("augment", listed.mUrl, ArvosPrefetcher.MAX_TEXT_AGE);
+		if (text == null)
+		{
+			return;
+		}
+		ArvosAugment augment = new ArvosAugment();
+		String result = augment.parse(text);
+		if (!result.startsWith("OK"))
+		{
+			System.out.println("# " + listed.mName + " not parsed, " + result.substring(2));
+			return;
+		}
+
+		int objectCount = 0;
+		List<ArvosPoiObject> poiObjects = new LinkedList<ArvosPoiObject>();
+		for (ArvosPoi poi : augment.mPois)
+		{
+			for (ArvosPoiObject poiObject : poi.mPoiObjects)
+			{
+				objectCount++;
+				poiObjects.add(poiObject);
+				String url = poiObject.getFirstTextureUrl();
+				if (url != null)
+				{
+					load("texture", url, 0L, true);
+				}
+			}
+		}
+		long shownMillis = (System.nanoTime() - start) / 1000000L;
+
+		for (ArvosPoiObject poiObject : poiObjects)
+		{
+			List<String> urls = new LinkedList<String>();
+			if (poiObject.mLodUrls != null)
+			{
+				for (String url : poiObject.mLodUrls)
+				{
+					urls.add(url);
+				}
+			}
+			if (poiObject.mTextureUrl != null)
+			{
+				urls.add(poiObject.mTextureUrl);
+			}
+			for (String url : urls)
+			{
+				load("variant", url, 0L, true);
+			}
+		}
+		long loadedMillis = (System.nanoTime() - start) / 1000000L;
+		System.out.println("# " + listed.mName + ": " + augment.mPois.size() + " pois, " + objectCount + " objects, shown after " + shownMillis
+				+ " ms, all textures after " + loadedMillis + " ms");
+	}
+
+	/**
+	 * Loads an augment list and its augments from fixtures through a simulated
+	 * network and prints the times of the downloads as CSV.
+	 * 
+	 * @param args
+	 *            The specification of the simulated transport as accepted by
+	 *            ArvosSimulatedTransport.parse, the url of the augment list,
+	 *            optionally the number of augments loaded and a cache
+	 *            directory kept for the next run. Without a cache directory
+	 *            the run starts with an empty cache.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: ArvosLoadSimulator \"fixtures=dir latency=200 bandwidth=65536 ...\" listUrl [augments [cacheDir]]");
+			return;
+		}
+		ArvosSimulatedTransport transport = ArvosSimulatedTransport.parse(args[0], new ArvosFixtureTransport(new File(".")));
+		int maxAugments = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+		File cacheDir;
+		if (args.length > 3)
+		{
+			cacheDir = new File(args[3]);
+		}
+		else
+		{
+			cacheDir = File.createTempFile("arvoscache", "");
+			cacheDir.delete();
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ArvosCacheStats stats = new ArvosCacheStats();
+		ArvosCacheStore store = new ArvosCacheStore(MAX_AGE, MAX_FILES, MAX_SIZE, new ArvosLruCachePolicy(), stats, executor);
+		store.load(cacheDir);
+		ArvosLoadSimulator simulator = new ArvosLoadSimulator(transport, store);
+
+		System.out.println("# phase,url,result,bytes,millis");
+		long start = System.nanoTime();
+		List<ArvosAugment> augments = simulator.loadList(args[1]);
+		int count = 0;
+		for (ArvosAugment augment : augments)
+		{
+			if (count++ >= maxAugments)
+			{
+				break;
+			}
+			simulator.loadAugment(augment);
+		}
+		System.out.println("# " + Math.min(count, augments.size()) + " of " + augments.size() + " augments loaded in " + (System.nanoTime() - start)
+				/ 1000000L + " ms");
+		System.out.println("# " + transport);
+		System.out.println("# " + stats.toString().replace("\n", "\n# "));
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		if (args.length <= 3)
+		{
+			File[] files = cacheDir.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					file.delete();
+				}
+			}
+			cacheDir.delete();
+		}
+	}
+}
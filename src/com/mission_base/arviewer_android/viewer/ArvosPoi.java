@@ -53,6 +53,10 @@ public class ArvosPoi
 
 	private Arvos mInstance;
 
+	private long mOffsetLocationVersion = -1;
+	private float mOffsetX = 0f;
+	private float mOffsetZ = 0f;
+
 	/**
 	 * Constructor.
 	 * 
@@ -118,11 +122,91 @@ public class ArvosPoi
 	 *            The list to add the resulting objects to.
 	 * @param arvosObjects
 	 *            The previous list of objects.
+	 * @param pose
+	 *            The pose of the device the objects are placed for.
+	 */
+	public void getObjects(long time, List<ArvosObject> result, List<ArvosObject> arvosObjects, ArvosPose pose)
+	{
+		if (pose.mLocationVersion != mOffsetLocationVersion)
+		{
+			calculateOffsets(pose);
+			mOffsetLocationVersion = pose.mLocationVersion;
+		}
+		float offsetX = mOffsetX;
+		float offsetZ = mOffsetZ;
+
+		HashSet<String> objectsToDraw = new HashSet<String>();
+		for (ArvosPoiObject poiObject : mPoiObjects)
+		{
+			ArvosObject arvosObject = poiObject.getObject(time, arvosObjects);
+			if (arvosObject != null)
+			{
+				arvosObject.mPosition[0] += offsetX;
+				arvosObject.mPosition[2] += offsetZ;
+				setDistance(arvosObject);
+
+				objectsToDraw.add(arvosObject.mName);
+				result.add(arvosObject);
+			}
+		}
+
+		synchronized (mObjectsClicked)
+		{
+			for (ArvosPoiObject poiObject : mObjectsClicked)
+			{
+				poiObject.onClick();
+			}
+			mObjectsClicked.clear();
+		}
+
+		for (ArvosPoiObject poiObject : mObjectsToDeactivate)
+		{
+			poiObject.stop();
+		}
+		mObjectsToDeactivate.clear();
+
+		for (ArvosPoiObject poiObject : mObjectsToStart)
+		{
+			poiObject.start(time);
+
+			if (!objectsToDraw.contains(poiObject.mName))
+			{
+				ArvosObject arvosObject = poiObject.getObject(time, arvosObjects);
+				if (arvosObject != null)
+				{
+					setDistance(arvosObject);
+					objectsToDraw.add(arvosObject.mName);
+					result.add(arvosObject);
+				}
+			}
+		}
+		mObjectsToStart.clear();
+	}
+
+	/**
+	 * Sets the distance of an object from the device, used to choose the
+	 * resolution of its texture.
+	 * 
+	 * @param arvosObject
+	 *            The object placed in the world coordinates of the device.
+	 */
+	private static void setDistance(ArvosObject arvosObject)
+	{
+		float[] position = arvosObject.mPosition;
+		arvosObject.mDistance = (float) Math.sqrt(position[0] * position[0] + position[1] * position[1] + position[2] * position[2]);
+	}
+
+	/**
+	 * Calculates the offsets of the poi from the location of the device in
+	 * meters, X east and Z north.
+	 * 
+	 * @param pose
+	 *            The pose of the device.
 	 */
-	public void getObjects(long time, List<ArvosObject> result, List<ArvosObject> arvosObjects)
+	private void calculateOffsets(ArvosPose pose)
 	{
-		float deviceLatitude = mInstance.mLatitude;
-		float deviceLongitude = mInstance.mLongitude;
+		float deviceLatitude = pose.mLatitude;
+		float deviceLongitude = pose.mLongitude;
 		float poiLatitude = 0f;
 		float poiLongitude = 0f;
 
@@ -181,50 +265,8 @@ public class ArvosPoi
 			}
 		}
 
-		HashSet<String> objectsToDraw = new HashSet<String>();
-		for (ArvosPoiObject poiObject : mPoiObjects)
-		{
-			ArvosObject arvosObject = poiObject.getObject(time, arvosObjects);
-			if (arvosObject != null)
-			{
-				arvosObject.mPosition[0] += offsetX;
-				arvosObject.mPosition[2] += offsetZ;
-
-				objectsToDraw.add(arvosObject.mName);
-				result.add(arvosObject);
-			}
-		}
-
-		synchronized (mObjectsClicked)
-		{
-			for (ArvosPoiObject poiObject : mObjectsClicked)
-			{
-				poiObject.onClick();
-			}
-			mObjectsClicked.clear();
-		}
-
-		for (ArvosPoiObject poiObject : mObjectsToDeactivate)
-		{
-			poiObject.stop();
-		}
-		mObjectsToDeactivate.clear();
-
-		for (ArvosPoiObject poiObject : mObjectsToStart)
-		{
-			poiObject.start(time);
-
-			if (!objectsToDraw.contains(poiObject.mName))
-			{
-				ArvosObject arvosObject = poiObject.getObject(time, arvosObjects);
-				if (arvosObject != null)
-				{
-					objectsToDraw.add(arvosObject.mName);
-					result.add(arvosObject);
-				}
-			}
-		}
-		mObjectsToStart.clear();
+		mOffsetX = offsetX;
+		mOffsetZ = offsetZ;
 	}
 
 	/**
@@ -295,6 +337,9 @@ public class ArvosPoi
 	public void requestStart(ArvosPoiObject poiObject)
 	{
 		mObjectsToStart.add(poiObject);
+
+		// The frame processing the request may already have its objects
+		Arvos.getInstance().requestRender();
 	}
 
 	/**
@@ -305,6 +350,7 @@ public class ArvosPoi
 	public void requestStop(ArvosPoiObject poiObject)
 	{
 		mObjectsToDeactivate.add(poiObject);
+		Arvos.getInstance().requestRender();
 	}
 
 	/**
@@ -329,5 +375,27 @@ public class ArvosPoi
 		{
 			mObjectsClicked.add(poiObject);
 		}
+		Arvos.getInstance().requestRender();
+	}
+
+	/**
+	 * Returns whether the poi shows an animation.
+	 * 
+	 * @return True if the poi is animated and has an active poi object.
+	 */
+	public boolean isAnimated()
+	{
+		if (mAnimationDuration <= 0)
+		{
+			return false;
+		}
+		for (ArvosPoiObject poiObject : mPoiObjects)
+		{
+			if (poiObject.mIsActive)
+			{
+				return true;
+			}
+		}
+		return false;
 	}
 }
@@ -41,6 +41,17 @@ public class ArvosPoiObject
 	public String mTextureUrl;
 	public String mBillboardHandling;
 
+	/**
+	 * Urls of lower resolution variants of the texture, ordered from the lowest
+	 * to the highest resolution, or null.
+	 */
+	public String[] mLodUrls;
+
+	/**
+	 * The sizes in pixels of the larger side of the texture variants.
+	 */
+	public int[] mLodSizes;
+
 	public long mStartTime;
 	public long mAnimationDuration;
 
@@ -67,6 +78,9 @@ public class ArvosPoiObject
 	public long mTimeStarted;
 	public ArvosPoi mParent;
 
+	/**
+	 * The image of the first texture url, if it is not cached.
+	 */
 	public Bitmap mImage;
 
 	/**
@@ -102,6 +116,10 @@ public class ArvosPoiObject
 		if (jsonPoiObject != null)
 		{
 			mTextureUrl = jsonPoiObject.getString("texture");
+			if (jsonPoiObject.has("textureLod"))
+			{
+				parseTextureLod(new JSONArray(jsonPoiObject.getString("textureLod")));
+			}
 
 			mName = jsonPoiObject.has("name") ? jsonPoiObject.getString("name") : ("\" " + mId);
 			mBillboardHandling = jsonPoiObject.has("billboardHandling") ? jsonPoiObject.getString("billboardHandling") : null;
@@ -205,6 +223,57 @@ public class ArvosPoiObject
 		}
 	}
 
+	/**
+	 * Parses the lower resolution variants of the texture, each given by url
+	 * and the size of its larger side in pixels. The variants are sorted by
+	 * size.
+	 * 
+	 * @param jsonArray
+	 *            The JSON array of the variants.
+	 * @throws JSONException
+	 *             JSON parse exception.
+	 */
+	private void parseTextureLod(JSONArray jsonArray) throws JSONException
+	{
+		List<JSONObject> variants = new LinkedList<JSONObject>();
+		for (int i = 0; i < jsonArray.length(); i++)
+		{
+			JSONObject jsonVariant = jsonArray.getJSONObject(i);
+			if (jsonVariant.has("url") && jsonVariant.getInt("size") > 0)
+			{
+				int index = 0;
+				while (index < variants.size() && variants.get(index).getInt("size") < jsonVariant.getInt("size"))
+				{
+					index++;
+				}
+				variants.add(index, jsonVariant);
+			}
+		}
+		if (variants.isEmpty())
+		{
+			return;
+		}
+
+		mLodUrls = new String[variants.size()];
+		mLodSizes = new int[variants.size()];
+		for (int i = 0; i < mLodUrls.length; i++)
+		{
+			mLodUrls[i] = variants.get(i).getString("url");
+			mLodSizes[i] = variants.get(i).getInt("size");
+		}
+	}
+
+	/**
+	 * Returns the url of the texture to be downloaded first, the variant with
+	 * the lowest resolution if there are variants.
+	 * 
+	 * @return The url or null if the object has no texture.
+	 */
+	public String getFirstTextureUrl()
+	{
+		return mLodUrls != null ? mLodUrls[0] : mTextureUrl;
+	}
+
 	/**
 	 * Parses 3 float values, x, y, and z.
 	 * 
@@ -307,6 +376,8 @@ public class ArvosPoiObject
 			result = findArvosObject(arvosObjects);
 			result.mName = mName;
 			result.mTextureUrl = mTextureUrl;
+			result.mLodUrls = mLodUrls;
+			result.mLodSizes = mLodSizes;
 			result.mBillboardHandling = mBillboardHandling;
 			if (result.mPosition == null)
 			{
@@ -348,6 +419,8 @@ public class ArvosPoiObject
 		result = findArvosObject(arvosObjects);
 		result.mName = mName;
 		result.mTextureUrl = mTextureUrl;
+		result.mLodUrls = mLodUrls;
+		result.mLodSizes = mLodSizes;
 		result.mBillboardHandling = mBillboardHandling;
 		result.mPosition = mStartPosition;
 		result.mScale = mStartScale;
@@ -0,0 +1,265 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer;
+
+/**
+ * Predicts the orientation of the device at the time a frame is displayed.
+ * <p>
+ * The angular velocity of azimuth, pitch and roll is estimated from the
+ * filtered orientation samples of the sensor handler. The last sample is then
+ * extrapolated to the expected display time, so the augment does not trail the
+ * camera preview.
+ * <p>
+ * The last samples are kept with their times, so the orientation at a past
+ * time, e.g. the time a camera frame was captured, is interpolated between the
+ * samples around it.
+ * <p>
+ * Samples are added by the sensor thread, predictions are requested by the
+ * opengl thread.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosPosePredictor
+{
+	/**
+	 * Default smoothing factor applied to the angular velocity estimate.
+	 */
+	public static final float DEFAULT_VELOCITY_ALPHA = 0.5f;
+
+	/**
+	 * Default maximum time in milliseconds the pose is extrapolated.
+	 */
+	public static final long DEFAULT_MAX_PREDICTION_MILLIS = 100L;
+
+	/**
+	 * Default maximum angular velocity in degrees per second.
+	 */
+	public static final float DEFAULT_MAX_VELOCITY = 720f;
+
+	/**
+	 * The number of samples kept for interpolation, a few seconds of sensor
+	 * events.
+	 */
+	public static final int HISTORY_SIZE = 64;
+
+	private float mVelocityAlpha = DEFAULT_VELOCITY_ALPHA;
+	private long mMaxPredictionNanos = DEFAULT_MAX_PREDICTION_MILLIS * 1000000L;
+	private float mMaxVelocity = DEFAULT_MAX_VELOCITY;
+
+	private boolean mHasSample = false;
+	private long mSampleTime;
+	private float[] mAngles = new float[3];
+	private float[] mVelocities = new float[3];
+
+	// ring of the last samples, mHistoryEnd is the index of the next sample
+	private final long[] mHistoryTimes = new long[HISTORY_SIZE];
+	private final float[][] mHistoryAngles = new float[HISTORY_SIZE][3];
+	private int mHistoryEnd = 0;
+	private int mHistoryCount = 0;
+
+	/**
+	 * Creates a predictor with the default tuning.
+	 */
+	public ArvosPosePredictor()
+	{
+	}
+
+	/**
+	 * Creates a predictor with the given tuning.
+	 * 
+	 * @param velocityAlpha
+	 *            Smoothing factor of the angular velocity, 1 means no
+	 *            smoothing.
+	 * @param maxPredictionMillis
+	 *            Maximum time in milliseconds the pose is extrapolated.
+	 * @param maxVelocity
+	 *            Maximum angular velocity in degrees per second.
+	 */
+	public ArvosPosePredictor(float velocityAlpha, long maxPredictionMillis, float maxVelocity)
+	{
+		mVelocityAlpha = velocityAlpha;
+		mMaxPredictionNanos = maxPredictionMillis * 1000000L;
+		mMaxVelocity = maxVelocity;
+	}
+
+	/**
+	 * Restricts an angle to [-180, 180[ degrees.
+	 * 
+	 * @param angle
+	 *            The angle in degrees.
+	 * @return The restricted angle.
+	 */
+	public static float restrictAngle(float angle)
+	{
+		while (angle >= 180)
+		{
+			angle -= 360;
+		}
+		while (angle < -180)
+		{
+			angle += 360;
+		}
+		return angle;
+	}
+
+	/**
+	 * Forgets all samples, e.g. when the sensors are restarted.
+	 */
+	public synchronized void reset()
+	{
+		mHasSample = false;
+		mVelocities[0] = mVelocities[1] = mVelocities[2] = 0f;
+		mHistoryEnd = 0;
+		mHistoryCount = 0;
+	}
+
+	/**
+	 * Adds an orientation sample.
+	 * 
+	 * @param time
+	 *            The time of the sample in nanoseconds, System.nanoTime() base.
+	 * @param azimuth
+	 *            The azimuth in degrees.
+	 * @param pitch
+	 *            The pitch in degrees.
+	 * @param roll
+	 *            The roll in degrees.
+	 */
+	public synchronized void addSample(long time, float azimuth, float pitch, float roll)
+	{
+		if (mHasSample && time > mSampleTime)
+		{
+			float seconds = (time - mSampleTime) / 1000000000f;
+			updateVelocity(0, azimuth, seconds);
+			updateVelocity(1, pitch, seconds);
+			updateVelocity(2, roll, seconds);
+		}
+		mAngles[0] = azimuth;
+		mAngles[1] = pitch;
+		mAngles[2] = roll;
+		mSampleTime = time;
+		mHasSample = true;
+
+		if (mHistoryCount > 0 && time <= mHistoryTimes[(mHistoryEnd + HISTORY_SIZE - 1) % HISTORY_SIZE])
+		{
+			// keep the ring ordered by time
+			return;
+		}
+		mHistoryTimes[mHistoryEnd] = time;
+		mHistoryAngles[mHistoryEnd][0] = azimuth;
+		mHistoryAngles[mHistoryEnd][1] = pitch;
+		mHistoryAngles[mHistoryEnd][2] = roll;
+		mHistoryEnd = (mHistoryEnd + 1) % HISTORY_SIZE;
+		mHistoryCount = Math.min(mHistoryCount + 1, HISTORY_SIZE);
+	}
+
+	private void updateVelocity(int index, float angle, float seconds)
+	{
+		float velocity = restrictAngle(angle - mAngles[index]) / seconds;
+		if (velocity > mMaxVelocity)
+		{
+			velocity = mMaxVelocity;
+		}
+		else if (velocity < -mMaxVelocity)
+		{
+			velocity = -mMaxVelocity;
+		}
+		mVelocities[index] += mVelocityAlpha * (velocity - mVelocities[index]);
+	}
+
+	/**
+	 * Predicts the orientation at the given time. Times after the last sample
+	 * are extrapolated, earlier times are interpolated between the samples
+	 * kept, times before the oldest sample kept get the oldest sample.
+	 * 
+	 * @param time
+	 *            The time the orientation is needed for in nanoseconds,
+	 *            System.nanoTime() base.
+	 * @param result
+	 *            Receives azimuth, pitch and roll in degrees.
+	 * @return False if no sample was added yet, result is unchanged then.
+	 */
+	public synchronized boolean predict(long time, float[] result)
+	{
+		if (!mHasSample)
+		{
+			return false;
+		}
+		long delta = time - mSampleTime;
+		if (delta < 0 && mHistoryCount > 0)
+		{
+			interpolate(time, result);
+			return true;
+		}
+		if (delta < 0)
+		{
+			delta = 0;
+		}
+		else if (delta > mMaxPredictionNanos)
+		{
+			delta = mMaxPredictionNanos;
+		}
+		float seconds = delta / 1000000000f;
+		result[0] = restrictAngle(mAngles[0] + mVelocities[0] * seconds);
+		result[1] = restrictAngle(mAngles[1] + mVelocities[1] * seconds);
+		result[2] = restrictAngle(mAngles[2] + mVelocities[2] * seconds);
+		return true;
+	}
+
+	private void interpolate(long time, float[] result)
+	{
+		int oldest = (mHistoryEnd + HISTORY_SIZE - mHistoryCount) % HISTORY_SIZE;
+		int low = -1;
+		int high = -1;
+		for (int i = 0; i < mHistoryCount; i++)
+		{
+			int index = (oldest + i) % HISTORY_SIZE;
+			if (mHistoryTimes[index] <= time)
+			{
+				low = index;
+			}
+			else
+			{
+				high = index;
+				break;
+			}
+		}
+		if (low < 0 || high < 0)
+		{
+			int index = low < 0 ? oldest : low;
+			result[0] = mHistoryAngles[index][0];
+			result[1] = mHistoryAngles[index][1];
+			result[2] = mHistoryAngles[index][2];
+			return;
+		}
+
+		float factor = (float) (time - mHistoryTimes[low]) / (mHistoryTimes[high] - mHistoryTimes[low]);
+		for (int i = 0; i < 3; i++)
+		{
+			float a0 = mHistoryAngles[low][i];
+			result[i] = restrictAngle(a0 + factor * restrictAngle(mHistoryAngles[high][i] - a0));
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded trace of filtered orientation samples.
+ * <p>
+ * Traces are recorded by the sensor handler if enabled in the author
+ * preferences and stored as text, one sample per line: time in nanoseconds,
+ * azimuth, pitch and roll in degrees, separated by commas.
+ * <p>
+ * The trace can score an ArvosPosePredictor offline. Each sample is fed to the
+ * predictor, the prediction for the sample time plus the look ahead is then
+ * compared to the interpolated orientation the trace actually reached at that
+ * time. Run on a desktop JVM with
+ * 
+ * <pre>
+ * java com.mission_base.arviewer_android.viewer.ArvosPoseTrace trace.csv [lookAheadMillis]
+ * </pre>
+ * 
+ * to print the prediction errors of a range of predictor tunings.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosPoseTrace
+{
+	/**
+	 * The maximum number of samples kept, about ten minutes of sensor events.
+	 */
+	public static final int MAX_SAMPLES = 60000;
+
+	private List<float[]> mAngles = new ArrayList<float[]>();
+	private List<Long> mTimes = new ArrayList<Long>();
+
+	/**
+	 * Adds a sample to the trace.
+	 * 
+	 * @param time
+	 *            The time of the sample in nanoseconds.
+	 * @param azimuth
+	 *            The azimuth in degrees.
+	 * @param pitch
+	 *            The pitch in degrees.
+	 * @param roll
+	 *            The roll in degrees.
+	 */
+	public synchronized void add(long time, float azimuth, float pitch, float roll)
+	{
+		if (mTimes.size() >= MAX_SAMPLES)
+		{
+			return;
+		}
+		mTimes.add(Long.valueOf(time));
+		mAngles.add(new float[] { azimuth, pitch, roll });
+	}
+
+	/**
+	 * Returns the number of samples in the trace.
+	 * 
+	 * @return The number of samples.
+	 */
+	public synchronized int size()
+	{
+		return mTimes.size();
+	}
+
+	/**
+	 * Moves all samples to a new trace, this trace is empty afterwards.
+	 * <p>
+	 * Used to save a trace while new samples are added.
+	 * 
+	 * @return The trace of the samples removed.
+	 */
+	public synchronized ArvosPoseTrace takeSamples()
+	{
+		ArvosPoseTrace trace = new ArvosPoseTrace();
+		trace.mTimes = mTimes;
+		trace.mAngles = mAngles;
+		mTimes = new ArrayList<Long>();
+		mAngles = new ArrayList<float[]>();
+		return trace;
+	}
+
+	/**
+	 * Removes all samples.
+	 */
+	public synchronized void clear()
+	{
+		mTimes.clear();
+		mAngles.clear();
+	}
+
+	/**
+	 * Writes the trace to a file.
+	 * 
+	 * @param file
+	 *            The file to write.
+	 * @throws IOException
+	 *             Write errors.
+	 */
+	public synchronized void save(File file) throws IOException
+	{
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try
+		{
+			for (int i = 0; i < mTimes.size(); i++)
+			{
+				float[] angles = mAngles.get(i);
+				writer.write(mTimes.get(i) + "," + angles[0] + "," + angles[1] + "," + angles[2]);
+				writer.newLine();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads a trace from a file.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @return The trace.
+	 * @throws IOException
+	 *             Read errors.
+	 */
+	public static ArvosPoseTrace load(File file) throws IOException
+	{
+		ArvosPoseTrace trace = new ArvosPoseTrace();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] parts = line.split(",");
+				if (parts.length < 4)
+				{
+					continue;
+				}
+				trace.add(Long.parseLong(parts[0].trim()), Float.parseFloat(parts[1].trim()), Float.parseFloat(parts[2].trim()),
+						Float.parseFloat(parts[3].trim()));
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * Interpolates the orientation of the trace at a time.
+	 * 
+	 * @param time
+	 *            The time in nanoseconds.
+	 * @param result
+	 *            Receives azimuth, pitch and roll in degrees.
+	 * @return False if the time is outside of the trace.
+	 */
+	public synchronized boolean interpolate(long time, float[] result)
+	{
+		int size = mTimes.size();
+		if (size == 0 || time < mTimes.get(0) || time > mTimes.get(size - 1))
+		{
+			return false;
+		}
+
+		int low = 0;
+		int high = size - 1;
+		while (high - low > 1)
+		{
+			int middle = (low + high) >>> 1;
+			if (mTimes.get(middle) <= time)
+			{
+				low = middle;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+
+		long t0 = mTimes.get(low);
+		long t1 = mTimes.get(high);
+		float factor = (t1 > t0) ? (float) (time - t0) / (t1 - t0) : 0f;
+		float[] a0 = mAngles.get(low);
+		float[] a1 = mAngles.get(high);
+		for (int i = 0; i < 3; i++)
+		{
+			result[i] = ArvosPosePredictor.restrictAngle(a0[i] + factor * ArvosPosePredictor.restrictAngle(a1[i] - a0[i]));
+		}
+		return true;
+	}
+
+	/**
+	 * Scores a predictor against the trace.
+	 * 
+	 * @param predictor
+	 *            The predictor to score, it should be freshly created.
+	 * @param lookAheadMillis
+	 *            The time between a sample and the display of the frame using
+	 *            it.
+	 * @return The root mean square of the angular error in degrees, summed over
+	 *         azimuth, pitch and roll, or NaN if the trace is too short.
+	 */
+	public synchronized double score(ArvosPosePredictor predictor, long lookAheadMillis)
+	{
+		float[] predicted = new float[3];
+		float[] actual = new float[3];
+		long lookAhead = lookAheadMillis * 1000000L;
+
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < mTimes.size(); i++)
+		{
+			long time = mTimes.get(i);
+			float[] angles = mAngles.get(i);
+			predictor.addSample(time, angles[0], angles[1], angles[2]);
+
+			if (!interpolate(time + lookAhead, actual) || !predictor.predict(time + lookAhead, predicted))
+			{
+				continue;
+			}
+			for (int j = 0; j < 3; j++)
+			{
+				double error = ArvosPosePredictor.restrictAngle(predicted[j] - actual[j]);
+				sum += error * error;
+			}
+			count++;
+		}
+		return count == 0 ? Double.NaN : Math.sqrt(sum / count);
+	}
+
+	/**
+	 * Prints the prediction errors of a range of tunings for a recorded trace.
+	 * 
+	 * @param args
+	 *            The trace file and optionally the look ahead in milliseconds.
+	 * @throws IOException
+	 *             Read errors.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: ArvosPoseTrace trace.csv [lookAheadMillis]");
+			return;
+		}
+		ArvosPoseTrace trace = load(new File(args[0]));
+		long lookAhead = args.length > 1 ? Long.parseLong(args[1]) : 30L;
+
+		System.out.println("samples " + trace.size() + ", look ahead " + lookAhead + " ms");
+		System.out.println("no prediction: " + trace.score(new ArvosPosePredictor(0f, 0L, 0f), lookAhead));
+
+		float[] alphas = new float[] { 0.1f, 0.2f, 0.3f, 0.5f, 0.7f, 1.0f };
+		long[] maxPredictions = new long[] { 50L, 100L, 200L };
+		for (long maxPrediction : maxPredictions)
+		{
+			for (float alpha : alphas)
+			{
+				double error = trace.score(new ArvosPosePredictor(alpha, maxPrediction, ArvosPosePredictor.DEFAULT_MAX_VELOCITY), lookAhead);
+				System.out.println("alpha " + alpha + ", max " + maxPrediction + " ms: " + error);
+			}
+		}
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+   
+   The mOrientation code is derived from
+    
+     package com.epichorns.compass3D;
+   
+   found on stackoverflow, see answer to
+   
+     http://stackoverflow.com/questions/10192057/android-getorientation-method-returns-bad-results
+     
+   by user epichorns, see
+   
+     http://stackoverflow.com/users/1350375/epichorns
+ */
+
+package com.mission_base.arviewer_android.viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mission_base.arviewer_android.Arvos;
+
+/**
+ * Processes the orientation sensors of the device on a dedicated thread.
+ * <p>
+ * Accelerometer and magnetometer events are delivered to a HandlerThread,
+ * filtered there and published as the orientation of the instance's pose. The
+ * status text is updated on the UI thread at most once per display frame, no
+ * matter how many sensor events arrive in between. The radar is drawn by the
+ * opengl renderer and needs no update.
+ * <p>
+ * Each filtered sample is also passed to the pose predictor of the instance
+ * and, if enabled, recorded to a pose trace that is saved when pausing.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosSensorHandler
+{
+	private static String mTag = "ArvosSensorHandler";
+
+	private ArvosViewer mViewer;
+	private Arvos mInstance;
+	private SensorManager mSensorManager;
+
+	private HandlerThread mSensorThread;
+	private Handler mSensorHandler;
+	private Handler mUiHandler;
+
+	private float mAngleFilteredAzimuth = 0;
+	private float mAngleFilteredPitch = 0;
+	private float mAngleFilteredRoll = 0;
+
+	// sensor calculation values, only used on the sensor thread
+	private float[] mGravity = null;
+	private float[] mGeomagnetic = null;
+	private float Rmat[] = new float[9];
+	private float Imat[] = new float[9];
+	private float mOrientation[] = new float[3];
+
+	// maps sensor event timestamps to System.nanoTime(), only used on the
+	// sensor thread
+	private long mClockOffset = 0;
+	private boolean mHasClockOffset = false;
+	private long mEventTime = 0;
+
+	private long mFrameIntervalMillis = 16;
+	private volatile long mLastPublishTime = 0;
+	private final AtomicBoolean mPublishPending = new AtomicBoolean(false);
+
+	/**
+	 * Creates the sensor handler.
+	 * 
+	 * @param viewer
+	 *            The viewer activity whose views are updated.
+	 */
+	public ArvosSensorHandler(ArvosViewer viewer)
+	{
+		mViewer = viewer;
+		mInstance = Arvos.getInstance();
+		mSensorManager = (SensorManager) viewer.getSystemService(Context.SENSOR_SERVICE);
+		mUiHandler = new Handler(Looper.getMainLooper());
+
+		float refreshRate = viewer.getWindowManager().getDefaultDisplay().getRefreshRate();
+		if (refreshRate > 10f)
+		{
+			mFrameIntervalMillis = (long) (1000f / refreshRate);
+		}
+	}
+
+	SensorEventListener mAccelerometerListener = new SensorEventListener()
+	{
+		public void onAccuracyChanged(Sensor sensor, int accuracy)
+		{
+		}
+
+		public void onSensorChanged(SensorEvent event)
+		{
+			if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER)
+			{
+				mGravity = event.values.clone();
+				mEventTime = toNanoTime(event.timestamp);
+				processSensorData();
+			}
+		}
+	};
+	SensorEventListener mMagnetometerListener = new SensorEventListener()
+	{
+		public void onAccuracyChanged(Sensor sensor, int accuracy)
+		{
+		}
+
+		public void onSensorChanged(SensorEvent event)
+		{
+			if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD)
+			{
+				mGeomagnetic = event.values.clone();
+				mEventTime = toNanoTime(event.timestamp);
+				processSensorData();
+			}
+		}
+	};
+
+	/**
+	 * Converts the timestamp of a sensor event to the time base of
+	 * System.nanoTime(). Event timestamps may use another clock, the offset is
+	 * the smallest difference seen, so the samples keep the timing of the
+	 * events instead of the delays of their delivery.
+	 */
+	private long toNanoTime(long timestamp)
+	{
+		long offset = System.nanoTime() - timestamp;
+		if (!mHasClockOffset || offset < mClockOffset)
+		{
+			mClockOffset = offset;
+			mHasClockOffset = true;
+		}
+		return timestamp + mClockOffset;
+	}
+
+	private static float restrictAngle(float angle)
+	{
+		while (angle >= 180)
+		{
+			angle -= 360;
+		}
+		while (angle < -180)
+		{
+			angle += 360;
+		}
+		return angle;
+	}
+
+	// x is a raw angle value from getOrientation(...)
+	// y is the current filtered angle value
+	private static float calculateFilteredAngle(float x, float y)
+	{
+		final float alpha = 0.3f;
+		float diff = x - y;
+
+		// here, we ensure that abs(diff)<=180
+		diff = restrictAngle(diff);
+
+		// ensure that y stays within [-180, 180[ bounds
+		y = restrictAngle(y + alpha * diff);
+
+		return y;
+	}
+
+	private void processSensorData()
+	{
+		if (mGravity != null && mGeomagnetic != null)
+		{
+			boolean success = SensorManager.getRotationMatrix(Rmat, Imat, mGravity, mGeomagnetic);
+			if (success)
+			{
+				SensorManager.getOrientation(Rmat, mOrientation);
+				mAngleFilteredAzimuth = calculateFilteredAngle(Arvos.toDegrees(mOrientation[0]), mAngleFilteredAzimuth);
+				mAngleFilteredPitch = calculateFilteredAngle(Arvos.toDegrees(mOrientation[1]), mAngleFilteredPitch);
+				mAngleFilteredRoll = calculateFilteredAngle(Arvos.toDegrees(mOrientation[2]), mAngleFilteredRoll);
+				update();
+			}
+			mGravity = null; // full new refresh
+			mGeomagnetic = null;
+		}
+	}
+
+	private void update()
+	{
+		mInstance.setOrientation(mAngleFilteredAzimuth, mAngleFilteredPitch, mAngleFilteredRoll);
+
+		long time = mEventTime;
+		mInstance.mPosePredictor.addSample(time, mAngleFilteredAzimuth, mAngleFilteredPitch, mAngleFilteredRoll);
+		if (mInstance.mRecordPoseTrace)
+		{
+			mInstance.mPoseTrace.add(time, mAngleFilteredAzimuth, mAngleFilteredPitch, mAngleFilteredRoll);
+		}
+
+		publish();
+	}
+
+	/**
+	 * Schedules an update of the views on the UI thread.
+	 * <p>
+	 * If an update is already pending nothing is done, the pending update will
+	 * show the latest values. Updates are spaced by at least one display frame.
+	 */
+	private void publish()
+	{
+		if (!mPublishPending.compareAndSet(false, true))
+		{
+			return;
+		}
+		long delay = mLastPublishTime + mFrameIntervalMillis - SystemClock.uptimeMillis();
+		if (delay > 0)
+		{
+			mUiHandler.postDelayed(mPublishRunnable, delay);
+		}
+		else
+		{
+			mUiHandler.post(mPublishRunnable);
+		}
+	}
+
+	private Runnable mPublishRunnable = new Runnable()
+	{
+		public void run()
+		{
+			mLastPublishTime = SystemClock.uptimeMillis();
+			mPublishPending.set(false);
+
+			if (mViewer.mTextView != null)
+			{
+				mViewer.mTextView.updateStatus();
+			}
+		}
+	};
+
+	/**
+	 * Starts the sensor thread and registers the sensor listeners.
+	 */
+	public void onResume()
+	{
+		Log.d(mTag, "onResume");
+		if (mSensorThread == null)
+		{
+			mSensorThread = new HandlerThread("ArvosSensorThread", Process.THREAD_PRIORITY_DISPLAY);
+			mSensorThread.start();
+			mSensorHandler = new Handler(mSensorThread.getLooper());
+		}
+
+		mSensorHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				mAngleFilteredAzimuth = 0;
+				mAngleFilteredPitch = 0;
+				mAngleFilteredRoll = 0;
+				mGravity = null;
+				mGeomagnetic = null;
+				mHasClockOffset = false;
+				mInstance.mPosePredictor.reset();
+			}
+		});
+
+		mSensorManager.registerListener(mAccelerometerListener, mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_UI,
+				mSensorHandler);
+		mSensorManager.registerListener(mMagnetometerListener, mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD), SensorManager.SENSOR_DELAY_UI,
+				mSensorHandler);
+	}
+
+	/**
+	 * Unregisters the sensor listeners and stops the sensor thread.
+	 */
+	public void onPause()
+	{
+		Log.d(mTag, "onPause");
+		mSensorManager.unregisterListener(mAccelerometerListener);
+		mSensorManager.unregisterListener(mMagnetometerListener);
+		mUiHandler.removeCallbacks(mPublishRunnable);
+		mPublishPending.set(false);
+
+		if (mSensorThread != null)
+		{
+			mSensorThread.quit();
+			mSensorThread = null;
+			mSensorHandler = null;
+		}
+
+		if (mInstance.mPoseTrace.size() > 0)
+		{
+			saveTrace();
+		}
+	}
+
+	private void saveTrace()
+	{
+		File dir = mViewer.getExternalCacheDir();
+		if (dir == null)
+		{
+			dir = mViewer.getCacheDir();
+		}
+		final File file = new File(dir, "posetrace-" + System.currentTimeMillis() + ".csv");
+		final ArvosPoseTrace trace = mInstance.mPoseTrace.takeSamples();
+
+		new Thread("ArvosPoseTraceWriter")
+		{
+			public void run()
+			{
+				try
+				{
+					trace.save(file);
+					Log.d(mTag, "Pose trace saved to " + file.getAbsolutePath());
+				}
+				catch (IOException e)
+				{
+					Log.d(mTag, "Pose trace not saved, " + e.getMessage());
+				}
+			}
+		}.start();
+	}
+}
@@ -24,6 +24,8 @@
 package com.mission_base.arviewer_android.viewer;
 
 import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.ArvosPose;
+import com.mission_base.arviewer_android.viewer.opengl.ArvosRenderScheduler;
 
 import android.content.Context;
 import android.graphics.Color;
@@ -40,6 +42,8 @@ import android.widget.TextView;
 public class ArvosTextView extends TextView
 {
 	private LocationManager mLocationManager;
+	private String mLocationString = "No location found";
+	private StringBuilder mStringBuilder = new StringBuilder();
 
 	public ArvosTextView(Context context)
 	{
@@ -55,24 +59,51 @@ public class ArvosTextView extends TextView
 	public void updateWithNewLocation()
 	{
 		String provider = LocationManager.GPS_PROVIDER;
-		Location location = mLocationManager.getLastKnownLocation(provider);
+		updateWithNewLocation(mLocationManager.getLastKnownLocation(provider));
+	}
 
-		String latLongString = "No location found";
+	/**
+	 * Handles location updates displays some state information.
+	 * 
+	 * @param location
+	 *            The new location, may be null.
+	 */
+	public void updateWithNewLocation(Location location)
+	{
 		if (location != null)
 		{
-			latLongString = //
-			"Lat:" + location.getLatitude() //
-					+ "\nLon:" + location.getLongitude() //
-			;
+			mLocationString = "Lat:" + location.getLatitude() + "\nLon:" + location.getLongitude();
+		}
+		updateStatus();
+	}
+
+	/**
+	 * Displays the current state information.
+	 * <p>
+	 * Called from the UI thread at most once per display frame, uses the last
+	 * location received instead of querying the location manager.
+	 */
+	public void updateStatus()
+	{
+		Arvos instance = Arvos.getInstance();
+		ArvosPose pose = instance.getPose();
+		StringBuilder sb = mStringBuilder;
+		sb.setLength(0);
+		sb.append(mLocationString);
+		sb.append("\nFPS:").append(instance.mFPS);
+		sb.append("\nAzi:").append(pose.mAzimuth);
+		sb.append("\nPit:").append(pose.mPitch);
+		sb.append("\nRol:").append(pose.mRoll);
+		sb.append("\nOri:").append(instance.getRotationDegrees());
+		sb.append("\nDeg:").append(pose.mCorrectedAzimuth);
+		sb.append("\nObj:").append(instance.getFrame().mObjects.size());
+		ArvosRenderScheduler renderScheduler = instance.mRenderScheduler;
+		if (renderScheduler != null)
+		{
+			sb.append("\nDrw:").append(renderScheduler.getFramesRendered());
+			sb.append("\nSkp:").append(renderScheduler.getPoseChangesSkipped());
 		}
-		latLongString += "\nFPS:" + Arvos.getInstance().mFPS //
-				+ "\nAzi:" + Arvos.getInstance().mAzimuth //
-				+ "\nPit:" + Arvos.getInstance().mPitch //
-				+ "\nRol:" + Arvos.getInstance().mRoll //
-				+ "\nOri:" + Arvos.getInstance().getRotationDegrees() //
-				+ "\nDeg:" + Arvos.getInstance().mCorrectedAzimuth //
-		;
 
-		setText(latLongString);
+		setText(sb.toString());
 	}
 }
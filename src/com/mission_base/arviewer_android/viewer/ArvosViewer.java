@@ -36,8 +36,10 @@ import com.mission_base.arviewer_android.viewer.opengl.*;
 /**
  * The augment viewer application.
  * <p>
- * Shows the camera view, overlays it with the augment being shown an opengl view
- * and overlays both with the radar view.
+ * Shows the camera view and overlays it with the augment being shown and the
+ * radar in an opengl view. The camera is opened while the textures are
+ * downloaded. In single surface mode the opengl view draws the camera preview
+ * itself and no camera view is used.
  * @author peter
  *
  */
@@ -46,7 +48,8 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 	public ArvosCameraView mCameraView = null;
 	public ArvosGLView mGLSurfaceView = null;
 	public ArvosTextView mTextView = null;
-	public ArvosRadarView mRadarView = null;
+	public ArvosSensorHandler mSensorHandler = null;
+	public ArvosCamera mCamera = null;
 
 	private Arvos mInstance;
 	private ArvosLocationListener mLocationListener;
@@ -59,6 +62,7 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 
 		mInstance = Arvos.getInstance(this);
 		mLocationListener = new ArvosLocationListener((LocationManager) getSystemService(Context.LOCATION_SERVICE), this);
+		mCamera = new ArvosCamera();
 
 		String augmentText = getIntent().getStringExtra("augmentText");
 		String augmentName = getIntent().getStringExtra("augmentName");
@@ -70,9 +74,21 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 			augment.mName = augmentName;
 		}
 		mInstance.mAugment = augment;
+		mLocationListener.setAugment(augment);
 		requestTextures();
 	}
 	
+	/**
+	 * Only the first, lowest resolution texture of an object is downloaded
+	 * before the augment is shown, higher resolutions are downloaded when the
+	 * object is drawn large enough to need them.
+	 */
+	private static boolean needsImage(ArvosPoiObject poiObject)
+	{
+		String url = poiObject.getFirstTextureUrl();
+		return url != null && poiObject.mImage == null && !ArvosCache.contains(url);
+	}
+
 	private void requestTextures()
 	{
 		ActionBar actionBar = getActionBar();
@@ -87,10 +103,10 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 			{
 				for (ArvosPoiObject poiObject : poi.mPoiObjects)
 				{
-					if (poiObject.mTextureUrl != null && poiObject.mImage == null)
+					if (needsImage(poiObject))
 					{
 						mArvosHttpRequest = new ArvosHttpRequest(this, this);
-						mArvosHttpRequest.getImage(poiObject.mTextureUrl);
+						mArvosHttpRequest.getImage(poiObject.getFirstTextureUrl());
 						break;
 					}
 				}
@@ -110,14 +126,15 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 
 		mLocationListener.onResume();
 		mInstance.onResume();
+		mCamera.open();
 
 		if (mGLSurfaceView != null)
 		{
 			mGLSurfaceView.onResume();
 		}
-		if (mRadarView != null)
+		if (mSensorHandler != null)
 		{
-			mRadarView.onResume();
+			mSensorHandler.onResume();
 		}
 	}
 
@@ -131,10 +148,11 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 		{
 			mGLSurfaceView.onPause();
 		}
-		if (mRadarView != null)
+		if (mSensorHandler != null)
 		{
-			mRadarView.onPause();
+			mSensorHandler.onPause();
 		}
+		mCamera.close();
 	}
 
 	@Override
@@ -156,13 +174,15 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 			{
 				for (ArvosPoiObject poiObject : poi.mPoiObjects)
 				{
-					if (url.equals(poiObject.mTextureUrl))
+					if (url.equals(poiObject.getFirstTextureUrl()))
 					{
-						poiObject.mImage = bitmap;
+						// Cached images are decoded from the cache at the size
+						// needed when the texture is prepared
+						poiObject.mImage = ArvosCache.contains(url) ? null : bitmap;
 					}
-					else if (poiObject.mTextureUrl != null && poiObject.mImage == null)
+					else if (needsImage(poiObject))
 					{
-						nextTexture = poiObject.mTextureUrl;
+						nextTexture = poiObject.getFirstTextureUrl();
 					}
 				}
 			}
@@ -181,26 +201,34 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 	{
 		mArvosHttpRequest = null;
 
+		ArvosPose pose = mInstance.getPose();
 		ActionBar actionBar = getActionBar();
 		actionBar.setTitle(mInstance.mAugment.mName);
-		actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", mInstance.mLongitude, mInstance.mLatitude));
+		actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", pose.mLongitude, pose.mLatitude));
 
 		FrameLayout frame = new FrameLayout(this);
 
-		mCameraView = new ArvosCameraView(this);
-		frame.addView(mCameraView);
-
-		mGLSurfaceView = new ArvosGLView(this);
-		frame.addView(mGLSurfaceView);
+		if (mInstance.mSingleSurface)
+		{
+			mGLSurfaceView = new ArvosGLView(this, mCamera);
+			frame.addView(mGLSurfaceView);
+		}
+		else
+		{
+			mCameraView = new ArvosCameraView(this, mCamera);
+			frame.addView(mCameraView);
 
-		mRadarView = new ArvosRadarView(this);
-		frame.addView(mRadarView);
+			mGLSurfaceView = new ArvosGLView(this);
+			frame.addView(mGLSurfaceView);
+		}
 
 		mTextView = new ArvosTextView(this);
 		frame.addView(mTextView);
 
 		setContentView(frame);
 
+		mSensorHandler = new ArvosSensorHandler(this);
+
 		if (mTextView != null)
 		{
 			mTextView.updateWithNewLocation();
@@ -209,17 +237,20 @@ public class ArvosViewer extends Activity implements IArvosLocationReceiver, IAr
 		{
 			mGLSurfaceView.onResume();
 		}
-		if (mRadarView != null)
-		{
-			mRadarView.onResume();
-		}
+		mSensorHandler.onResume();
 	}
 
 	@Override
 	public void onLocationChanged(boolean isNew, Location location)
 	{
+		ArvosPose pose = mInstance.getPose();
 		ActionBar actionBar = getActionBar();
-		actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", mInstance.mLongitude, mInstance.mLatitude));
+		actionBar.setSubtitle(String.format("Lon %.6f, Lat %.6f", pose.mLongitude, pose.mLatitude));
+
+		if (mTextView != null)
+		{
+			mTextView.updateWithNewLocation(location);
+		}
 	}
 	
 	static final private int MENU_ITEM_CLOSE = Menu.FIRST;
@@ -0,0 +1,187 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+
+/**
+ * Draws the camera preview as background of the opengl view.
+ * <p>
+ * The camera renders into a SurfaceTexture bound to an external texture, the
+ * texture is drawn as a full screen square before the pois, so camera and pois
+ * are composited in one frame of one surface.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosCameraBackground
+{
+	private static final float vertices[] = {
+			//
+			-1f, -1f, // V1 - bottom left
+			-1f, 1f, // V2 - top left
+			1f, -1f, // V3 - bottom right
+			1f, 1f // V4 - top right
+	};
+
+	private static final float texture[] = {
+			// Mapping coordinates for the vertices
+			0.0f, 0.0f, // bottom left (V1)
+			0.0f, 1.0f, // top left (V2)
+			1.0f, 0.0f, // bottom right (V3)
+			1.0f, 1.0f // top right (V4)
+	};
+
+	private FloatBuffer vertexBuffer;
+	private FloatBuffer textureBuffer;
+
+	private int[] textures = new int[1];
+	private float[] mTransformMatrix = new float[16];
+	private SurfaceTexture mSurfaceTexture;
+	private long mTimestamp = 0;
+
+	public ArvosCameraBackground()
+	{
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(vertices.length * 4);
+		byteBuffer.order(ByteOrder.nativeOrder());
+		vertexBuffer = byteBuffer.asFloatBuffer();
+		vertexBuffer.put(vertices);
+		vertexBuffer.position(0);
+
+		byteBuffer = ByteBuffer.allocateDirect(texture.length * 4);
+		byteBuffer.order(ByteOrder.nativeOrder());
+		textureBuffer = byteBuffer.asFloatBuffer();
+		textureBuffer.put(texture);
+		textureBuffer.position(0);
+	}
+
+	/**
+	 * Creates the external texture and the surface texture the camera renders
+	 * to, must be called on the opengl thread after the surface was created.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @return The surface texture to be passed to the camera.
+	 */
+	public SurfaceTexture createSurfaceTexture(GL10 gl)
+	{
+		release();
+
+		gl.glGenTextures(1, textures, 0);
+		gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+		gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+		gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+
+		mSurfaceTexture = new SurfaceTexture(textures[0]);
+		mTimestamp = 0;
+		return mSurfaceTexture;
+	}
+
+	/**
+	 * Releases the surface texture.
+	 */
+	public void release()
+	{
+		if (mSurfaceTexture != null)
+		{
+			mSurfaceTexture.release();
+			mSurfaceTexture = null;
+		}
+	}
+
+	/**
+	 * Latches the latest camera frame into the external texture, must be
+	 * called on the opengl thread.
+	 * 
+	 * @return The timestamp of the camera frame in nanoseconds or 0 if no frame
+	 *         arrived yet.
+	 */
+	public long update()
+	{
+		if (mSurfaceTexture == null)
+		{
+			return 0;
+		}
+		mSurfaceTexture.updateTexImage();
+		mSurfaceTexture.getTransformMatrix(mTransformMatrix);
+		mTimestamp = mSurfaceTexture.getTimestamp();
+		return mTimestamp;
+	}
+
+	/**
+	 * Draws the latest camera frame covering the whole view.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 */
+	public void draw(GL10 gl)
+	{
+		if (mSurfaceTexture == null || mTimestamp == 0)
+		{
+			return;
+		}
+
+		gl.glMatrixMode(GL10.GL_PROJECTION);
+		gl.glPushMatrix();
+		gl.glLoadIdentity();
+		gl.glMatrixMode(GL10.GL_MODELVIEW);
+		gl.glLoadIdentity();
+		gl.glMatrixMode(GL10.GL_TEXTURE);
+		gl.glLoadMatrixf(mTransformMatrix, 0);
+
+		gl.glDisable(GL10.GL_DEPTH_TEST);
+		gl.glDisable(GL10.GL_BLEND);
+		gl.glDisable(GL10.GL_TEXTURE_2D);
+		gl.glEnable(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+		gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+
+		gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+		gl.glFrontFace(GL10.GL_CW);
+		gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertexBuffer);
+		gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, textureBuffer);
+		gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, vertices.length / 2);
+		gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+
+		gl.glDisable(GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+		gl.glEnable(GL10.GL_TEXTURE_2D);
+		gl.glEnable(GL10.GL_BLEND);
+		gl.glEnable(GL10.GL_DEPTH_TEST);
+
+		gl.glLoadIdentity();
+		gl.glMatrixMode(GL10.GL_PROJECTION);
+		gl.glPopMatrix();
+		gl.glMatrixMode(GL10.GL_MODELVIEW);
+	}
+}
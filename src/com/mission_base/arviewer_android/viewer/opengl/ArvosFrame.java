@@ -0,0 +1,119 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.mission_base.arviewer_android.ArvosPose;
+
+/**
+ * An immutable snapshot of one frame drawn by the renderer.
+ * <p>
+ * The renderer publishes a new frame after drawing, readers on other threads
+ * get the latest frame without taking any lock and without blocking the
+ * renderer. The objects in the frame belong to the opengl thread, readers
+ * should only use their ids; the matrixes in the frame are never changed after
+ * publishing.
+ * <p>
+ * ArvosFrameContention compares this handoff with the former one, a
+ * synchronized list locked by the renderer for the whole frame.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosFrame
+{
+	/**
+	 * The empty frame published before the first frame is drawn.
+	 */
+	public static final ArvosFrame EMPTY = new ArvosFrame(0, new ArvosPose(), Collections.<ArvosObject> emptyList(), null, null, 0, 0);
+
+	/**
+	 * The number of the frame, increasing by one per frame drawn.
+	 */
+	public final long mNumber;
+
+	/**
+	 * The pose the frame was drawn for.
+	 */
+	public final ArvosPose mPose;
+
+	/**
+	 * The objects drawn in the frame.
+	 */
+	public final List<ArvosObject> mObjects;
+
+	/**
+	 * The model view matrixes of the objects by object id, only present if
+	 * requested for the frame, otherwise null.
+	 */
+	public final Map<Integer, float[]> mModelViewMatrixes;
+
+	/**
+	 * The projection matrix of the frame, null if unknown.
+	 */
+	public final float[] mProjectionMatrix;
+
+	/**
+	 * The width of the view in pixels.
+	 */
+	public final int mWidth;
+
+	/**
+	 * The height of the view in pixels.
+	 */
+	public final int mHeight;
+
+	/**
+	 * Creates a frame, the collections given must not be changed afterwards.
+	 * 
+	 * @param number
+	 *            The number of the frame.
+	 * @param pose
+	 *            The pose the frame was drawn for.
+	 * @param objects
+	 *            The objects drawn.
+	 * @param modelViewMatrixes
+	 *            The model view matrixes by object id or null.
+	 * @param projectionMatrix
+	 *            The projection matrix or null.
+	 * @param width
+	 *            The width of the view.
+	 * @param height
+	 *            The height of the view.
+	 */
+	public ArvosFrame(long number, ArvosPose pose, List<ArvosObject> objects, Map<Integer, float[]> modelViewMatrixes, float[] projectionMatrix,
+			int width, int height)
+	{
+		mNumber = number;
+		mPose = pose;
+		mObjects = Collections.unmodifiableList(objects);
+		mModelViewMatrixes = modelViewMatrixes == null ? null : Collections.unmodifiableMap(modelViewMatrixes);
+		mProjectionMatrix = projectionMatrix;
+		mWidth = width;
+		mHeight = height;
+	}
+}
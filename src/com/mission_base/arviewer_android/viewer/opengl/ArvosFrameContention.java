@@ -0,0 +1,276 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mission_base.arviewer_android.ArvosPose;
+
+/**
+ * Compares the handoff of drawn frames by immutable ArvosFrame snapshots with
+ * the former handoff, a synchronized list locked by the renderer for the whole
+ * frame, on a plain java vm.
+ * <p>
+ * One renderer thread computes frames and a number of reader threads read the
+ * matrixes of the latest frame, as the touch handling does. Both handoffs are
+ * measured the same way: the latency of a read including any wait for the
+ * lock, and the age of the frame read, the time since it was published. The
+ * time the renderer waited for the lock is reported for the synchronized
+ * handoff, the atomic one has no lock.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosFrameContention
+{
+	// keeps the reads from being optimized away
+	private static volatile float mSink;
+
+	/**
+	 * A frame with the time it was published.
+	 */
+	private static class Published
+	{
+		final ArvosFrame mFrame;
+		final long mNanos;
+
+		Published(ArvosFrame frame, long nanos)
+		{
+			mFrame = frame;
+			mNanos = nanos;
+		}
+	}
+
+	private final boolean mIsLockFree;
+	private final int mReaderCount;
+	private final int mObjectCount;
+
+	// the synchronized handoff, guarded by itself
+	private final List<float[]> mSharedObjects = new ArrayList<float[]>();
+	private long mSharedNanos = 0;
+
+	// the atomic handoff
+	private final AtomicReference<Published> mSharedFrame = new AtomicReference<Published>();
+
+	private final AtomicBoolean mIsRunning = new AtomicBoolean(true);
+	private final AtomicLong mFrameCount = new AtomicLong(0);
+	private final AtomicLong mRendererWaitNanos = new AtomicLong(0);
+	private final AtomicLong mReadCount = new AtomicLong(0);
+	private final AtomicLong mReadNanos = new AtomicLong(0);
+	private final AtomicLong mMaxReadNanos = new AtomicLong(0);
+	private final AtomicLong mAgeNanos = new AtomicLong(0);
+	private final AtomicLong mMaxAgeNanos = new AtomicLong(0);
+
+	private ArvosFrameContention(boolean isLockFree, int readerCount, int objectCount)
+	{
+		mIsLockFree = isLockFree;
+		mReaderCount = readerCount;
+		mObjectCount = objectCount;
+		mSharedFrame.set(new Published(ArvosFrame.EMPTY, System.nanoTime()));
+	}
+
+	/**
+	 * Computes a model view matrix standing in for the work of drawing an
+	 * object.
+	 */
+	private static float[] computeMatrix(int object, long number)
+	{
+		float[] matrix = new float[16];
+		float angle = (object * 7 + number) * 0.01f;
+		for (int i = 0; i < 16; i++)
+		{
+			matrix[i] = (float) Math.sin(angle + i);
+		}
+		return matrix;
+	}
+
+	private static void setMax(AtomicLong max, long value)
+	{
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+		{
+		}
+	}
+
+	private void render()
+	{
+		long waitNanos = 0;
+		for (long number = 1; mIsRunning.get(); number++)
+		{
+			if (mIsLockFree)
+			{
+				Map<Integer, float[]> matrixes = new HashMap<Integer, float[]>();
+				for (int i = 0; i < mObjectCount; i++)
+				{
+					matrixes.put(Integer.valueOf(i), computeMatrix(i, number));
+				}
+				ArvosFrame frame = new ArvosFrame(number, new ArvosPose(), Collections.<ArvosObject> emptyList(), matrixes, null, 0, 0);
+				mSharedFrame.set(new Published(frame, System.nanoTime()));
+			}
+			else
+			{
+				long start = System.nanoTime();
+				synchronized (mSharedObjects)
+				{
+					waitNanos += System.nanoTime() - start;
+					mSharedObjects.clear();
+					for (int i = 0; i < mObjectCount; i++)
+					{
+						mSharedObjects.add(computeMatrix(i, number));
+					}
+					mSharedNanos = System.nanoTime();
+				}
+			}
+			mFrameCount.incrementAndGet();
+		}
+		mRendererWaitNanos.set(waitNanos);
+	}
+
+	private void read()
+	{
+		float sum = 0;
+		long count = 0;
+		long readNanos = 0;
+		long ageNanos = 0;
+		while (mIsRunning.get())
+		{
+			long start = System.nanoTime();
+			long published;
+			if (mIsLockFree)
+			{
+				Published shared = mSharedFrame.get();
+				Map<Integer, float[]> matrixes = shared.mFrame.mModelViewMatrixes;
+				if (matrixes != null)
+				{
+					for (float[] matrix : matrixes.values())
+					{
+						sum += matrix[12];
+					}
+				}
+				published = shared.mNanos;
+			}
+			else
+			{
+				synchronized (mSharedObjects)
+				{
+					for (float[] matrix : mSharedObjects)
+					{
+						sum += matrix[12];
+					}
+					published = mSharedNanos;
+				}
+			}
+			long end = System.nanoTime();
+			long age = published > 0 ? end - published : 0;
+
+			count++;
+			readNanos += end - start;
+			ageNanos += age;
+			setMax(mMaxReadNanos, end - start);
+			setMax(mMaxAgeNanos, age);
+		}
+		mReadCount.addAndGet(count);
+		mReadNanos.addAndGet(readNanos);
+		mAgeNanos.addAndGet(ageNanos);
+		mSink = sum;
+	}
+
+	private String run(long durationMillis) throws InterruptedException
+	{
+		Thread renderer = new Thread("ArvosFrameRenderer")
+		{
+			public void run()
+			{
+				render();
+			}
+		};
+
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < mReaderCount; r++)
+		{
+			readers.add(new Thread("ArvosFrameReader")
+			{
+				public void run()
+				{
+					read();
+				}
+			});
+		}
+
+		renderer.start();
+		for (Thread reader : readers)
+		{
+			reader.start();
+		}
+		Thread.sleep(durationMillis);
+		mIsRunning.set(false);
+		renderer.join();
+		for (Thread reader : readers)
+		{
+			reader.join();
+		}
+
+		double seconds = durationMillis / 1000.0;
+		long frames = Math.max(1L, mFrameCount.get());
+		long reads = Math.max(1L, mReadCount.get());
+		return String.format("%s,%d,%d,%.0f,%.0f,%.1f,%.1f,%.1f,%.1f,%s", mIsLockFree ? "atomic" : "synchronized", mReaderCount, mObjectCount,
+				frames / seconds, mReadCount.get() / seconds, mReadNanos.get() / 1000.0 / reads, mMaxReadNanos.get() / 1000.0, mAgeNanos.get()
+						/ 1000.0 / reads, mMaxAgeNanos.get() / 1000.0,
+				mIsLockFree ? "" : String.format("%.1f", mRendererWaitNanos.get() / 1000.0 / frames));
+	}
+
+	/**
+	 * Runs one renderer thread publishing frames and 1, 2, 4 and 8 reader
+	 * threads reading them, with the atomic and the former synchronized
+	 * handoff, and prints the frame and read rates, the read latency, the age
+	 * of the frames read and the time the renderer waited for the lock as
+	 * CSV.
+	 * 
+	 * @param args
+	 *            Optional: the number of objects per frame and the duration of
+	 *            a run in milliseconds.
+	 * @throws InterruptedException
+	 *             If interrupted.
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int objectCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000L;
+		int[] readerCounts = { 1, 2, 4, 8 };
+
+		System.out.println("# handoff,readers,objects,framesPerSecond,readsPerSecond,meanReadMicros,maxReadMicros,meanAgeMicros,maxAgeMicros,"
+				+ "meanRendererWaitMicros");
+		for (int readerCount : readerCounts)
+		{
+			System.out.println(new ArvosFrameContention(false, readerCount, objectCount).run(durationMillis));
+			System.out.println(new ArvosFrameContention(true, readerCount, objectCount).run(durationMillis));
+		}
+	}
+}
@@ -29,9 +29,14 @@ import android.opengl.GLSurfaceView;
 import android.view.MotionEvent;
 
 import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.viewer.ArvosCamera;
 
 /**
  * The opengl view showing the pois.
+ * <p>
+ * Either the view is a translucent overlay above the camera view, or it is
+ * opaque and draws the camera preview itself. The view renders only when
+ * dirty, its frames are requested by a render scheduler.
  * 
  * @author peter
  * 
@@ -39,16 +44,74 @@ import com.mission_base.arviewer_android.Arvos;
 public class ArvosGLView extends GLSurfaceView
 {
 	private Arvos mInstance;
+	private ArvosRenderer mRenderer;
+	private ArvosRenderScheduler mRenderScheduler;
 
 	public ArvosGLView(Context context)
+	{
+		this(context, null);
+	}
+
+	/**
+	 * Creates the opengl view.
+	 * 
+	 * @param context
+	 *            The application context.
+	 * @param camera
+	 *            The camera whose preview is drawn by the view, or null if the
+	 *            view is an overlay above the camera view.
+	 */
+	public ArvosGLView(Context context, ArvosCamera camera)
 	{
 		super(context);
 
 		mInstance = Arvos.getInstance();
-		setZOrderMediaOverlay(true);
-		setEGLConfigChooser(8, 8, 8, 8, 16, 0);
-		setRenderer(new ArvosRenderer());
-		getHolder().setFormat(PixelFormat.TRANSLUCENT);
+		if (camera == null)
+		{
+			setZOrderMediaOverlay(true);
+			setEGLConfigChooser(8, 8, 8, 8, 16, 0);
+			mRenderer = new ArvosRenderer();
+			setRenderer(mRenderer);
+			getHolder().setFormat(PixelFormat.TRANSLUCENT);
+		}
+		else
+		{
+			setEGLConfigChooser(8, 8, 8, 0, 16, 0);
+			mRenderer = new ArvosRenderer(camera);
+			setRenderer(mRenderer);
+			getHolder().setFormat(PixelFormat.OPAQUE);
+		}
+		mRenderScheduler = new ArvosRenderScheduler(this);
+	}
+
+	/**
+	 * Returns the scheduler of the frames of the view.
+	 * 
+	 * @return The render scheduler.
+	 */
+	public ArvosRenderScheduler getRenderScheduler()
+	{
+		return mRenderScheduler;
+	}
+
+	@Override
+	public void onResume()
+	{
+		super.onResume();
+		mRenderer.onResume();
+		mInstance.mRenderScheduler = mRenderScheduler;
+		mRenderScheduler.requestRender();
+	}
+
+	@Override
+	public void onPause()
+	{
+		if (mInstance.mRenderScheduler == mRenderScheduler)
+		{
+			mInstance.mRenderScheduler = null;
+		}
+		mRenderer.onPause();
+		super.onPause();
 	}
 
 	@Override
@@ -28,6 +28,7 @@ import javax.microedition.khronos.opengles.GL10;
 import android.graphics.Bitmap;
 
 import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.ArvosPose;
 import com.mission_base.arviewer_android.viewer.utilities.MatrixUtils;
 
 /**
@@ -50,9 +51,37 @@ public class ArvosObject extends ArvosSquare
 	public float[] mRotation;
 	public String mBillboardHandling;
 
+	/**
+	 * Urls of lower resolution variants of the texture, ordered from the lowest
+	 * to the highest resolution, or null.
+	 */
+	public String[] mLodUrls;
+
+	/**
+	 * The sizes in pixels of the larger side of the texture variants.
+	 */
+	public int[] mLodSizes;
+
+	/**
+	 * The distance of the object from the device in meters.
+	 */
+	public float mDistance;
+
+	/**
+	 * The image of the first texture url, if it is not cached.
+	 */
 	public Bitmap mImage;
 
-	public boolean mTextureLoaded = false;
+	/**
+	 * The key of the texture the object holds a reference to in the texture
+	 * manager.
+	 */
+	String mBoundTextureKey;
+
+	/**
+	 * The size of the texture the object holds a reference to.
+	 */
+	int mBoundTextureSize;
 
 	private Arvos mInstance;
 
@@ -63,20 +92,53 @@ public class ArvosObject extends ArvosSquare
 	}
 
 	/**
-	 * Draws the object in the opengl view.
+	 * Returns the url of the texture to draw at a size, the smallest variant
+	 * that is at least as large as the size.
+	 * 
+	 * @param size
+	 *            The size in pixels the texture is drawn at.
+	 * @return The url of the variant, or the url of the full resolution
+	 *         texture if no variant is large enough.
 	 */
-	public void draw(GL10 gl)
+	public String getTextureUrl(int size)
 	{
-		if (!mTextureLoaded)
+		if (mLodUrls != null)
 		{
-			if (mImage != null)
+			for (int i = 0; i < mLodUrls.length; i++)
 			{
-				loadGLTexture(gl, mImage);
+				if (mLodSizes[i] >= size)
+				{
+					return mLodUrls[i];
+				}
 			}
-
-			mTextureLoaded = true;
 		}
+		return mTextureUrl;
+	}
+
+	/**
+	 * Draws the object in the opengl view.
+	 */
+	public void draw(GL10 gl)
+	{
+		ArvosPose pose = mInstance.getPose();
+		draw(gl, pose.mAzimuth, pose.mPitch, pose.mRoll);
+	}
 
+	/**
+	 * Draws the object in the opengl view for the given orientation of the
+	 * device.
+	 * 
+	 * @param gl
+	 *            The gl context.
+	 * @param azimuth
+	 *            The azimuth of the device in degrees.
+	 * @param pitch
+	 *            The pitch of the device in degrees.
+	 * @param roll
+	 *            The roll of the device in degrees.
+	 */
+	public void draw(GL10 gl, float azimuth, float pitch, float roll)
+	{
 		// Take the device orientation into account
 		//
 		gl.glRotatef(mInstance.getRotationDegrees(), 0f, 0f, 1f);
@@ -89,9 +151,9 @@ public class ArvosObject extends ArvosSquare
 
 		// Apply azimut, pitch and roll of the device
 		//
-		gl.glRotatef(mInstance.mRoll, 0f, 0f, 1f);
-		gl.glRotatef(mInstance.mPitch, 1f, 0f, 0f);
-		gl.glRotatef(mInstance.mAzimuth, 0f, 1f, 0f);
+		gl.glRotatef(roll, 0f, 0f, 1f);
+		gl.glRotatef(pitch, 1f, 0f, 0f);
+		gl.glRotatef(azimuth, 0f, 1f, 0f);
 
 		float x = 0f;
 		float y = 0f;
@@ -0,0 +1,181 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Draws the radar heads up display as last layer of the opengl frame.
+ * <p>
+ * The radar shows the objects drawn in the frame as red crosses and the
+ * direction of north as a blue circle with a line. The crosses of all objects
+ * are collected into one vertex buffer, so the radar always takes three draw
+ * calls no matter how many objects are shown.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosRadarHud
+{
+	/**
+	 * The maximum number of objects shown on the radar.
+	 */
+	public static final int MAX_OBJECTS = 256;
+
+	private static final int RADIUS = 50;
+	private static final int RANGE = 99;
+	private static final int OFFSET = 100;
+	private static final int SEGMENTS = 32;
+
+	private FloatBuffer mCompassBuffer;
+	private FloatBuffer mCrossBuffer;
+	private float[] mCrossVertices = new float[MAX_OBJECTS * 8];
+
+	public ArvosRadarHud()
+	{
+		// The north line followed by the circle
+		//
+		float[] compass = new float[4 + 2 * SEGMENTS];
+		compass[0] = 0;
+		compass[1] = 0;
+		compass[2] = 0;
+		compass[3] = -OFFSET;
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			double angle = 2 * Math.PI * i / SEGMENTS;
+			compass[4 + 2 * i] = (float) (RADIUS * Math.cos(angle));
+			compass[5 + 2 * i] = (float) (RADIUS * Math.sin(angle));
+		}
+		mCompassBuffer = createBuffer(compass.length);
+		mCompassBuffer.put(compass);
+		mCompassBuffer.position(0);
+
+		mCrossBuffer = createBuffer(mCrossVertices.length);
+	}
+
+	private static FloatBuffer createBuffer(int length)
+	{
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(length * 4);
+		byteBuffer.order(ByteOrder.nativeOrder());
+		return byteBuffer.asFloatBuffer();
+	}
+
+	/**
+	 * Draws the radar into the upper right corner of the view.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @param width
+	 *            The width of the view in pixels.
+	 * @param height
+	 *            The height of the view in pixels.
+	 * @param azimuth
+	 *            The corrected azimuth of the device in degrees.
+	 * @param arvosObjects
+	 *            The objects drawn in the frame.
+	 */
+	public void draw(GL10 gl, int width, int height, float azimuth, List<ArvosObject> arvosObjects)
+	{
+		float centerX = width - OFFSET;
+		float centerY = OFFSET;
+
+		int count = 0;
+		for (ArvosObject arvosObject : arvosObjects)
+		{
+			if (count >= MAX_OBJECTS)
+			{
+				break;
+			}
+			float[] position = arvosObject.mPosition;
+			if (position == null || position.length != 3)
+			{
+				continue;
+			}
+			float x = Math.round(position[0]);
+			float y = Math.round(position[2]);
+			if (x * x + y * y < RANGE * RANGE)
+			{
+				int i = count++ * 8;
+				mCrossVertices[i++] = x - 3;
+				mCrossVertices[i++] = y - 3;
+				mCrossVertices[i++] = x + 3;
+				mCrossVertices[i++] = y + 3;
+				mCrossVertices[i++] = x + 3;
+				mCrossVertices[i++] = y - 3;
+				mCrossVertices[i++] = x - 3;
+				mCrossVertices[i] = y + 3;
+			}
+		}
+
+		// Screen coordinates with the origin in the upper left corner
+		//
+		gl.glMatrixMode(GL10.GL_PROJECTION);
+		gl.glPushMatrix();
+		gl.glLoadIdentity();
+		gl.glOrthof(0, width, height, 0, -1, 1);
+		gl.glMatrixMode(GL10.GL_MODELVIEW);
+		gl.glLoadIdentity();
+		gl.glTranslatef(centerX, centerY, 0);
+
+		gl.glDisable(GL10.GL_DEPTH_TEST);
+		gl.glDisable(GL10.GL_TEXTURE_2D);
+		gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+
+		if (count > 0)
+		{
+			mCrossBuffer.position(0);
+			mCrossBuffer.put(mCrossVertices, 0, count * 8);
+			mCrossBuffer.position(0);
+
+			gl.glColor4f(1f, 0f, 0f, 1f);
+			gl.glLineWidth(2);
+			gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mCrossBuffer);
+			gl.glDrawArrays(GL10.GL_LINES, 0, count * 4);
+		}
+
+		gl.glRotatef(azimuth, 0f, 0f, 1f);
+		gl.glColor4f(0f, 0f, 1f, 1f);
+		gl.glVertexPointer(2, GL10.GL_FLOAT, 0, mCompassBuffer);
+		gl.glLineWidth(4);
+		gl.glDrawArrays(GL10.GL_LINES, 0, 2);
+		gl.glLineWidth(8);
+		gl.glDrawArrays(GL10.GL_LINE_LOOP, 2, SEGMENTS);
+
+		gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+		gl.glColor4f(1f, 1f, 1f, 1f);
+		gl.glLineWidth(1);
+		gl.glEnable(GL10.GL_TEXTURE_2D);
+		gl.glEnable(GL10.GL_DEPTH_TEST);
+
+		gl.glLoadIdentity();
+		gl.glMatrixMode(GL10.GL_PROJECTION);
+		gl.glPopMatrix();
+		gl.glMatrixMode(GL10.GL_MODELVIEW);
+	}
+}
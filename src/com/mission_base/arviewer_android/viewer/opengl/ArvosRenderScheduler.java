@@ -0,0 +1,197 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.opengl.GLSurfaceView;
+
+import com.mission_base.arviewer_android.ArvosPose;
+
+/**
+ * Schedules the frames of an opengl view rendering only when dirty.
+ * <p>
+ * A frame is requested when the pose changed by more than a threshold since
+ * the pose of the last frame requested, when a texture was prepared, a
+ * camera frame arrived or objects were clicked, started or stopped, and after
+ * each frame as long as an animation is running. A frame can also be
+ * requested for a later time, e.g. when a failed texture is retried. Requests
+ * from any thread are coalesced into one frame.
+ * <p>
+ * The frames rendered and the pose changes skipped because they were too small
+ * to be visible are counted.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosRenderScheduler
+{
+	/**
+	 * The change of an angle of the pose in degrees that causes a new frame.
+	 */
+	public static final float ANGLE_THRESHOLD_DEGREES = 0.2f;
+
+	private final GLSurfaceView mView;
+	private final AtomicBoolean mRenderPending = new AtomicBoolean(false);
+	private final AtomicLong mFramesRendered = new AtomicLong(0);
+	private final AtomicLong mPoseChangesSkipped = new AtomicLong(0);
+
+	private volatile ArvosPose mRequestedPose = null;
+
+	/**
+	 * Creates a render scheduler and switches the view to render only when
+	 * dirty, the renderer of the view has to be set already.
+	 * 
+	 * @param view
+	 *            The opengl view.
+	 */
+	public ArvosRenderScheduler(GLSurfaceView view)
+	{
+		mView = view;
+		mView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+	}
+
+	/**
+	 * Requests a frame, a request made while a frame is pending is dropped.
+	 */
+	public void requestRender()
+	{
+		if (mRenderPending.compareAndSet(false, true))
+		{
+			mView.requestRender();
+		}
+	}
+
+	/**
+	 * Requests a frame after a delay.
+	 * 
+	 * @param delayMillis
+	 *            The delay in milliseconds.
+	 */
+	public void requestRender(long delayMillis)
+	{
+		mView.postDelayed(mRequestRunnable, delayMillis);
+	}
+
+	private final Runnable mRequestRunnable = new Runnable()
+	{
+		public void run()
+		{
+			requestRender();
+		}
+	};
+
+	/**
+	 * Requests a frame if the pose changed visibly since the pose of the last
+	 * frame requested, otherwise counts the change as skipped.
+	 * 
+	 * @param pose
+	 *            The new pose of the device.
+	 */
+	public void onPoseChanged(ArvosPose pose)
+	{
+		ArvosPose requestedPose = mRequestedPose;
+		if (requestedPose == null //
+				|| pose.mLocationVersion != requestedPose.mLocationVersion //
+				|| exceedsThreshold(pose.mAzimuth, requestedPose.mAzimuth) //
+				|| exceedsThreshold(pose.mPitch, requestedPose.mPitch) //
+				|| exceedsThreshold(pose.mRoll, requestedPose.mRoll) //
+				|| exceedsThreshold(pose.mCorrectedAzimuth, requestedPose.mCorrectedAzimuth))
+		{
+			mRequestedPose = pose;
+			requestRender();
+		}
+		else
+		{
+			mPoseChangesSkipped.incrementAndGet();
+		}
+	}
+
+	private static boolean exceedsThreshold(float angle, float requestedAngle)
+	{
+		float diff = Math.abs(angle - requestedAngle);
+		if (diff > 180)
+		{
+			diff = 360 - diff;
+		}
+		return diff > ANGLE_THRESHOLD_DEGREES;
+	}
+
+	/**
+	 * Called by the renderer when it starts drawing a frame, requests made
+	 * from now on cause another frame.
+	 * 
+	 * @param pose
+	 *            The pose the frame is drawn for.
+	 */
+	public void onFrameStarted(ArvosPose pose)
+	{
+		mRenderPending.set(false);
+		mRequestedPose = pose;
+	}
+
+	/**
+	 * Called by the renderer when it finished drawing a frame.
+	 * 
+	 * @param needsNextFrame
+	 *            True if the content is still changing, e.g. an animation is
+	 *            running or prepared textures wait for upload.
+	 */
+	public void onFrameDrawn(boolean needsNextFrame)
+	{
+		mFramesRendered.incrementAndGet();
+		if (needsNextFrame)
+		{
+			requestRender();
+		}
+	}
+
+	/**
+	 * Returns the number of frames rendered.
+	 * 
+	 * @return The number of frames.
+	 */
+	public long getFramesRendered()
+	{
+		return mFramesRendered.get();
+	}
+
+	/**
+	 * Returns the number of pose changes not rendered because they were below
+	 * the threshold.
+	 * 
+	 * @return The number of pose changes skipped.
+	 */
+	public long getPoseChangesSkipped()
+	{
+		return mPoseChangesSkipped.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Frames rendered " + mFramesRendered.get() + ", pose changes skipped " + mPoseChangesSkipped.get();
+	}
+}
@@ -23,38 +23,122 @@
 
 package com.mission_base.arviewer_android.viewer.opengl;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import android.graphics.SurfaceTexture;
+import android.opengl.ETC1Util;
 import android.opengl.GLSurfaceView.Renderer;
 import android.opengl.GLU;
 
 import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.ArvosPose;
+import com.mission_base.arviewer_android.viewer.ArvosCamera;
 import com.mission_base.arviewer_android.viewer.utilities.MatrixGrabber;
 import com.mission_base.arviewer_android.viewer.utilities.MatrixTrackingGL;
 
 /**
  * Opengl renderer.
+ * <p>
+ * If a camera is given, the camera preview is drawn as background of each
+ * frame and the pois are drawn for the orientation at the time the camera
+ * frame was taken.
+ * <p>
+ * The radar heads up display is drawn as last layer of each frame. After
+ * drawing, the frame is published as an immutable snapshot for the readers on
+ * other threads.
+ * <p>
+ * If a render scheduler is set, it is told about each frame drawn and whether
+ * the content still changes without the pose changing.
  * 
  * @author peter
  * 
  */
 public class ArvosRenderer implements Renderer
 {
+	/**
+	 * The time per frame in nanoseconds spent uploading textures.
+	 */
+	public static final long UPLOAD_BUDGET_NANOS = 4000000L;
+
 	private Arvos mInstance;
+	private ArvosCamera mCamera;
+	private ArvosCameraBackground mCameraBackground;
+	private ArvosRadarHud mRadarHud = new ArvosRadarHud();
+	private ArvosTextureManager mTextureManager = new ArvosTextureManager();
 
 	public ArvosRenderer()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a renderer.
+	 * 
+	 * @param camera
+	 *            The camera whose preview is drawn as background, or null if
+	 *            the renderer draws the pois only.
+	 */
+	public ArvosRenderer(ArvosCamera camera)
 	{
 		mInstance = Arvos.getInstance();
+		mCamera = camera;
+		if (mCamera != null)
+		{
+			mCameraBackground = new ArvosCameraBackground();
+		}
 	}
 
 	private long mSecond = System.currentTimeMillis() / 1000;
 	private long mFPS = 0;
 
 	private int counter = 0;
+	private long mCorrectedAzimuthVersion = -1;
+
+	private float[] mAngles = new float[3];
+
+	// only used on the opengl thread
+	private List<ArvosObject> mArvosObjects = new LinkedList<ArvosObject>();
+	private float[] mProjectionMatrix = null;
+	private long mFrameNumber = 0;
+
+	/**
+	 * Gets the orientation the frame is drawn for.
+	 * <p>
+	 * If the camera frame drawn is known, the orientation at the time the
+	 * camera frame was taken is used. Otherwise the filtered orientation of the
+	 * device is extrapolated by the prediction time, so the augment keeps up
+	 * with the camera preview.
+	 * 
+	 * @param pose
+	 *            The pose of the frame.
+	 * @param cameraNanos
+	 *            The timestamp of the camera frame drawn, or 0.
+	 */
+	private void getFrameOrientation(ArvosPose pose, long cameraNanos)
+	{
+		long now = System.nanoTime();
+		long nanos = 0;
+		if (cameraNanos > 0 && Math.abs(now - cameraNanos) < 1000000000L)
+		{
+			nanos = cameraNanos;
+		}
+		else if (mInstance.mPredictionMillis > 0)
+		{
+			nanos = now + mInstance.mPredictionMillis * 1000000L;
+		}
+
+		if (nanos == 0 || !mInstance.mPosePredictor.predict(nanos, mAngles))
+		{
+			mAngles[0] = pose.mAzimuth;
+			mAngles[1] = pose.mPitch;
+			mAngles[2] = pose.mRoll;
+		}
+	}
 
 	@Override
 	public void onDrawFrame(GL10 gl)
@@ -73,58 +157,106 @@ public class ArvosRenderer implements Renderer
 
 		long now = System.currentTimeMillis();
 
-		List<ArvosObject> arvosObjects;
-		synchronized (mInstance.mArvosObjects)
+		// Use one consistent pose for the whole frame
+		//
+		ArvosPose pose = mInstance.getPose();
+		ArvosRenderScheduler renderScheduler = mInstance.mRenderScheduler;
+		if (renderScheduler != null)
+		{
+			renderScheduler.onFrameStarted(pose);
+		}
+		List<ArvosObject> newObjects = mInstance.mAugment.getObjects(now, mArvosObjects, pose);
+		mTextureManager.releaseRemoved(gl, mArvosObjects, newObjects);
+		mArvosObjects = newObjects;
+
+		long cameraNanos = 0;
+		if (mCameraBackground != null)
 		{
-			arvosObjects = new LinkedList<ArvosObject>(mInstance.mArvosObjects);
+			cameraNanos = mCameraBackground.update();
 		}
+		getFrameOrientation(pose, cameraNanos);
 
-		List<ArvosObject> newObjects = mInstance.mAugment.getObjects(now, arvosObjects);
+		MatrixTrackingGL mgl = null;
+		HashMap<Integer, float[]> modelViewMatrixes = null;
 
-		synchronized (mInstance.mArvosObjects)
+		if (mInstance.mModelViewMatrixesRequested)
 		{
-			mInstance.mArvosObjects.clear();
-			mInstance.mArvosObjects.addAll(newObjects);
+			gl = mgl = new MatrixTrackingGL(gl);
+			modelViewMatrixes = new HashMap<Integer, float[]>();
+		}
 
-			MatrixTrackingGL mgl = null;
+		gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
+		if (mCameraBackground != null)
+		{
+			mCameraBackground.draw(gl);
+		}
 
-			if (mInstance.mModelViewMatrixesRequested)
+		mTextureManager.uploadPrepared(gl, UPLOAD_BUDGET_NANOS);
+		for (ArvosObject arvosObject : newObjects)
+		{
+			arvosObject.mTextureId = mTextureManager.getTexture(gl, arvosObject);
+			if (arvosObject.mTextureId == 0 && arvosObject.mTextureUrl != null)
 			{
-				gl = mgl = new MatrixTrackingGL(gl);
+				// texture not uploaded yet
+				continue;
 			}
+			gl.glLoadIdentity();
+			arvosObject.draw(gl, mAngles[0], mAngles[1], mAngles[2]);
 
-			gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
-
-			synchronized (mInstance.mModelViewMatrixes)
+			if (mgl != null)
 			{
-				for (ArvosObject arvosObject : mInstance.mArvosObjects)
-				{
-					gl.glLoadIdentity();
-					arvosObject.draw(gl);
-
-					if (mgl != null)
-					{
-						MatrixGrabber matrixGrabber = new MatrixGrabber();
-						matrixGrabber.getCurrentState(mgl);
-
-						if (mInstance.mModelViewMatrixesRequested)
-						{
-							mInstance.mModelViewMatrixes.put(Integer.valueOf(arvosObject.mId), matrixGrabber.mModelView);
-						}
-					}
-				}
+				MatrixGrabber matrixGrabber = new MatrixGrabber();
+				matrixGrabber.getCurrentState(mgl);
+				modelViewMatrixes.put(Integer.valueOf(arvosObject.mId), matrixGrabber.mModelView);
 			}
+		}
+
+		mRadarHud.draw(gl, mInstance.mWidth, mInstance.mHeight, pose.mCorrectedAzimuth, newObjects);
+
+		// Publish the frame, readers never block the renderer
+		//
+		mInstance.setFrame(new ArvosFrame(++mFrameNumber, pose, newObjects, modelViewMatrixes, mProjectionMatrix, mInstance.mWidth, mInstance.mHeight));
+		if (modelViewMatrixes != null)
+		{
 			mInstance.mModelViewMatrixesRequested = false;
 		}
 
-		if (++counter % 10 == 0)
+		if (renderScheduler != null)
+		{
+			// Keep drawing while the content changes without the pose changing
+			renderScheduler.onFrameDrawn(mInstance.mAugment.isAnimated() || mTextureManager.hasPrepared() || mInstance.mModelViewMatrixesRequested);
+		}
+
+		// When rendering only when dirty, the last frame of a movement has to
+		// update the corrected azimuth
+		if (++counter % 10 == 0 || renderScheduler != null)
 		{
-			getCorrectedAzimuth(new MatrixTrackingGL(gl));
 			counter = 0;
+			if (pose.mOrientationVersion != mCorrectedAzimuthVersion)
+			{
+				mCorrectedAzimuthVersion = pose.mOrientationVersion;
+				getCorrectedAzimuth(new MatrixTrackingGL(gl), pose);
+			}
 		}
 	}
 
-	private void getCorrectedAzimuth(MatrixTrackingGL gl)
+	/**
+	 * Starts the background work of the renderer, called when the view resumes.
+	 */
+	public void onResume()
+	{
+		mTextureManager.onResume();
+	}
+
+	/**
+	 * Stops the background work of the renderer, called when the view pauses.
+	 */
+	public void onPause()
+	{
+		mTextureManager.onPause();
+	}
+
+	private void getCorrectedAzimuth(MatrixTrackingGL gl, ArvosPose pose)
 	{
 		gl.glLoadIdentity();
 
@@ -140,9 +272,9 @@ public class ArvosRenderer implements Renderer
 
 		// Apply azimut, pitch and roll of the device
 		//
-		gl.glRotatef(mInstance.mRoll, 0f, 0f, 1f);
-		gl.glRotatef(mInstance.mPitch, 1f, 0f, 0f);
-		gl.glRotatef(mInstance.mAzimuth, 0f, 1f, 0f);
+		gl.glRotatef(pose.mRoll, 0f, 0f, 1f);
+		gl.glRotatef(pose.mPitch, 1f, 0f, 0f);
+		gl.glRotatef(pose.mAzimuth, 0f, 1f, 0f);
 
 		MatrixGrabber matrixGrabber = new MatrixGrabber();
 		matrixGrabber.getCurrentState(gl);
@@ -157,7 +289,7 @@ public class ArvosRenderer implements Renderer
 			{
 				sign = -1;
 			}
-			mInstance.mCorrectedAzimuth = sign * f;
+			mInstance.setCorrectedAzimuth(sign * f);
 		}
 	}
 
@@ -175,14 +307,7 @@ public class ArvosRenderer implements Renderer
 
 		mInstance.mHeight = height;
 		mInstance.mWidth = width;
-
-		synchronized (mInstance.mArvosObjects)
-		{
-			for (ArvosObject arvosObject : mInstance.mArvosObjects)
-			{
-				arvosObject.mTextureLoaded = false;
-			}
-		}
+		mTextureManager.setViewSize(width, height);
 
 		mgl.glViewport(0, 0, width, height); // Reset The Current Viewport
 		mgl.glMatrixMode(GL10.GL_PROJECTION); // Select The Projection Matrix
@@ -193,15 +318,26 @@ public class ArvosRenderer implements Renderer
 
 		MatrixGrabber matrixGrabber = new MatrixGrabber();
 		matrixGrabber.getCurrentState(mgl);
-		mInstance.mProjectionMatrix = matrixGrabber.mProjection;
+		mProjectionMatrix = matrixGrabber.mProjection;
 
 		mgl.glMatrixMode(GL10.GL_MODELVIEW); // Select The Modelview Matrix
 		mgl.glLoadIdentity(); // Reset The Modelview Matrix
+
+		if (mSurfaceTexture != null)
+		{
+			mCamera.startPreview(mSurfaceTexture, width, height);
+		}
 	}
 
+	private SurfaceTexture mSurfaceTexture;
+
 	@Override
 	public void onSurfaceCreated(GL10 gl, EGLConfig config)
 	{
+		// A new context, all textures have to be uploaded again
+		mTextureManager.onContextLost();
+		mTextureManager.setCompress(mInstance.mCompressTextures && ETC1Util.isETC1Supported());
+
 		gl.glEnable(GL10.GL_TEXTURE_2D); // Enable mTexture Mapping ( NEW )
 		gl.glShadeModel(GL10.GL_SMOOTH); // Enable Smooth Shading
 
@@ -212,7 +348,25 @@ public class ArvosRenderer implements Renderer
 		// Really Nice Perspective Calculations
 		gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
 
-		gl.glClearColor(0, 0, 0, 0);
+		if (mCameraBackground != null)
+		{
+			// The camera preview covers the whole surface, no translucency
+			// needed
+			gl.glClearColor(0, 0, 0, 1);
+			mSurfaceTexture = mCameraBackground.createSurfaceTexture(gl);
+			mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener()
+			{
+				public void onFrameAvailable(SurfaceTexture surfaceTexture)
+				{
+					// Each camera frame has to be drawn
+					mInstance.requestRender();
+				}
+			});
+		}
+		else
+		{
+			gl.glClearColor(0, 0, 0, 0);
+		}
 
 		gl.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE_MINUS_SRC_ALPHA);
 		gl.glEnable(GL10.GL_BLEND);
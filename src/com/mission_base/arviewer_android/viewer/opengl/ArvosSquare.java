@@ -30,12 +30,6 @@ import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.opengles.GL10;
 
-import com.mission_base.arviewer_android.Arvos;
-
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.opengl.GLUtils;
-
 /**
  * The basic object shown in the opengl view, a square with a texture on it.
  * 
@@ -79,39 +73,14 @@ public class ArvosSquare
 		textureBuffer.position(0);
 	}
 
-	/** The texture pointer */
-	private int[] textures = new int[1];
-
-	public void loadGLTexture(GL10 gl, int textureId)
-	{
-		// loading texture
-		Bitmap bitmap = BitmapFactory.decodeResource(Arvos.getInstance().getActivity().getResources(), textureId);
-
-		loadGLTexture(gl, bitmap);
-
-		// Clean up
-		bitmap.recycle();
-	}
-
-	public void loadGLTexture(GL10 gl, Bitmap image)
-	{
-		// generate one texture pointer and bind it to the array of this arvos square
-		gl.glGenTextures(1, textures, 0);
-		gl.glBindTexture(GL10.GL_TEXTURE_2D, textures[0]);
-
-		// create nearest filtered texture
-		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
-		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-
-		// Use Android GLUtils to specify a two-dimensional texture image from our bitmap
-		GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, image, 0);
-	}
+	/** The opengl texture drawn, 0 for none */
+	public int mTextureId = 0;
 
 	/** The draw method for the square with the GL context */
 	public void draw(GL10 gl)
 	{
-		// bind the previously generated texture
-		gl.glBindTexture(GL10.GL_TEXTURE_2D, textures[0]);
+		// bind the texture provided by the texture manager
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, mTextureId);
 
 		// Point to our buffers
 		gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
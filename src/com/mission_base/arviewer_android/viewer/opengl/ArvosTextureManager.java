@@ -0,0 +1,583 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.ArvosCache;
+
+/**
+ * Manages the opengl textures of the objects drawn, only used on the opengl
+ * thread.
+ * <p>
+ * Textures are keyed by url and size. When a texture is prepared whose content
+ * is already uploaded at the same size for another url, its key becomes an
+ * alias of the uploaded texture, so urls with the same content share one
+ * texture. The aliases are forgotten with the textures they point to, after
+ * the opengl context was lost and when the renderer pauses, as the content
+ * of a url may change meanwhile.
+ * <p>
+ * An object drawing a texture holds a reference to it until it draws another
+ * texture or is no longer drawn. Textures without references stay uploaded
+ * for reuse until the memory they use exceeds the budget, then the least
+ * recently used are deleted. After the opengl context was lost all textures
+ * are uploaded again lazily when they are drawn next.
+ * <p>
+ * Textures are prepared for upload by an ArvosTexturePreparer on a background
+ * thread, the opengl thread only uploads prepared textures within a time
+ * budget per frame. Until its texture is uploaded an object is not drawn.
+ * A texture that could not be prepared is requested again after a delay
+ * doubling with each failure, prepared from the image given with the object
+ * if there is one. A frame is requested for the time of the retry.
+ * <p>
+ * The size of the texture of an object follows the size of the object on the
+ * screen, distant objects use small textures decoded at a lower resolution or
+ * the lower resolution variants of the texture given by the augment. So the
+ * texture memory used scales with what is visible.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosTextureManager
+{
+	private static String mTag = "ArvosTextureManager";
+
+	/**
+	 * The default number of bytes of texture memory used before unreferenced
+	 * textures are deleted.
+	 */
+	public static final long MAX_BYTES = 24 * 1024 * 1024;
+
+	/**
+	 * The smallest texture size in pixels used for distant objects.
+	 */
+	public static final int MIN_LOD_SIZE = 32;
+
+	/**
+	 * The fraction of the size bound an object has to shrink below before a
+	 * smaller texture is used.
+	 */
+	private static final float LOD_HYSTERESIS = 0.8f;
+
+	/**
+	 * The distance in meters below which objects are treated as being at this
+	 * distance.
+	 */
+	private static final float MIN_DISTANCE = 0.5f;
+
+	/**
+	 * The delay in milliseconds before a texture that could not be prepared
+	 * is requested again, doubled with each failure.
+	 */
+	private static final long RETRY_MILLIS = 2000;
+
+	/**
+	 * The longest delay in milliseconds before a texture that could not be
+	 * prepared is requested again.
+	 */
+	private static final long MAX_RETRY_MILLIS = 60000;
+
+	// The vertical field of view of the renderer's projection
+	private static final double FIELD_OF_VIEW_DEGREES = 45.0;
+
+	private static class Texture
+	{
+		String mUrl;
+		int mSize;
+		boolean mIsPending = false;
+		int mFailureCount = 0;
+		long mRetryTime = 0;
+		int mTextureId = 0;
+		int mRefCount = 0;
+		long mBytes = 0;
+	}
+
+	// access ordered, the least recently used texture comes first
+	private LinkedHashMap<String, Texture> mTextures = new LinkedHashMap<String, Texture>(16, 0.75f, true);
+	// the key of the texture drawn instead by the key of a texture with the
+	// same content
+	private HashMap<String, String> mAliases = new HashMap<String, String>();
+	// the key of the uploaded texture by content hash and size
+	private HashMap<String, String> mContentKeys = new HashMap<String, String>();
+	private ArvosTexturePreparer mPreparer = new ArvosTexturePreparer();
+	private long mMaxBytes;
+	private long mBytes = 0;
+	private int[] mTextureIds = new int[1];
+
+	private float mPixelsPerMeter = 512f;
+	private int mMaxLodSize = ArvosTexturePreparer.MAX_SIZE;
+
+	private long mUploadCount = 0;
+	private long mDeleteCount = 0;
+
+	public ArvosTextureManager()
+	{
+		this(MAX_BYTES);
+	}
+
+	/**
+	 * Creates a texture manager.
+	 * 
+	 * @param maxBytes
+	 *            The number of bytes of texture memory used before unreferenced
+	 *            textures are deleted.
+	 */
+	public ArvosTextureManager(long maxBytes)
+	{
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the texture to draw for an object, the texture is uploaded if
+	 * needed.
+	 * <p>
+	 * The resolution of the texture is chosen by the size the object has on
+	 * the screen at its distance. Until the texture of that resolution is
+	 * uploaded, the texture of another resolution already uploaded is used.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @param arvosObject
+	 *            The object to be drawn.
+	 * @return The opengl texture id or 0 if the object has no texture yet.
+	 */
+	public int getTexture(GL10 gl, ArvosObject arvosObject)
+	{
+		if (arvosObject.mTextureUrl == null)
+		{
+			release(gl, arvosObject);
+			return 0;
+		}
+
+		int size = getLodSize(arvosObject);
+		String url = arvosObject.getTextureUrl(size);
+		String key = getKey(url, size);
+		if (!key.equals(arvosObject.mBoundTextureKey))
+		{
+			release(gl, arvosObject);
+			Texture texture = mTextures.get(key);
+			if (texture == null)
+			{
+				texture = new Texture();
+				texture.mUrl = url;
+				texture.mSize = size;
+				mTextures.put(key, texture);
+			}
+			texture.mRefCount++;
+			arvosObject.mBoundTextureKey = key;
+			arvosObject.mBoundTextureSize = size;
+		}
+
+		Texture texture = mTextures.get(key);
+		if (texture.mTextureId == 0 && !texture.mIsPending && System.currentTimeMillis() >= texture.mRetryTime)
+		{
+			// The image given with the object is the one of the first url, the
+			// smallest variant, it is also used if the texture of another url
+			// could not be prepared
+			Bitmap image = null;
+			if (texture.mFailureCount > 0 || url.equals(arvosObject.getTextureUrl(0)))
+			{
+				image = arvosObject.mImage;
+			}
+			texture.mIsPending = mPreparer.prepare(key, url, size, image);
+		}
+		if (texture.mTextureId != 0)
+		{
+			return texture.mTextureId;
+		}
+		return getUploadedTexture(arvosObject);
+	}
+
+	/**
+	 * Returns the key of the texture of a url at a size, the key of the
+	 * texture with the same content if the content is shared.
+	 */
+	private String getKey(String url, int size)
+	{
+		String key = url + "@" + size;
+		String alias = mAliases.get(key);
+		return alias == null ? key : alias;
+	}
+
+	/**
+	 * Shares the uploaded texture with the same content and size with a
+	 * texture prepared, the key of the texture prepared becomes an alias. The
+	 * objects drawing the texture prepared switch to the shared texture when
+	 * they are drawn next.
+	 * 
+	 * @return True if the texture is shared and need not be uploaded.
+	 */
+	private boolean share(String key, Texture texture)
+	{
+		String contentHash = ArvosCache.getContentHash(texture.mUrl);
+		if (contentHash == null)
+		{
+			return false;
+		}
+		String contentKey = contentHash + "@" + texture.mSize;
+		String uploadedKey = mContentKeys.get(contentKey);
+		Texture uploaded = uploadedKey == null ? null : mTextures.get(uploadedKey);
+		if (uploaded == null || uploaded.mTextureId == 0)
+		{
+			mContentKeys.put(contentKey, key);
+			return false;
+		}
+		mAliases.put(key, uploadedKey);
+		return true;
+	}
+
+	/**
+	 * Forgets the content of a texture deleted and the aliases pointing to it.
+	 */
+	private void forget(String key)
+	{
+		mContentKeys.values().remove(key);
+		mAliases.values().removeAll(Collections.singleton(key));
+	}
+
+	/**
+	 * Returns the size in pixels of the texture to draw an object with, the
+	 * power of two at least as large as the object is on the screen.
+	 * <p>
+	 * A smaller size is only chosen once the object shrank well below the size
+	 * bound, so that an object moving at the border between two sizes does not
+	 * switch its texture back and forth.
+	 */
+	private int getLodSize(ArvosObject arvosObject)
+	{
+		float scale = 1f;
+		if (arvosObject.mScale != null && arvosObject.mScale.length == 3)
+		{
+			scale = Math.max(Math.abs(arvosObject.mScale[0]), Math.abs(arvosObject.mScale[1]));
+		}
+		float pixels = mPixelsPerMeter * scale / Math.max(arvosObject.mDistance, MIN_DISTANCE);
+
+		int size = MIN_LOD_SIZE;
+		while (size < pixels && size < mMaxLodSize)
+		{
+			size *= 2;
+		}
+		int boundSize = arvosObject.mBoundTextureSize;
+		if (size < boundSize && boundSize <= mMaxLodSize && pixels > boundSize * LOD_HYSTERESIS / 2)
+		{
+			size = boundSize;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns an uploaded texture of an object at any resolution, the highest
+	 * resolution is preferred.
+	 */
+	private int getUploadedTexture(ArvosObject arvosObject)
+	{
+		for (int size = mMaxLodSize; size >= MIN_LOD_SIZE; size /= 2)
+		{
+			Texture texture = mTextures.get(getKey(arvosObject.getTextureUrl(size), size));
+			if (texture != null && texture.mTextureId != 0)
+			{
+				return texture.mTextureId;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Releases the texture reference held by an object.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @param arvosObject
+	 *            The object no longer drawing its texture.
+	 */
+	public void release(GL10 gl, ArvosObject arvosObject)
+	{
+		String key = arvosObject.mBoundTextureKey;
+		if (key == null)
+		{
+			return;
+		}
+		arvosObject.mBoundTextureKey = null;
+
+		Texture texture = mTextures.get(key);
+		if (texture != null && texture.mRefCount > 0)
+		{
+			texture.mRefCount--;
+			if (texture.mRefCount == 0 && texture.mTextureId == 0)
+			{
+				mTextures.remove(key);
+			}
+		}
+		evict(gl);
+	}
+
+	/**
+	 * Releases the texture references of all objects of the previous frame that
+	 * are not drawn in the next frame.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @param previousObjects
+	 *            The objects of the previous frame.
+	 * @param objects
+	 *            The objects of the next frame.
+	 */
+	public void releaseRemoved(GL10 gl, List<ArvosObject> previousObjects, List<ArvosObject> objects)
+	{
+		if (previousObjects.isEmpty())
+		{
+			return;
+		}
+		Map<ArvosObject, Boolean> drawn = new IdentityHashMap<ArvosObject, Boolean>();
+		for (ArvosObject arvosObject : objects)
+		{
+			drawn.put(arvosObject, Boolean.TRUE);
+		}
+		for (ArvosObject arvosObject : previousObjects)
+		{
+			if (!drawn.containsKey(arvosObject))
+			{
+				release(gl, arvosObject);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all uploaded textures after the opengl context was lost, the
+	 * textures are uploaded again when they are drawn next.
+	 */
+	public void onContextLost()
+	{
+		for (Iterator<Texture> iterator = mTextures.values().iterator(); iterator.hasNext();)
+		{
+			Texture texture = iterator.next();
+			if (texture.mRefCount == 0)
+			{
+				iterator.remove();
+				continue;
+			}
+			texture.mTextureId = 0;
+			texture.mIsPending = false;
+			texture.mBytes = 0;
+		}
+		mBytes = 0;
+		mAliases.clear();
+		mContentKeys.clear();
+	}
+
+	/**
+	 * Starts the texture preparation.
+	 */
+	public void onResume()
+	{
+		mPreparer.onResume();
+	}
+
+	/**
+	 * Stops the texture preparation.
+	 */
+	public void onPause()
+	{
+		mPreparer.onPause();
+		for (Texture texture : mTextures.values())
+		{
+			texture.mIsPending = false;
+		}
+		mAliases.clear();
+		mContentKeys.clear();
+	}
+
+	/**
+	 * Sets the size of the view, textures are not prepared larger than the
+	 * view. The size an object has on the screen at a distance follows from
+	 * the height of the view.
+	 * 
+	 * @param width
+	 *            The width of the view.
+	 * @param height
+	 *            The height of the view.
+	 */
+	public void setViewSize(int width, int height)
+	{
+		mPreparer.setViewSize(width, height);
+		mMaxLodSize = Math.max(MIN_LOD_SIZE, mPreparer.getMaxSize());
+		mPixelsPerMeter = height / (2f * (float) Math.tan(Math.toRadians(FIELD_OF_VIEW_DEGREES / 2)));
+	}
+
+	/**
+	 * Sets whether opaque textures are compressed to ETC1.
+	 * 
+	 * @param compress
+	 *            True to compress opaque textures.
+	 */
+	public void setCompress(boolean compress)
+	{
+		mPreparer.setCompress(compress);
+	}
+
+	/**
+	 * Returns whether prepared textures wait for upload.
+	 * 
+	 * @return True if a texture is prepared.
+	 */
+	public boolean hasPrepared()
+	{
+		return mPreparer.hasPrepared();
+	}
+
+	/**
+	 * Uploads prepared textures until the time budget is used up, at least one
+	 * texture is uploaded if one is prepared.
+	 * 
+	 * @param gl
+	 *            The opengl context.
+	 * @param budgetNanos
+	 *            The time budget in nanoseconds.
+	 */
+	public void uploadPrepared(GL10 gl, long budgetNanos)
+	{
+		long start = System.nanoTime();
+		ArvosTexturePreparer.PreparedTexture prepared;
+		while ((prepared = mPreparer.poll()) != null)
+		{
+			Texture texture = mTextures.get(prepared.mKey);
+			if (texture == null || texture.mTextureId != 0)
+			{
+				prepared.recycle();
+				continue;
+			}
+			texture.mIsPending = false;
+			if (prepared.isFailed())
+			{
+				texture.mFailureCount++;
+				long delay = Math.min(RETRY_MILLIS << Math.min(texture.mFailureCount - 1, 5), MAX_RETRY_MILLIS);
+				texture.mRetryTime = System.currentTimeMillis() + delay;
+
+				// Nothing else may draw a frame on a still device
+				Arvos.getInstance().requestRender(delay);
+				continue;
+			}
+			if (share(prepared.mKey, texture))
+			{
+				prepared.recycle();
+				continue;
+			}
+			upload(gl, texture, prepared);
+			if (System.nanoTime() - start > budgetNanos)
+			{
+				break;
+			}
+		}
+	}
+
+	private void upload(GL10 gl, Texture texture, ArvosTexturePreparer.PreparedTexture prepared)
+	{
+		gl.glGenTextures(1, mTextureIds, 0);
+		texture.mTextureId = mTextureIds[0];
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, texture.mTextureId);
+
+		// create trilinear filtered texture
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR_MIPMAP_LINEAR);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+
+		if (prepared.mCompressedLevels != null)
+		{
+			for (int level = 0; level < prepared.mCompressedLevels.length; level++)
+			{
+				ETC1Util.loadTexture(GL10.GL_TEXTURE_2D, level, 0, GL10.GL_RGB, GL10.GL_UNSIGNED_SHORT_5_6_5, prepared.mCompressedLevels[level]);
+			}
+		}
+		else
+		{
+			for (int level = 0; level < prepared.mLevels.length; level++)
+			{
+				GLUtils.texImage2D(GL10.GL_TEXTURE_2D, level, prepared.mLevels[level], 0);
+			}
+		}
+		prepared.recycle();
+
+		texture.mBytes = prepared.mBytes;
+		texture.mFailureCount = 0;
+		mBytes += texture.mBytes;
+		mUploadCount++;
+		evict(gl);
+	}
+
+	private void evict(GL10 gl)
+	{
+		if (mBytes <= mMaxBytes)
+		{
+			return;
+		}
+		for (Iterator<Map.Entry<String, Texture>> iterator = mTextures.entrySet().iterator(); iterator.hasNext() && mBytes > mMaxBytes;)
+		{
+			Map.Entry<String, Texture> entry = iterator.next();
+			Texture texture = entry.getValue();
+			if (texture.mRefCount > 0 || texture.mTextureId == 0)
+			{
+				continue;
+			}
+			mTextureIds[0] = texture.mTextureId;
+			gl.glDeleteTextures(1, mTextureIds, 0);
+			mBytes -= texture.mBytes;
+			mDeleteCount++;
+			iterator.remove();
+			forget(entry.getKey());
+		}
+		if (mBytes > mMaxBytes)
+		{
+			Log.d(mTag, "Textures drawn need " + mBytes + " bytes, more than the budget of " + mMaxBytes);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of texture memory used.
+	 * 
+	 * @return The number of bytes used.
+	 */
+	public long getBytes()
+	{
+		return mBytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Textures " + mTextures.size() + ", bytes " + mBytes + ", uploads " + mUploadCount + ", deletes " + mDeleteCount;
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ Copyright (C) 2013, Peter Graf
+
+   This file is part of Arvos - AR Viewer Open Source for Android.
+   Arvos is free software.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+   For more information on the AR Viewer Open Source or Peter Graf,
+   please see: http://www.mission-base.com/.
+ */
+
+package com.mission_base.arviewer_android.viewer.opengl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.Pair;
+
+import com.mission_base.arviewer_android.Arvos;
+import com.mission_base.arviewer_android.ArvosCache;
+import com.mission_base.arviewer_android.ArvosHttpRequest;
+
+/**
+ * Prepares textures for upload on a background thread.
+ * <p>
+ * The image of a texture is decoded from the cache subsampled to the size
+ * requested, at most the size it can have on the screen, or scaled down from
+ * the image given. Images not in the cache are downloaded first. It is
+ * then scaled to a power of two size and a full chain of mipmap levels is
+ * created. Opaque images are optionally compressed to ETC1. The prepared
+ * textures are queued for the opengl thread, which only has to upload them,
+ * and a frame is requested to draw them.
+ * 
+ * @author peter
+ * 
+ */
+public class ArvosTexturePreparer
+{
+	private static String mTag = "ArvosTexturePreparer";
+
+	/**
+	 * The largest texture size prepared.
+	 */
+	public static final int MAX_SIZE = 1024;
+
+	/**
+	 * A texture ready for upload, or the marker of a texture that could not be
+	 * prepared.
+	 */
+	static class PreparedTexture
+	{
+		String mKey;
+		Bitmap[] mLevels;
+		ETC1Util.ETC1Texture[] mCompressedLevels;
+		long mBytes;
+
+		boolean isFailed()
+		{
+			return mLevels == null && mCompressedLevels == null;
+		}
+
+		void recycle()
+		{
+			if (mLevels != null)
+			{
+				for (Bitmap level : mLevels)
+				{
+					level.recycle();
+				}
+			}
+			mLevels = null;
+			mCompressedLevels = null;
+		}
+	}
+
+	private HandlerThread mThread;
+	private Handler mHandler;
+	private final ConcurrentLinkedQueue<PreparedTexture> mPrepared = new ConcurrentLinkedQueue<PreparedTexture>();
+
+	private volatile int mMaxSize = MAX_SIZE;
+	private volatile boolean mCompress = false;
+
+	/**
+	 * Starts the preparation thread.
+	 */
+	public void onResume()
+	{
+		if (mThread == null)
+		{
+			mThread = new HandlerThread("ArvosTexturePreparer", Process.THREAD_PRIORITY_BACKGROUND);
+			mThread.start();
+			mHandler = new Handler(mThread.getLooper());
+		}
+	}
+
+	/**
+	 * Stops the preparation thread, pending requests are dropped.
+	 */
+	public void onPause()
+	{
+		if (mThread != null)
+		{
+			mThread.quit();
+			mThread = null;
+			mHandler = null;
+		}
+	}
+
+	/**
+	 * Sets the largest size a texture can have on the screen.
+	 * 
+	 * @param width
+	 *            The width of the view.
+	 * @param height
+	 *            The height of the view.
+	 */
+	public void setViewSize(int width, int height)
+	{
+		int size = 1;
+		while (size * 2 <= Math.max(width, height) && size * 2 <= MAX_SIZE)
+		{
+			size *= 2;
+		}
+		mMaxSize = size;
+	}
+
+	/**
+	 * Returns the largest size a texture is prepared with.
+	 * 
+	 * @return The size in pixels.
+	 */
+	public int getMaxSize()
+	{
+		return mMaxSize;
+	}
+
+	/**
+	 * Sets whether opaque textures are compressed to ETC1, only to be enabled
+	 * if the opengl context supports ETC1.
+	 * 
+	 * @param compress
+	 *            True to compress opaque textures.
+	 */
+	public void setCompress(boolean compress)
+	{
+		mCompress = compress;
+	}
+
+	/**
+	 * Requests the preparation of a texture. If the texture cannot be prepared
+	 * a failed marker with its key is queued instead.
+	 * 
+	 * @param key
+	 *            The key the prepared texture is returned with.
+	 * @param url
+	 *            The url of the texture.
+	 * @param size
+	 *            The largest size in pixels the texture is prepared with.
+	 * @param image
+	 *            The image of the texture, or null to decode it from the cache.
+	 * @return False if the preparation could not be started.
+	 */
+	public boolean prepare(final String key, final String url, final int size, final Bitmap image)
+	{
+		Handler handler = mHandler;
+		if (handler == null)
+		{
+			return false;
+		}
+		return handler.post(new Runnable()
+		{
+			public void run()
+			{
+				PreparedTexture prepared = prepareTexture(key, url, size, image);
+				if (prepared == null)
+				{
+					// let the opengl thread clear the pending state
+					prepared = new PreparedTexture();
+					prepared.mKey = key;
+				}
+				mPrepared.add(prepared);
+				Arvos.getInstance().requestRender();
+			}
+		});
+	}
+
+	/**
+	 * Returns whether prepared textures wait for upload.
+	 * 
+	 * @return True if a texture is prepared.
+	 */
+	boolean hasPrepared()
+	{
+		return !mPrepared.isEmpty();
+	}
+
+	/**
+	 * Returns the next prepared texture, called on the opengl thread.
+	 * 
+	 * @return The next prepared texture, a failed marker, or null.
+	 */
+	PreparedTexture poll()
+	{
+		return mPrepared.poll();
+	}
+
+	private PreparedTexture prepareTexture(String key, String url, int size, Bitmap image)
+	{
+		int maxSize = Math.min(size, mMaxSize);
+		Bitmap source = image;
+		if (source == null)
+		{
+			source = ArvosCache.getBitmap(url, maxSize, maxSize);
+		}
+		if (source == null)
+		{
+			source = download(url, maxSize);
+			if (source == null)
+			{
+				return null;
+			}
+		}
+
+		int width = powerOfTwo(source.getWidth(), maxSize);
+		int height = powerOfTwo(source.getHeight(), maxSize);
+		int levelCount = 1;
+		for (int levelSize = Math.max(width, height); levelSize > 1; levelSize /= 2)
+		{
+			levelCount++;
+		}
+
+		PreparedTexture prepared = new PreparedTexture();
+		prepared.mKey = key;
+		prepared.mLevels = new Bitmap[levelCount];
+
+		Bitmap level = Bitmap.createScaledBitmap(source, width, height, true);
+		if (level == source && source == image)
+		{
+			// never recycle the caller's image
+			level = source.copy(source.getConfig(), false);
+		}
+		if (source != image && level != source)
+		{
+			source.recycle();
+		}
+		prepared.mLevels[0] = level;
+		for (int i = 1; i < levelCount; i++)
+		{
+			width = Math.max(1, width / 2);
+			height = Math.max(1, height / 2);
+			level = Bitmap.createScaledBitmap(level, width, height, true);
+			prepared.mLevels[i] = level;
+		}
+
+		if (mCompress && !prepared.mLevels[0].hasAlpha())
+		{
+			compress(prepared);
+		}
+		else
+		{
+			for (Bitmap bitmap : prepared.mLevels)
+			{
+				prepared.mBytes += 4L * bitmap.getWidth() * bitmap.getHeight();
+			}
+		}
+		return prepared;
+	}
+
+	/**
+	 * Downloads an image not in the cache, textures of higher resolution are
+	 * only downloaded once an object is drawn large enough to need them. The
+	 * download is not a request of the user, the user requested the object.
+	 */
+	private static Bitmap download(String url, int maxSize)
+	{
+		Arvos instance = Arvos.getInstance();
+		Pair<String, Bitmap> result = new ArvosHttpRequest(null, instance.getActivity()).downloadDerivedImage(url);
+		if (!result.first.startsWith("OK") || result.second == null)
+		{
+			Log.d(mTag, "Texture not prepared, " + result.first.substring(2) + " " + url);
+			return null;
+		}
+
+		// decode the downloaded image from the cache at the size needed, the
+		// downloaded bitmap may be shared with concurrent downloads of the url
+		Bitmap bitmap = ArvosCache.getBitmap(url, maxSize, maxSize);
+		if (bitmap == null)
+		{
+			return result.second.copy(result.second.getConfig(), false);
+		}
+		return bitmap;
+	}
+
+	private static void compress(PreparedTexture prepared)
+	{
+		prepared.mCompressedLevels = new ETC1Util.ETC1Texture[prepared.mLevels.length];
+		for (int i = 0; i < prepared.mLevels.length; i++)
+		{
+			Bitmap bitmap = prepared.mLevels[i];
+			Bitmap rgb = bitmap.copy(Bitmap.Config.RGB_565, false);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(rgb.getRowBytes() * rgb.getHeight());
+			buffer.order(ByteOrder.nativeOrder());
+			rgb.copyPixelsToBuffer(buffer);
+			buffer.position(0);
+
+			prepared.mCompressedLevels[i] = ETC1Util.compressTexture(buffer, rgb.getWidth(), rgb.getHeight(), 2, rgb.getRowBytes());
+			prepared.mBytes += prepared.mCompressedLevels[i].getData().capacity();
+			rgb.recycle();
+			bitmap.recycle();
+		}
+		prepared.mLevels = null;
+	}
+
+	private static int powerOfTwo(int size, int maxSize)
+	{
+		int result = 1;
+		while (result * 2 <= size && result * 2 <= maxSize)
+		{
+			result *= 2;
+		}
+		return result;
+	}
+}
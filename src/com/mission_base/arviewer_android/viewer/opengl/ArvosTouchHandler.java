@@ -35,7 +35,9 @@ import com.mission_base.arviewer_android.viewer.utilities.Vector;
 /**
  * Handles touches in the opengl view.
  * <p>
- * Finds out which object was clicked if any.
+ * Finds out which object was clicked if any. The model view matrixes are
+ * requested from the renderer and read from the next frame it publishes, no
+ * lock is shared with the renderer.
  * 
  * @author peter
  * 
@@ -85,8 +87,11 @@ public class ArvosTouchHandler extends Thread
 
 		// let the renderer provide the model view matrixes of all objects
 		//
+		long frameNumber = mInstance.getFrame().mNumber;
 		mInstance.mModelViewMatrixesRequested = true;
-		while (mInstance.mModelViewMatrixesRequested)
+		mInstance.requestRender();
+		ArvosFrame frame = mInstance.getFrame();
+		while (frame.mNumber <= frameNumber || frame.mModelViewMatrixes == null)
 		{
 			try
 			{
@@ -100,6 +105,13 @@ public class ArvosTouchHandler extends Thread
 			{
 				return;
 			}
+			frame = mInstance.getFrame();
+			if (frame.mModelViewMatrixes == null && !mInstance.mModelViewMatrixesRequested)
+			{
+				// The frame with the matrixes was missed, request another one
+				mInstance.mModelViewMatrixesRequested = true;
+				mInstance.requestRender();
+			}
 		}
 		if (!mInstance.mHandleTouch)
 		{
@@ -117,76 +129,72 @@ public class ArvosTouchHandler extends Thread
 		float[] resultVector = new float[4];
 		float[] inputVector = new float[4];
 
-		float[] projection = mInstance.mProjectionMatrix;
+		float[] projection = frame.mProjectionMatrix;
 		if (projection == null)
 		{
 			return;
 		}
 
-		synchronized (mInstance.mModelViewMatrixes)
+		for (Entry<Integer, float[]> entry : frame.mModelViewMatrixes.entrySet())
 		{
-			for (Entry<Integer, float[]> entry : mInstance.mModelViewMatrixes.entrySet())
+			if (!mInstance.mHandleTouch)
 			{
-				if (!mInstance.mHandleTouch)
-				{
-					return;
-				}
+				return;
+			}
 
-				float[] modelView = entry.getValue();
+			float[] modelView = entry.getValue();
 
-				Ray ray = new Ray(modelView, projection, mInstance.mWidth, mInstance.mHeight, x, y);
+			Ray ray = new Ray(modelView, projection, frame.mWidth, frame.mHeight, x, y);
 
-				for (int i = 0; i < ArvosSquare.vertices.length; i = i + 3)
-				{
-					inputVector[0] = ArvosSquare.vertices[i];
-					inputVector[1] = ArvosSquare.vertices[i + 1];
-					inputVector[2] = ArvosSquare.vertices[i + 2];
-					inputVector[3] = 1;
-
-					Matrix.multiplyMV(resultVector, 0, modelView, 0, inputVector, 0);
-					convertedSquare[i] = resultVector[0] / resultVector[3];
-					convertedSquare[i + 1] = resultVector[1] / resultVector[3];
-					convertedSquare[i + 2] = resultVector[2] / resultVector[3];
-				}
+			for (int i = 0; i < ArvosSquare.vertices.length; i = i + 3)
+			{
+				inputVector[0] = ArvosSquare.vertices[i];
+				inputVector[1] = ArvosSquare.vertices[i + 1];
+				inputVector[2] = ArvosSquare.vertices[i + 2];
+				inputVector[3] = 1;
+
+				Matrix.multiplyMV(resultVector, 0, modelView, 0, inputVector, 0);
+				convertedSquare[i] = resultVector[0] / resultVector[3];
+				convertedSquare[i + 1] = resultVector[1] / resultVector[3];
+				convertedSquare[i + 2] = resultVector[2] / resultVector[3];
+			}
 
-				triangle.V0[0] = convertedSquare[0];
-				triangle.V0[1] = convertedSquare[1];
-				triangle.V0[2] = convertedSquare[2];
-				triangle.V1[0] = convertedSquare[3];
-				triangle.V1[1] = convertedSquare[4];
-				triangle.V1[2] = convertedSquare[5];
-				triangle.V2[0] = convertedSquare[6];
-				triangle.V2[1] = convertedSquare[7];
-				triangle.V2[2] = convertedSquare[8];
-
-				if (Triangle.intersectRayAndTriangle(ray, triangle, intersection) == 1)
+			triangle.V0[0] = convertedSquare[0];
+			triangle.V0[1] = convertedSquare[1];
+			triangle.V0[2] = convertedSquare[2];
+			triangle.V1[0] = convertedSquare[3];
+			triangle.V1[1] = convertedSquare[4];
+			triangle.V1[2] = convertedSquare[5];
+			triangle.V2[0] = convertedSquare[6];
+			triangle.V2[1] = convertedSquare[7];
+			triangle.V2[2] = convertedSquare[8];
+
+			if (Triangle.intersectRayAndTriangle(ray, triangle, intersection) == 1)
+			{
+				found = true;
+				float length = Vector.length(intersection);
+				if (length < minLength)
 				{
-					found = true;
-					float length = Vector.length(intersection);
-					if (length < minLength)
-					{
-						minLength = length;
-						id = entry.getKey();
-					}
-					continue;
+					minLength = length;
+					id = entry.getKey();
 				}
+				continue;
+			}
 
-				triangle.V0[0] = convertedSquare[9];
-				triangle.V0[1] = convertedSquare[10];
-				triangle.V0[2] = convertedSquare[11];
+			triangle.V0[0] = convertedSquare[9];
+			triangle.V0[1] = convertedSquare[10];
+			triangle.V0[2] = convertedSquare[11];
 
-				if (Triangle.intersectRayAndTriangle(ray, triangle, intersection) == 1)
+			if (Triangle.intersectRayAndTriangle(ray, triangle, intersection) == 1)
+			{
+				found = true;
+				float length = Vector.length(intersection);
+				if (length < minLength)
 				{
-					found = true;
-					float length = Vector.length(intersection);
-					if (length < minLength)
-					{
-						minLength = length;
-						id = entry.getKey();
-					}
+					minLength = length;
+					id = entry.getKey();
 				}
 			}
-			mInstance.mModelViewMatrixes.clear();
 		}
 
 		if (found)